@@ -2,24 +2,37 @@ package src;
 
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.io.FileUtils;
-import org.eclipse.jdt.core.dom.AST;
-import org.eclipse.jdt.core.dom.ASTParser;
-import org.eclipse.jdt.core.dom.CompilationUnit;
-import org.eclipse.jdt.core.dom.ImportDeclaration;
-import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
-import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
-import org.eclipse.jface.text.Document;
-import org.eclipse.text.edits.TextEdit;
 import org.slf4j.*;
 
-import src.visitors.InstrumentingVisitor;
+import src.bytecode.ClassInstrumenter;
+import src.instrumenters.BatchParser;
+import src.instrumenters.FieldIndex;
+import src.instrumenters.InstrumentationManifest;
+import src.instrumenters.OutputLayout;
+import src.instrumenters.ParallelInstrumenter;
+import src.instrumenters.ProbeFilter;
+import src.instrumenters.ProbeTable;
+import src.instrumenters.SourceFiles;
+import src.instrumenters.SourceInstrumenter;
+import src.instrumenters.UnitCache;
+import src.metrics.PipelineMetrics;
+import src.metrics.PipelineMetrics.Stage;
+import src.transport.FramedMasterServer;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.nio.file.*;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
@@ -32,29 +45,101 @@ public class App {
     public static Path ifInstrumented;
     public static Path collectorInstrumented;
 
+    private static final String MANIFEST_NAME = "manifest.properties";
+    private static InstrumentationManifest manifest = null;
+
+    public static final String PROBE_TABLE_NAME = "probes.tsv";
+    public static final String METRICS_NAME = "metrics.json";
+    private static ProbeTable probeTable = null;
+
+    public static final String LAYOUT_NAME = "layout.tsv";
+    private static List<File> sourceRoots;
+    private static OutputLayout layout = null;
+
+    public static final String FIELD_INDEX_NAME = "fields.idx";
+    private static final FieldIndex.Builder fieldIndexBuilder = new FieldIndex.Builder();
+
+    /* Arguments are one or more source roots (class directories for the
+     * bytecode backend). Instrumented is created next to the first one.
+     */
     public static void main(String[] args) {
         if (args.length == 0) {
             logger.error("No arguments passed. Shutting down..");
             return;
         }
 
-        File scanDir = new File(args[0]);
-        logger.info("Passed source path: " + scanDir.getAbsolutePath());
+        sourceRoots = new ArrayList<>();
+        for (String arg : args) {
+            File root = new File(arg).getAbsoluteFile();
+            logger.info("Passed source path: " + root);
+            sourceRoots.add(root);
+        }
+        File scanDir = sourceRoots.get(0);
+
+        boolean bytecode = Options.backend.equals("bytecode");
+        if (bytecode && Options.incremental) {
+            logger.error("Incremental runs are only supported by the source backend.");
+            return;
+        }
+        if (bytecode && Options.collector) {
+            logger.warn("The collector pass is only supported by the source backend, CollectorInstrumented stays empty.");
+        }
 
         File parentPath = scanDir.getParentFile();
-        setupPaths(parentPath);
-        copyFilesToBranchInsDir(scanDir);
-        addReportingCode(ifInstrumented);
+        if (!setupPaths(parentPath)) {
+            return;
+        }
+        PipelineMetrics metrics = PipelineMetrics.get();
+        final UnitCache cache = UnitCache.get();
+        if (cache.enabled()) {
+            metrics.counter("unitCache.unitHits", () -> cache.unitHits());
+            metrics.counter("unitCache.outputHits", () -> cache.outputHits());
+            metrics.counter("unitCache.misses", () -> cache.misses());
+            metrics.gauge("unitCache.bytes", () -> cache.weight());
+        }
+        metrics.publish(Paths.get(Instrumented.toString(), METRICS_NAME), Options.metricsMillis);
+
+        if (bytecode) {
+            for (File classesDir : sourceRoots) {
+                addBytecodeProbes(classesDir);
+            }
+            saveProbeTable();
+        } else {
+            refreshAll();
+        }
 
-        // Start the RMI server.
+        // Start the RMI server and/or the framed transport.
+        List<String> transports = Arrays.asList(Options.transport.split(","));
         try {
             AppServer rmiServer = new AppServer(Instrumented, ifInstrumented, collectorInstrumented);
-            LocateRegistry.createRegistry(1111);
-            Registry rmiRegistry = LocateRegistry.getRegistry(1111);
 
-            rmiRegistry.rebind("master", rmiServer);
-            logger.info("Started RMI server at port: " + Registry.REGISTRY_PORT);
+            Registry rmiRegistry = null;
+            if (transports.contains("rmi")) {
+                LocateRegistry.createRegistry(1111);
+                rmiRegistry = LocateRegistry.getRegistry(1111);
 
+                rmiRegistry.rebind("master", rmiServer);
+                logger.info("Started RMI server at port: " + Registry.REGISTRY_PORT);
+            }
+
+            if (transports.contains("framed")) {
+                try {
+                    new FramedMasterServer(rmiServer, Options.transportPort).start();
+                } catch (IOException e) {
+                    logger.error("Could not start the framed transport. Stack trace: " + e);
+                    if (rmiRegistry == null) {
+                        return;
+                    }
+                }
+            }
+
+            if (Options.daemon) {
+                if (rmiRegistry == null) {
+                    logger.error("The instrumentation daemon needs the rmi transport.");
+                } else {
+                    startDaemon(rmiServer, rmiRegistry);
+                }
+            }
         } catch (RemoteException e) {
             logger.error("Could not start a RMI server on master node.");
             logger.error(e.toString());
@@ -62,59 +147,354 @@ public class App {
         }
     }
 
-    private static void addReportingCode(Path sourcePath) {
-        Collection<File> sources = FileUtils.listFiles(sourcePath.toFile(), new String[] { "java" }, true);
+    /* Daemon mode: the JVM stays up anyway for the RMI server, so the parser
+     * it has warmed up can keep instrumenting changes as they come in.
+     */
+    private static void startDaemon(AppServer server, Registry registry) {
+        try {
+            InstrumentationDaemon daemon = new InstrumentationDaemon(sourceRoots, server.getScheduler());
+            registry.rebind(InstrumenterService.NAME, daemon);
+            daemon.start();
+        } catch (IOException e) {
+            logger.error("Could not start the instrumentation daemon. Stack trace: " + e);
+        }
+    }
+
+    /* Brings IfInstrumented up to date with every source root. */
+    static synchronized List<File> refreshAll() {
+        return instrumentSources(collectChangedSources());
+    }
+
+    static List<File> getSourceRoots() {
+        return sourceRoots;
+    }
+
+    /* Daemon entry point: re-instruments those of `sources` that changed, and
+     * drops the ones that no longer exist. A directory, or a path that is
+     * gone, also drops every source below it that no longer exists, since
+     * deleting or moving a directory is reported as one event. Returns the
+     * destinations that could not be instrumented.
+     */
+    static synchronized List<File> refreshSources(Collection<File> sources) {
+        Map<File, File> changed = new LinkedHashMap<>();
         for (File source : sources) {
+            source = source.getAbsoluteFile();
+            if (!source.isFile()) {
+                removeMissingSources(source);
+                continue;
+            }
+
+            if (!source.getName().endsWith(".java")) {
+                continue;
+            }
+
+            File destination = claimDestination(source);
+            if (destination == null) {
+                continue;
+            }
             try {
-                String contents = new String(FileUtils.readFileToByteArray(source));
+                if (destination.exists() && manifest.isUpToDate(source)) {
+                    continue;
+                }
+            } catch (IOException e) {
+                logger.error("Could not check file " + source.toString() + ". Stack trace: " + e);
+            }
+            changed.put(destination, source);
+        }
 
-                @SuppressWarnings("deprecation") // AST.JLS(K), where K < current JDK version is always
-                                                 // deprecated.
-                ASTParser parser = ASTParser.newParser(AST.JLS8);
+        return instrumentSources(changed);
+    }
 
-                parser.setSource(contents.toCharArray());
-                parser.setKind(ASTParser.K_COMPILATION_UNIT);
+    /* Where `source` goes under IfInstrumented (see OutputLayout), or null
+     * if it is outside every source root of a layout that needs one.
+     */
+    static File destinationOf(File source) {
+        return layout.destinationOf(source);
+    }
 
-                CompilationUnit unit = (CompilationUnit) parser.createAST(null);
-                AST ast = unit.getAST();
+    /* destinationOf(source), once `source` owns it. Null when another source
+     * writes the same output already (the flat layout keeps file names only).
+     */
+    private static File claimDestination(File source) {
+        File destination = destinationOf(source);
+        if (destination == null) {
+            logger.warn("Skipping " + source + ", it is not under any source root.");
+            return null;
+        }
+        if (!layout.claim(source, destination)) {
+            logger.warn("Skipping " + source + ", " + layout.ownerOf(destination) + " is written to "
+                    + destination + " already. Use -Dinstrumenter.layout=packages to keep both.");
+            return null;
+        }
+        return destination;
+    }
 
-                ASTRewrite rewrite = ASTRewrite.create(ast);
-                InstrumentingVisitor instrumenter = new InstrumentingVisitor(rewrite);
+    /* Forgets the sources at or below `path` that no longer exist and deletes
+     * their outputs. Their probes go when instrumentSources() keeps only the
+     * files left in IfInstrumented.
+     */
+    private static void removeMissingSources(File path) {
+        Set<File> gone = new LinkedHashSet<>(knownSourcesUnder(path));
+        if (!path.exists() && path.getName().endsWith(".java")) {
+            // Possibly a source from before the layout index, see OutputLayout.release().
+            gone.add(path);
+        }
 
-                unit.accept(instrumenter);
+        for (File source : gone) {
+            if (source.isFile()) {
+                continue;
+            }
+            manifest.remove(source);
+            removeOutput(source);
+        }
+    }
 
-                Document document = new Document();
-                document.set(contents);
+    /* The sources at or below `path` that the manifest or the layout index
+     * know of, whether or not they still exist.
+     */
+    static synchronized List<File> knownSourcesUnder(File path) {
+        path = path.getAbsoluteFile();
+        Path prefix = path.toPath().normalize();
+        Set<File> rval = new LinkedHashSet<>(layout.sourcesUnder(path));
+        for (File source : manifest.sources()) {
+            if (source.toPath().normalize().startsWith(prefix)) {
+                rval.add(source);
+            }
+        }
+        return new ArrayList<>(rval);
+    }
+
+    /* Deletes the outputs of a source that went away, if they were its own. */
+    private static void removeOutput(File source) {
+        File destination = layout.release(source);
+        if (destination != null) {
+            logger.debug("Removing " + destination.toString() + ", its source was deleted");
+            FileUtils.deleteQuietly(destination);
+            FileUtils.deleteQuietly(collectedDestinationOf(destination));
+        }
+    }
+
+    /* Where the collector pass puts the counterpart of an IfInstrumented file. */
+    private static File collectedDestinationOf(File destination) {
+        return SourceInstrumenter.collectedDestination(collectorInstrumented, probeTable, destination);
+    }
+
+    /* Instruments the destination -> source pairs and saves the probe table and
+     * manifest. Returns the destinations that could not be instrumented.
+     */
+    private static List<File> instrumentSources(Map<File, File> copied) {
+        updateFieldIndex(copied);
+
+        // Ids must be settled before any worker starts, so they do not depend on scheduling.
+        Set<File> live = new HashSet<>(FileUtils.listFiles(ifInstrumented.toFile(), new String[] { "java" }, true));
+        live.addAll(copied.keySet());
+        probeTable.retainFiles(live);
+        probeTable.assignFileIds(copied.keySet());
+
+        Map<File, String> stamps = new ConcurrentHashMap<>();
+        List<File> failed = addReportingCode(copied, stamps);
+        for (File destination : failed) {
+            probeTable.put(destination, Collections.<ProbeTable.Probe>emptyList());
+            linkUninstrumented(copied.get(destination), destination);
+            if (Options.collector) {
+                linkUninstrumented(copied.get(destination), collectedDestinationOf(destination));
+            }
+        }
 
-                ImportDeclaration importDeclaration = ast.newImportDeclaration();
-                importDeclaration.setName(ast.newName("src.Reporter"));
+        saveProbeTable();
+        saveLayout();
+        updateManifest(copied, failed, stamps);
+        return failed;
+    }
+
+    /* Brings the FieldIndex up to date with every source before any worker
+     * starts. In incremental mode, sources whose classes now see other fields
+     * than in the previous index (e.g. a superclass in another file gained
+     * one) are added to `copied`, since their probes read those fields too.
+     */
+    private static void updateFieldIndex(Map<File, File> copied) {
+        if (!Options.fieldIndex) {
+            return;
+        }
+
+        FieldIndex index;
+        try {
+            fieldIndexBuilder.scan(listSources(), Charset.forName(Options.encoding), Options.workers);
+            index = fieldIndexBuilder.write(Paths.get(Instrumented.toString(), FIELD_INDEX_NAME));
+        } catch (IOException e) {
+            logger.error("Could not write the field index, keeping the previous one. Stack trace: " + e);
+            return;
+        }
+
+        if (manifest != null) {
+            Set<File> queued = new HashSet<>(copied.values());
+            int added = 0;
+            for (File source : index.filesWithChangedFields(FieldIndex.current())) {
+                if (queued.contains(source) || !source.isFile()) {
+                    continue;
+                }
+                File destination = claimDestination(source);
+                if (destination != null) {
+                    copied.put(destination, source);
+                    added++;
+                }
+            }
+            if (added > 0) {
+                logger.info(added + " unchanged source file(s) see other fields now, instrumenting them again.");
+            }
+        }
+
+        FieldIndex.install(index);
+        logger.info("Indexed the fields of " + index.types() + " type(s).");
+    }
+
+    /* Every source under the source roots. */
+    private static List<File> listSources() {
+        long start = PipelineMetrics.start();
+        Set<File> rval = new LinkedHashSet<>();
+        for (File root : sourceRoots) {
+            for (File source : FileUtils.listFiles(root, new String[] { "java" }, true)) {
+                rval.add(source.getAbsoluteFile());
+            }
+        }
+        PipelineMetrics.stage(Stage.LIST, start);
+        return new ArrayList<>(rval);
+    }
 
-                ListRewrite listRewrite = rewrite.getListRewrite(unit, CompilationUnit.IMPORTS_PROPERTY);
-                listRewrite.insertLast(importDeclaration, null);
+    /* Instruments every destination -> source pair, putting the manifest stamp
+     * of what each source was instrumented from in `stamps`. Returns the
+     * destinations that could not be instrumented.
+     */
+    private static List<File> addReportingCode(Map<File, File> sources, Map<File, String> stamps) {
+        Charset charset = Charset.forName(Options.encoding);
+        ProbeFilter filter = probeFilter();
+        Path collectorRoot = Options.collector ? collectorInstrumented : null;
+
+        BatchParser batchParser = null;
+        if (Options.batch) {
+            String[] sourcepath = new String[sourceRoots.size()];
+            for (int i = 0; i < sourcepath.length; i++) {
+                sourcepath[i] = sourceRoots.get(i).getAbsolutePath();
+            }
+            batchParser = new BatchParser(BatchParser.splitPath(Options.classpath), sourcepath, Options.encoding,
+                    Options.resolveBindings);
+        }
 
-                TextEdit edits = rewrite.rewriteAST(document, null);
-                edits.apply(document);
+        if (Options.workers > 1) {
+            List<File> failed = new ParallelInstrumenter(Options.workers, probeTable, charset, filter,
+                    collectorRoot, batchParser, Options.batchSize).run(sources, stamps);
+            if (!failed.isEmpty()) {
+                logger.error(failed.size() + " file(s) could not be instrumented.");
+            }
+            return failed;
+        }
 
-                BufferedWriter writer = new BufferedWriter(new FileWriter(source.getAbsolutePath()));
-                writer.write(document.get());
-                writer.close();
+        List<File> failed = new ArrayList<>();
+        if (batchParser != null) {
+            List<File> files = new ArrayList<>(sources.keySet());
+            for (int from = 0; from < files.size(); from += Options.batchSize) {
+                int to = Math.min(files.size(), from + Options.batchSize);
+                failed.addAll(batchParser.instrument(files.subList(from, to), sources, probeTable, filter,
+                        collectorRoot, stamps));
+            }
+            return failed;
+        }
 
+        for (Map.Entry<File, File> entry : sources.entrySet()) {
+            try {
+                stamps.put(entry.getValue(), SourceInstrumenter.instrumentFile(entry.getValue(), entry.getKey(),
+                        charset, probeTable, filter, collectorRoot));
             } catch (Exception e) {
+                failed.add(entry.getKey());
                 e.printStackTrace();
             }
         }
+        return failed;
     }
 
-    private static void setupPaths(File parentPath) {
+    /* Bytecode backend: `classesDir` is a compiled output directory, e.g.
+     * target/classes. Its tree is mirrored into IfInstrumented with probes
+     * added to every .class file; other files, and classes without probes or
+     * that fail to instrument, are linked over as they are.
+     */
+    private static void addBytecodeProbes(File classesDir) {
+        Path root = classesDir.getAbsoluteFile().toPath();
+        ProbeFilter filter = probeFilter();
+
+        Map<File, File> classes = new LinkedHashMap<>();
+        List<File> others = new ArrayList<>();
+        long listed = PipelineMetrics.start();
+        Collection<File> files = FileUtils.listFiles(classesDir, null, true);
+        PipelineMetrics.stage(Stage.LIST, listed);
+        for (File file : files) {
+            File destination = ifInstrumented.resolve(root.relativize(file.getAbsoluteFile().toPath())).toFile();
+            if (file.getName().endsWith(".class")) {
+                classes.put(destination, file);
+            } else {
+                others.add(file);
+                linkUninstrumented(file, destination);
+            }
+        }
+        probeTable.assignFileIds(classes.keySet());
+
+        int failed = 0;
+        for (Map.Entry<File, File> entry : classes.entrySet()) {
+            File destination = entry.getKey();
+            try {
+                long start = PipelineMetrics.start();
+                byte[] bytes = Files.readAllBytes(entry.getValue().toPath());
+                long read = PipelineMetrics.stage(Stage.READ, start);
+                // Parsing, visiting and rewriting are one pass over the class.
+                byte[] instrumented = ClassInstrumenter.instrument(bytes, destination, probeTable, filter);
+                long visited = PipelineMetrics.stage(Stage.VISIT, read);
+                if (instrumented == null) {
+                    linkUninstrumented(entry.getValue(), destination);
+                } else {
+                    Files.createDirectories(destination.toPath().getParent());
+                    Files.write(destination.toPath(), instrumented);
+                }
+                PipelineMetrics.stage(Stage.WRITE, visited);
+                PipelineMetrics.file(destination.getName(), start);
+            } catch (Exception e) {
+                failed++;
+                logger.error("Could not instrument " + entry.getValue().toString() + ". Stack trace: " + e);
+                probeTable.put(destination, Collections.<ProbeTable.Probe>emptyList());
+                linkUninstrumented(entry.getValue(), destination);
+            }
+        }
+
+        logger.info("Instrumented " + (classes.size() - failed) + " class file(s), linked " + others.size()
+                + " other file(s).");
+    }
+
+    private static ProbeFilter probeFilter() {
+        return new ProbeFilter(Options.include, Options.exclude, Options.maxProbesPerMethod, Options.skipLoops,
+                Options.captureOperands);
+    }
+
+    /* Files that could not be instrumented still go to IfInstrumented as they are. */
+    private static void linkUninstrumented(File source, File destination) {
+        try {
+            Files.createDirectories(destination.toPath().getParent());
+            SourceFiles.link(source.toPath(), destination.toPath());
+        } catch (IOException e) {
+            logger.error("Could not copy over file " + source.toString() + ". Stack trace: " + e);
+        }
+    }
+
+    private static boolean setupPaths(File parentPath) {
         if (parentPath != null) {
             Instrumented = Paths.get(parentPath.getAbsolutePath(), "Instrumented");
             if (Instrumented.toFile().exists()) {
-                logger.error("Instrumented code from previous runs exists. Remove it and run again.");
-                return;
+                if (!Options.incremental) {
+                    logger.error("Instrumented code from previous runs exists. Remove it and run again.");
+                    return false;
+                }
+                logger.info("Reusing instrumented code from previous runs (incremental mode).");
             } else {
                 if (!Instrumented.toFile().mkdir()) {
                     logger.error("Could not create instrumented code directory. Aborting.");
-                    return;
+                    return false;
                 }
             }
 
@@ -122,41 +502,181 @@ public class App {
             collectorInstrumented = Paths.get(Instrumented.toString(), "CollectorInstrumented");
         } else {
             logger.error("Could not extract a root parent path. This should never happen. Aborting.");
-            return;
+            return false;
         }
 
         logger.info("Creating " + ifInstrumented.toString() + " directory to store branch instrumented code");
         logger.info("Creating " + collectorInstrumented.toString() + " directory to store reporter instrumented code");
 
-        if (!ifInstrumented.toFile().mkdir() || !collectorInstrumented.toFile().mkdir()) {
+        if (!createDirectory(ifInstrumented.toFile()) || !createDirectory(collectorInstrumented.toFile())) {
             logger.error("Could not create either IfInstrumented dir, or CollectorInstrumented dir.");
             logger.error("Aborting.");
-            return;
+            return false;
         }
-    }
 
-    private static ArrayList<File> copyFilesToBranchInsDir(File scanDir) {
-        ArrayList<File> rval = new ArrayList<>();
-        // Begin by copying over all original code to the branchInstrumented directory.
-        // We begin with original code because we don't want to modify the branches yet.
-        Collection<File> collectedFiles = FileUtils.listFiles(scanDir, null, true);
-        for (File inputFile : collectedFiles) {
-            if (inputFile.toString().endsWith(".java")) {
-                // Copy it over to the branch-instrumentation dir.
-                File destination = Paths.get(ifInstrumented.toString(), inputFile.getName()).toFile();
-                logger.debug("Copying " + inputFile.toString() + " to " + destination.toString());
+        probeTable = new ProbeTable(ifInstrumented);
+        layout = new OutputLayout(Options.layout, sourceRoots, ifInstrumented);
+        if (Options.incremental) {
+            loadLayout();
+            Path manifestPath = Paths.get(Instrumented.toString(), MANIFEST_NAME);
+            String settings = probeFilter() + (Options.collector ? ";collector=true" : "")
+                    + (Options.fieldIndex ? ";fieldIndex=true" : "");
+            try {
+                manifest = InstrumentationManifest.load(manifestPath, settings);
+
+                Path probes = Paths.get(Instrumented.toString(), PROBE_TABLE_NAME);
+                if (Files.exists(probes)) {
+                    probeTable = ProbeTable.load(ifInstrumented, probes);
+                } else {
+                    // Without the old ids, unchanged files can not be trusted either.
+                    manifest.clear();
+                }
+            } catch (IOException e) {
+                logger.error("Could not read the instrumentation manifest, starting from scratch. " + e);
+                // Empty rather than null: incremental and daemon mode rely on having one.
+                manifest = InstrumentationManifest.empty(manifestPath, settings);
+                probeTable = new ProbeTable(ifInstrumented);
+            }
 
+            // The previous index tells which unchanged sources see other fields now.
+            Path fields = Paths.get(Instrumented.toString(), FIELD_INDEX_NAME);
+            if (Options.fieldIndex && Files.exists(fields)) {
                 try {
-                    FileUtils.copyFile(inputFile, destination);
-
-                    rval.add(inputFile);
+                    FieldIndex.install(FieldIndex.open(fields));
                 } catch (IOException e) {
-                    logger.error("Could not copy over file " + inputFile.toString() + ". Stack trace: " + e);
+                    logger.error("Could not read the previous field index, instrumenting everything again. " + e);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /* Reuses the output index of the previous run. After a change of layout,
+     * the old outputs are deleted and everything is instrumented again.
+     */
+    private static void loadLayout() {
+        try {
+            OutputLayout previous = OutputLayout.load(Options.layout, sourceRoots, ifInstrumented,
+                    Paths.get(Instrumented.toString(), LAYOUT_NAME));
+            if (previous.mode().equals(Options.layout)) {
+                layout = previous;
+            } else {
+                logger.info("Output layout changed from " + previous.mode() + " to " + Options.layout
+                        + ", removing the old outputs.");
+                previous.deleteOutputs();
+                FileUtils.cleanDirectory(collectorInstrumented.toFile());
+            }
+        } catch (IOException e) {
+            logger.error("Could not read the output index, starting from scratch. " + e);
+        }
+    }
+
+    private static boolean createDirectory(File directory) {
+        // Directories are kept around between incremental runs.
+        return directory.isDirectory() || directory.mkdir();
+    }
+
+    /* Returns a map of destination in the branch-instrumentation dir -> original
+     * source, for every root in order. Nothing is copied here: instrumentation
+     * reads each source once and writes its destination directly. In
+     * incremental mode, sources that are unchanged since the last run are
+     * skipped, and outputs of sources that no longer exist are removed.
+     */
+    private static Map<File, File> collectChangedSources() {
+        Map<File, File> rval = new LinkedHashMap<>();
+        Set<File> seen = new HashSet<>();
+        for (File root : sourceRoots) {
+            long start = PipelineMetrics.start();
+            List<File> collectedFiles = new ArrayList<>(FileUtils.listFiles(root, new String[] { "java" }, true));
+            Collections.sort(collectedFiles);
+            PipelineMetrics.stage(Stage.LIST, start);
+
+            for (File inputFile : collectedFiles) {
+                inputFile = inputFile.getAbsoluteFile();
+                if (!seen.add(inputFile)) {
+                    // Nested roots.
                     continue;
                 }
+
+                // Goes to the branch-instrumentation dir.
+                File destination = claimDestination(inputFile);
+                if (destination == null) {
+                    continue;
+                }
+
+                try {
+                    if (manifest != null && destination.exists() && manifest.isUpToDate(inputFile)) {
+                        logger.debug("Skipping unchanged " + inputFile.toString());
+                        continue;
+                    }
+                } catch (IOException e) {
+                    logger.error("Could not check file " + inputFile.toString() + ". Stack trace: " + e);
+                }
+
+                rval.put(destination, inputFile);
             }
         }
 
+        if (manifest != null) {
+            pruneDeletedSources(seen);
+            logger.info(rval.size() + " of " + seen.size() + " source files changed since the last run.");
+        }
+
         return rval;
     }
+
+    private static void pruneDeletedSources(Set<File> seen) {
+        for (File source : manifest.sources()) {
+            if (seen.contains(source)) {
+                continue;
+            }
+
+            manifest.remove(source);
+            removeOutput(source);
+        }
+    }
+
+    private static void saveLayout() {
+        try {
+            layout.save(Paths.get(Instrumented.toString(), LAYOUT_NAME));
+        } catch (IOException e) {
+            logger.error("Could not write the output index. Stack trace: " + e);
+        }
+    }
+
+    private static void saveProbeTable() {
+        try {
+            probeTable.save(Paths.get(Instrumented.toString(), PROBE_TABLE_NAME));
+        } catch (IOException e) {
+            logger.error("Could not write the probe table. Stack trace: " + e);
+        }
+    }
+
+    /* Records each instrumented source by the stamp of the text it was
+     * instrumented from, not by what is on disk now: a file edited while it
+     * was being instrumented must not look up to date in the next run.
+     */
+    private static void updateManifest(Map<File, File> copied, List<File> failed, Map<File, String> stamps) {
+        if (manifest == null) {
+            return;
+        }
+
+        Set<File> failedSet = new HashSet<>(failed);
+        for (Map.Entry<File, File> entry : copied.entrySet()) {
+            String stamp = stamps.get(entry.getValue());
+            if (failedSet.contains(entry.getKey()) || stamp == null) {
+                // Forget it, so the next run tries again.
+                manifest.remove(entry.getValue());
+            } else {
+                manifest.record(entry.getValue(), stamp);
+            }
+        }
+
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            logger.error("Could not write the instrumentation manifest. Stack trace: " + e);
+        }
+    }
 }
@@ -1,14 +1,29 @@
 package src;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import src.collector.CoverageStore;
+import src.collector.ProfileSnapshot;
+import src.collector.ReportCollector;
+import src.collector.ReportListener;
 import src.interfaces.Master;
+import src.invariants.InvariantEngine;
+import src.metrics.PipelineMetrics;
 import src.interfaces.Runner;
+import src.runtime.CoverageBitmap;
+import src.runtime.ReportRecord;
+import src.scheduler.WorkScheduler;
 
 /* The definition of the Application server object.
  * this talks to the remote client and sends it commands,
@@ -19,6 +34,13 @@ public class AppServer extends UnicastRemoteObject implements Master {
     Path instrumented;
     Path ifInstrumented;
     Path reportInstrumented;
+    ReportCollector collector;
+    WorkScheduler scheduler;
+    ProfileSnapshot profiles = new ProfileSnapshot();
+    InvariantEngine invariants = null;
+    CoverageStore coverage = new CoverageStore();
+
+    public static final String INVARIANTS_NAME = "invariants.tsv";
 
     public AppServer(Path instrumentedDir, Path branchInstrumentedDir, Path reportInstrumentedDir)
             throws RemoteException {
@@ -27,6 +49,62 @@ public class AppServer extends UnicastRemoteObject implements Master {
         this.instrumented = instrumentedDir;
         this.ifInstrumented = branchInstrumentedDir;
         this.reportInstrumented = reportInstrumentedDir;
+
+        // Instrumented code streams its reports here instead of calling report() over RMI.
+        this.collector = new ReportCollector(Options.reportPort, Options.reportQueue);
+        this.collector.addListener(new ReportListener() {
+            @Override
+            public void onRecord(ByteBuffer batch, int offset) {
+            }
+
+            @Override
+            public void onSnapshot(ProfileSnapshot snapshot) {
+                profiles.merge(snapshot);
+            }
+
+            @Override
+            public void onCoverage(CoverageBitmap bitmap) {
+                coverage.add(bitmap);
+            }
+        });
+        if (Options.invariants) {
+            this.invariants = new InvariantEngine(Options.invariantMaxProbes, Options.invariantMinSamples);
+            this.collector.addListener(this.invariants);
+            this.invariants.startSnapshots(Paths.get(this.instrumented.toString(), INVARIANTS_NAME),
+                    this.ifInstrumented, Paths.get(this.instrumented.toString(), App.PROBE_TABLE_NAME),
+                    Options.invariantSnapshotMillis);
+        }
+        final ReportCollector reports = this.collector;
+        PipelineMetrics metrics = PipelineMetrics.get();
+        metrics.counter("report.records", () -> reports.recordsReceived());
+        metrics.counter("report.batches", () -> reports.batchesReceived());
+        metrics.gauge("report.queueDepth", () -> reports.queueDepth());
+        final CoverageStore tests = this.coverage;
+        metrics.gauge("coverage.executions", () -> tests.executions());
+        metrics.gauge("coverage.branches", () -> tests.branchesCovered());
+        if (this.invariants != null) {
+            final InvariantEngine engine = this.invariants;
+            metrics.gauge("invariants.probes", () -> engine.probes());
+            metrics.counter("invariants.droppedRecords", () -> engine.droppedRecords());
+        }
+        try {
+            this.collector.start();
+        } catch (IOException e) {
+            throw new RemoteException("Could not start the branch report collector", e);
+        }
+
+        // Runners get slices of the instrumented classes rather than the whole tree.
+        try {
+            Path unitsDir = Paths.get(this.instrumented.toString(), "Units");
+            FileUtils.deleteDirectory(unitsDir.toFile());
+
+            Collection<File> sources = FileUtils.listFiles(this.ifInstrumented.toFile(), new String[] { "java" }, true);
+            this.scheduler = new WorkScheduler(this.ifInstrumented, sources, unitsDir,
+                    this.reportInstrumented.toFile(), Options.unitSize, Options.heartbeatMillis);
+            this.scheduler.start();
+        } catch (IOException e) {
+            throw new RemoteException("Could not split the instrumented classes into work units", e);
+        }
     }
 
     protected AppServer() throws RemoteException {
@@ -34,20 +112,61 @@ public class AppServer extends UnicastRemoteObject implements Master {
     }
 
 
+    /* Hands the runner to the scheduler, which feeds it work units on its own
+     * thread, so this returns right away.
+     */
     @Override
     public void connect(Runner runner) throws RemoteException {
         logger.info("Client connected.");
-        logger.info("Sending instrumentation paths to the client");
-        runner.setBranchSourceDir(this.ifInstrumented.toFile());
-        runner.setReportSourceDir(this.reportInstrumented.toFile());
+        this.scheduler.addRunner(runner);
+    }
+
+    public WorkScheduler getScheduler() {
+        return this.scheduler;
+    }
 
-        logger.info("Triggering evosuite search on the branch-Instrumented directory");
-        runner.runEvoSearch();
+    public ReportCollector getCollector() {
+        return this.collector;
     }
 
+    /* The invariant engine fed by the collector, or null if it is disabled. */
+    public InvariantEngine getInvariants() {
+        return this.invariants;
+    }
+
+    /* The per-test coverage bitmaps of the "coverage" report mode. */
+    public CoverageStore getCoverage() {
+        return this.coverage;
+    }
+
+    /* Branch profiles merged from every ProbeStore snapshot received so far. */
+    public ProfileSnapshot getProfiles() {
+        return this.profiles;
+    }
+
+    /* Slow path for runners that still report over RMI. The outcome is not known
+     * here, the record goes through the same ingest loop as streamed reports.
+     */
     @Override
     public void report(String className, String methodName, String branchExpr, Object... args) throws RemoteException {
-        logger.info("Client says: " + String.format("class(%s).method(%s).expr(%s)", className, methodName, branchExpr));
-        throw new UnsupportedOperationException("Unimplemented method 'report'");
+        logger.debug("Client says: " + String.format("class(%s).method(%s).expr(%s)", className, methodName, branchExpr));
+
+        // args alternates variable names and values.
+        Object[] values = new Object[args.length / 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = args[2 * i + 1];
+        }
+
+        ByteBuffer batch = ByteBuffer.allocate(ReportRecord.SIZE);
+        ReportRecord.encode(batch, ReportRecord.branchId(className, methodName, branchExpr),
+                ReportRecord.OUTCOME_UNKNOWN, values);
+        batch.flip();
+
+        try {
+            this.collector.ingest(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while queueing a report", e);
+        }
     }
 }
@@ -0,0 +1,41 @@
+package src;
+
+import java.io.File;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.List;
+
+/* InstrumentClient: asks a running daemon (-Dinstrumenter.daemon=true) to
+ * instrument the given source files again, e.g. from a build step:
+ *
+ *   java -cp astMod.jar src.InstrumentClient src/main/java/Foo.java ...
+ *
+ * Only RMI is loaded here, so this returns about as fast as the JVM starts.
+ * Exits with 1 if some file could not be instrumented, and 2 if there is no
+ * daemon to talk to.
+ */
+public class InstrumentClient {
+    public static void main(String[] args) {
+        List<String> sources = new ArrayList<>();
+        for (String arg : args) {
+            sources.add(new File(arg).getAbsolutePath());
+        }
+
+        List<String> failed;
+        try {
+            Registry registry = LocateRegistry.getRegistry(1111);
+            InstrumenterService service = (InstrumenterService) registry.lookup(InstrumenterService.NAME);
+            failed = service.instrument(sources);
+        } catch (Exception e) {
+            System.err.println("No instrumentation daemon to talk to: " + e);
+            System.exit(2);
+            return;
+        }
+
+        for (String file : failed) {
+            System.err.println("Could not instrument " + file);
+        }
+        System.exit(failed.isEmpty() ? 0 : 1);
+    }
+}
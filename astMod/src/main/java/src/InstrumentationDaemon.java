@@ -0,0 +1,212 @@
+package src;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.scheduler.WorkScheduler;
+
+/* InstrumentationDaemon: keeps IfInstrumented in step with the source tree
+ * after the first run, in the same JVM, so JDT is loaded and warmed up once.
+ *
+ * Changes come in two ways: a WatchService on every directory of the source
+ * roots, whose events are gathered until the tree has been quiet for
+ * Options.daemonDebounceMillis, and instrument() calls from InstrumentClient.
+ * Both go through App.refreshSources(), one batch at a time, which skips
+ * files whose contents did not change (see InstrumentationManifest).
+ *
+ * Work units already laid out are re-linked to the new output, so runners
+ * that have not run them yet get the current code. New sources are only
+ * picked up by units on the next start.
+ */
+public class InstrumentationDaemon extends UnicastRemoteObject implements InstrumenterService {
+    final static Logger logger = LoggerFactory.getLogger("InstrumentationDaemon");
+
+    private final List<File> roots;
+    private final WorkScheduler scheduler;
+    private final Map<WatchKey, Path> directories = new HashMap<>();
+    private WatchService watcher;
+
+    public InstrumentationDaemon(List<File> roots, WorkScheduler scheduler) throws RemoteException {
+        super();
+        this.roots = roots;
+        this.scheduler = scheduler;
+    }
+
+    public void start() throws IOException {
+        this.watcher = FileSystems.getDefault().newWatchService();
+        for (File root : this.roots) {
+            register(root.toPath());
+        }
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "source-watcher");
+        thread.setDaemon(true);
+        thread.start();
+
+        logger.info("Watching " + this.directories.size() + " directories under " + this.roots);
+    }
+
+    @Override
+    public List<String> instrument(List<String> sources) throws RemoteException {
+        List<File> files = new ArrayList<>();
+        for (String source : sources) {
+            files.add(new File(source));
+        }
+
+        List<String> rval = new ArrayList<>();
+        for (File destination : refresh(files)) {
+            rval.add(App.ifInstrumented.relativize(destination.toPath()).toString());
+        }
+        return rval;
+    }
+
+    private List<File> refresh(Collection<File> sources) {
+        long start = System.nanoTime();
+
+        // A deleted directory is one path; its sources are linked into the units one by one.
+        Set<File> affected = new LinkedHashSet<>(sources);
+        for (File source : sources) {
+            if (!source.isFile()) {
+                affected.addAll(App.knownSourcesUnder(source));
+            }
+        }
+
+        List<File> failed = App.refreshSources(sources);
+        relink(affected);
+
+        logger.info("Refreshed " + sources.size() + " file(s) in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + failed.size() + " failed.");
+        return failed;
+    }
+
+    private void refreshAll() {
+        long start = System.nanoTime();
+        List<File> failed = App.refreshAll();
+        List<File> sources = new ArrayList<>();
+        for (File root : this.roots) {
+            sources.addAll(FileUtils.listFiles(root, new String[] { "java" }, true));
+        }
+        relink(sources);
+
+        logger.info("Refreshed the whole source tree in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + failed.size() + " failed.");
+    }
+
+    private void relink(Collection<File> sources) {
+        if (this.scheduler == null) {
+            return;
+        }
+
+        List<File> destinations = new ArrayList<>();
+        for (File source : sources) {
+            File destination = App.destinationOf(source);
+            if (destination != null) {
+                destinations.add(destination);
+            }
+        }
+        try {
+            int unscheduled = this.scheduler.refresh(destinations);
+            if (unscheduled > 0) {
+                logger.info(unscheduled + " new file(s) are not part of any work unit until the next start.");
+            }
+        } catch (IOException e) {
+            logger.error("Could not update the work units. Stack trace: " + e);
+        }
+    }
+
+    private void watch() {
+        Set<File> pending = new LinkedHashSet<>();
+        boolean overflow = false;
+
+        while (true) {
+            WatchKey key;
+            try {
+                key = pending.isEmpty() && !overflow ? this.watcher.take()
+                        : this.watcher.poll(Options.daemonDebounceMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (key == null) {
+                // Quiet for a while; editors and builds write in bursts.
+                if (overflow) {
+                    refreshAll();
+                } else {
+                    refresh(pending);
+                }
+                pending.clear();
+                overflow = false;
+                continue;
+            }
+
+            Path directory = this.directories.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW || directory == null) {
+                    // Events were lost, look at everything.
+                    overflow = true;
+                    continue;
+                }
+
+                Path child = directory.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(child)) {
+                    try {
+                        register(child);
+                    } catch (IOException e) {
+                        logger.error("Could not watch " + child + ". Stack trace: " + e);
+                    }
+                    pending.addAll(FileUtils.listFiles(child.toFile(), new String[] { "java" }, true));
+                } else {
+                    pending.add(child.toFile());
+                }
+            }
+
+            if (!key.reset()) {
+                this.directories.remove(key);
+            }
+        }
+    }
+
+    private void register(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes)
+                    throws IOException {
+                WatchKey key = directory.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                directories.put(key, directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -0,0 +1,19 @@
+package src;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/* The daemon's side of the RMI registry, next to the master: lets a build or
+ * an IDE ask for sources to be instrumented again without starting a JVM that
+ * has to load and warm up JDT first. See InstrumentClient.
+ */
+public interface InstrumenterService extends Remote {
+    String NAME = "instrumenter";
+
+    /* Re-instruments the given source files (absolute paths) where they changed
+     * since they were last instrumented; deleted ones are dropped. Returns the
+     * names of the files that could not be instrumented.
+     */
+    List<String> instrument(List<String> sources) throws RemoteException;
+}
@@ -0,0 +1,126 @@
+package src;
+
+/* Options: tunables for the instrumentation pipeline.
+ * App only takes the source path as a positional argument, so everything else
+ * is read from system properties, e.g. `java -Dinstrumenter.workers=8 -jar ...`.
+ */
+public class Options {
+    // Number of worker threads used to instrument files. 1 keeps the original
+    // sequential behaviour, 0 (or less) means one worker per available core.
+    public static int workers = resolveWorkers(Integer.getInteger("instrumenter.workers", 1));
+
+    // Stay resident after the first run: watch the source tree and re-instrument
+    // files as they change, and take requests from InstrumentClient. Implies
+    // incremental. Changes are picked up once the tree was quiet for
+    // `daemonDebounceMillis`.
+    public static boolean daemon = Boolean.getBoolean("instrumenter.daemon");
+    public static long daemonDebounceMillis = Long.getLong("instrumenter.daemon.debounceMillis", 50L);
+
+    // Reuse an existing Instrumented directory and only re-instrument sources
+    // that changed since the last run.
+    public static boolean incremental = Boolean.getBoolean("instrumenter.incremental") || daemon;
+
+    // Parse files in batches through one shared ASTParser environment
+    // (ASTParser.createASTs) instead of one parser per file.
+    public static boolean batch = Boolean.getBoolean("instrumenter.batch");
+    public static int batchSize = Math.max(1, Integer.getInteger("instrumenter.batchSize", 256));
+
+    // How outputs are laid out in IfInstrumented (see OutputLayout): "flat"
+    // puts every file in one directory by name, so same-named classes collide
+    // and only the first is kept; "packages" mirrors each source root's
+    // directories.
+    public static String layout = System.getProperty("instrumenter.layout", "flat");
+
+    // Heap budget (bytes) of the UnitCache, which keeps parsed units and their
+    // instrumented output by content hash, so text seen before is not parsed
+    // again. On by default only for the daemon, which sees the same files
+    // again; 0 turns it off.
+    public static long unitCacheBytes = Long.getLong("instrumenter.unitCache.bytes", daemon ? 64L << 20 : 0L);
+
+    // Source encoding, used to read and write every file.
+    public static String encoding = System.getProperty("instrumenter.encoding", "UTF-8");
+
+    // Batch mode environment: extra classpath entries (separated by the platform
+    // path separator) and whether bindings should be resolved.
+    public static String classpath = System.getProperty("instrumenter.classpath", "");
+    public static boolean resolveBindings = Boolean.getBoolean("instrumenter.bindings");
+
+    // Which ifs get a probe, see ProbeFilter: comma separated `class[#method]`
+    // globs to include and exclude, a cap on probes per method (0 = none) and
+    // whether ifs inside loops are skipped.
+    public static String include = System.getProperty("instrumenter.include", "");
+    public static String exclude = System.getProperty("instrumenter.exclude", "");
+    public static int maxProbesPerMethod = Integer.getInteger("instrumenter.maxProbesPerMethod", 0);
+    public static boolean skipLoops = Boolean.getBoolean("instrumenter.skipLoops");
+
+    // Also rewrite each comparison in an instrumented condition so the values of
+    // both its sides are reported, evaluated once (see Reporter.term). Source
+    // backend only.
+    public static boolean captureOperands = Boolean.getBoolean("instrumenter.captureOperands");
+
+    // Also write CollectorInstrumented: a second rewrite of every source, from
+    // the same parse, that captures the fields of the object at method entry
+    // and exit and after field writes (see src.visitors.CollectorVisitor).
+    // Source backend only.
+    public static boolean collector = Boolean.parseBoolean(System.getProperty("instrumenter.collector", "true"));
+
+    // Index the fields of every class in a pre-pass over all sources (see
+    // src.instrumenters.FieldIndex), so branches also report the fields they
+    // read that are inherited, from an enclosing class, or declared after the
+    // method. Kept in Instrumented/fields.idx. Source backend only.
+    public static boolean fieldIndex = Boolean.parseBoolean(System.getProperty("instrumenter.fieldIndex", "true"));
+
+    // How probes are added: "source" rewrites the .java files, "bytecode"
+    // instruments the compiled .class files under the given path instead
+    // (see src.bytecode). The bytecode backend also runs as a Java agent,
+    // which writes its probe table to `agentProbes` on exit.
+    public static String backend = System.getProperty("instrumenter.backend", "source");
+    public static String agentProbes = System.getProperty("instrumenter.agent.probes", "probes.tsv");
+
+    // Local port the master collects binary branch reports on, and how many
+    // batches may wait for ingestion before senders are blocked.
+    public static int reportPort = Integer.getInteger("instrumenter.report.port", 1112);
+    public static int reportQueue = Integer.getInteger("instrumenter.report.queue", 256);
+
+    // How runners reach the master, a comma separated list of "framed" (the
+    // pipelined transport in src.transport, on `transportPort`) and "rmi" (the
+    // registry on port 1111). The daemon's InstrumenterService needs "rmi".
+    public static String transport = System.getProperty("instrumenter.transport", "framed,rmi");
+    public static int transportPort = Integer.getInteger("instrumenter.transport.port", 1114);
+
+    // How long (ms) a framed call waits for its reply before failing. Not
+    // runEvoSearch, which takes as long as its work unit does; a runner that
+    // dies during one is found by the scheduler's heartbeats instead.
+    public static long transportCallTimeoutMillis = Long.getLong("instrumenter.transport.callTimeoutMillis",
+            5 * 60 * 1000L);
+
+    // Learn invariants over the reported branch variables as reports arrive
+    // (see src.invariants.InvariantEngine). At most `invariantMaxProbes` probes
+    // are tracked; points with fewer than `invariantMinSamples` samples are left
+    // out of the snapshot written to Instrumented/invariants.tsv every
+    // `invariantSnapshotMillis` ms.
+    public static boolean invariants = Boolean.parseBoolean(System.getProperty("instrumenter.invariants", "true"));
+    public static int invariantMaxProbes = Integer.getInteger("instrumenter.invariants.maxProbes", 1 << 16);
+    public static long invariantMinSamples = Long.getLong("instrumenter.invariants.minSamples", 10L);
+    public static long invariantSnapshotMillis = Long.getLong("instrumenter.invariants.snapshotMillis", 10000L);
+
+    // Pipeline metrics (see src.metrics.PipelineMetrics): on unless turned off,
+    // shown over JMX and written to Instrumented/metrics.json every
+    // `metricsMillis` ms (0 = only on exit). `metricsJfr` also emits them as
+    // JFR events, for JVMs that have jdk.jfr.
+    public static boolean metrics = Boolean.parseBoolean(System.getProperty("instrumenter.metrics", "true"));
+    public static long metricsMillis = Long.getLong("instrumenter.metrics.millis", 10000L);
+    public static boolean metricsJfr = Boolean.getBoolean("instrumenter.metrics.jfr");
+
+    // Number of instrumented classes per work unit handed to a runner, and how
+    // often (ms) runners are checked for liveness.
+    public static int unitSize = Integer.getInteger("instrumenter.unitSize", 32);
+    public static long heartbeatMillis = Long.getLong("instrumenter.heartbeatMillis", 5000L);
+
+    private static int resolveWorkers(int requested) {
+        if (requested <= 0) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        return requested;
+    }
+}
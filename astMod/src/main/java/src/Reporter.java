@@ -0,0 +1,292 @@
+package src;
+
+import java.util.Arrays;
+import java.util.List;
+
+import src.runtime.CoverageMap;
+import src.runtime.Operands;
+import src.runtime.ProbeSampler;
+import src.runtime.ProbeStore;
+import src.runtime.ReportBuffer;
+import src.runtime.ReportRecord;
+import src.runtime.TraceWriter;
+
+/* Reporter: the runtime entry point called by instrumented code.
+ * Every `if` condition is wrapped in a call to report(), which records the
+ * branch and the evaluated outcome, then hands the outcome back unchanged.
+ * The probe id refers to the probe table written next to the instrumented
+ * code; the values follow that probe's variable list.
+ *
+ * Probes that only read primitive fields use the typed report() overloads:
+ * integral values are passed widened to long, doubles and booleans through
+ * bits(), and `types` describes them (4 bits per value, ReportRecord.TYPE_*).
+ * These never allocate. Other probes use reportObjects().
+ *
+ * Where reports go is chosen with -Dinstrumenter.report.mode, a comma
+ * separated list of:
+ *   stream (default)  every evaluation is streamed to the master;
+ *   store             evaluations are aggregated in the in-process ProbeStore,
+ *                     which is sent to the master in bulk on flush() and exit;
+ *   trace             every evaluation is appended to memory-mapped trace
+ *                     segments (see TraceWriter) for offline analysis;
+ *   coverage          only which branches each test execution took is kept
+ *                     (see CoverageMap); the test harness brackets every
+ *                     execution with beginTest() and endTest(), which sends
+ *                     its bitmap to the master;
+ *   both              stream and store.
+ *
+ * With -Dinstrumenter.sample.after=N, each probe is recorded for its first N
+ * hits and then only one in -Dinstrumenter.sample.every=K (see ProbeSampler).
+ * This applies to every mode, so counts past N are sampled as well.
+ */
+public final class Reporter {
+    public static final int MAX_TYPED_VALUES = 4;
+
+    private static final List<String> MODES = Arrays.asList(
+            System.getProperty("instrumenter.report.mode", "stream").split(","));
+    private static final boolean STREAM = MODES.contains("stream") || MODES.contains("both");
+    private static final boolean STORE = MODES.contains("store") || MODES.contains("both");
+    private static final boolean TRACE = MODES.contains("trace");
+    private static final boolean COVERAGE = MODES.contains("coverage");
+
+    private static final ProbeSampler SAMPLER = ProbeSampler.get();
+    private static final boolean SAMPLE = SAMPLER.enabled();
+
+    static {
+        if (STORE) {
+            Runtime.getRuntime().addShutdownHook(new Thread("probe-store-publish") {
+                @Override
+                public void run() {
+                    ProbeStore.get().publish(2000);
+                }
+            });
+        }
+    }
+
+    private Reporter() {
+    }
+
+    public static boolean report(int probe, boolean outcome) {
+        record(probe, outcome, 0, 0, 0L, 0L, 0L, 0L);
+        return outcome;
+    }
+
+    public static boolean report(int probe, boolean outcome, int types, long v0) {
+        record(probe, outcome, types, 1, v0, 0L, 0L, 0L);
+        return outcome;
+    }
+
+    public static boolean report(int probe, boolean outcome, int types, long v0, long v1) {
+        record(probe, outcome, types, 2, v0, v1, 0L, 0L);
+        return outcome;
+    }
+
+    public static boolean report(int probe, boolean outcome, int types, long v0, long v1, long v2) {
+        record(probe, outcome, types, 3, v0, v1, v2, 0L);
+        return outcome;
+    }
+
+    public static boolean report(int probe, boolean outcome, int types, long v0, long v1, long v2, long v3) {
+        record(probe, outcome, types, 4, v0, v1, v2, v3);
+        return outcome;
+    }
+
+    /* Fallback for probes that read references, or more than MAX_TYPED_VALUES fields. */
+    public static boolean reportObjects(int probe, boolean outcome, Object... values) {
+        if (SAMPLE && !SAMPLER.sample(probe)) {
+            return outcome;
+        }
+        if (STORE) {
+            ProbeStore.get().record(probe, outcome, values);
+        }
+        if (STREAM) {
+            ReportBuffer.get().append(probe, outcome, values);
+        }
+        if (TRACE) {
+            TraceWriter.get().append(probe, outcome, values);
+        }
+        if (COVERAGE) {
+            CoverageMap.get().hit(probe, outcome);
+        }
+        return outcome;
+    }
+
+    private static void record(int probe, boolean outcome, int types, int count, long v0, long v1, long v2,
+            long v3) {
+        if (SAMPLE && !SAMPLER.sample(probe)) {
+            return;
+        }
+        if (STORE) {
+            ProbeStore.get().record(probe, outcome, types, count, v0, v1, v2, v3);
+        }
+        if (STREAM) {
+            ReportBuffer.get().append(probe, outcome, types, count, v0, v1, v2, v3);
+        }
+        if (TRACE) {
+            TraceWriter.get().append(probe, outcome, types, count, v0, v1, v2, v3);
+        }
+        if (COVERAGE) {
+            CoverageMap.get().hit(probe, outcome);
+        }
+    }
+
+    /* Operand capture (see ProbeFilter.captureOperands): a comparison `a < b` in
+     * a condition becomes term(id, operand(a) < operand(b)). Every operand()
+     * returns its argument unchanged, and the overloads keep its static type,
+     * so the comparison means what it did. term() then reports the two
+     * captured values with the comparison's outcome, as a record of its own.
+     * Comparisons that short-circuiting skips are not reported.
+     */
+    public static boolean term(int probe, boolean outcome) {
+        Operands operands = Operands.get();
+        if (operands.size() < 2) {
+            record(probe, outcome, 0, 0, 0L, 0L, 0L, 0L);
+            return outcome;
+        }
+
+        int types = operands.type(1) | (operands.type(0) << 4);
+        long left = operands.value(1);
+        long right = operands.value(0);
+        operands.drop(2);
+
+        record(probe, outcome, types, 2, left, right, 0L, 0L);
+        return outcome;
+    }
+
+    public static int operand(int value) {
+        Operands.get().push(ReportRecord.TYPE_LONG, value);
+        return value;
+    }
+
+    public static long operand(long value) {
+        Operands.get().push(ReportRecord.TYPE_LONG, value);
+        return value;
+    }
+
+    public static short operand(short value) {
+        Operands.get().push(ReportRecord.TYPE_LONG, value);
+        return value;
+    }
+
+    public static byte operand(byte value) {
+        Operands.get().push(ReportRecord.TYPE_LONG, value);
+        return value;
+    }
+
+    public static char operand(char value) {
+        Operands.get().push(ReportRecord.TYPE_LONG, value);
+        return value;
+    }
+
+    public static double operand(double value) {
+        Operands.get().push(ReportRecord.TYPE_DOUBLE, bits(value));
+        return value;
+    }
+
+    public static float operand(float value) {
+        Operands.get().push(ReportRecord.TYPE_DOUBLE, bits(value));
+        return value;
+    }
+
+    public static boolean operand(boolean value) {
+        Operands.get().push(ReportRecord.TYPE_BOOLEAN, bits(value));
+        return value;
+    }
+
+    /* References, including boxed values (recorded as their primitive value). */
+    public static <T> T operand(T value) {
+        Operands.get().push(value);
+        return value;
+    }
+
+    public static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    public static long bits(boolean value) {
+        return value ? 1L : 0L;
+    }
+
+    /* Used by bytecode probes (see src.bytecode.ClassInstrumenter): whether the
+     * conditional jump `opcode` falls through on these operands. The probe
+     * passes the opcode for which that means its part of the if condition
+     * holds, the inverse one for jumps into the then-block. Opcodes are the
+     * JVM's.
+     */
+    public static boolean holds(int opcode, int value) {
+        switch (opcode) {
+            case 153: // ifeq
+                return value != 0;
+            case 154: // ifne
+                return value == 0;
+            case 155: // iflt
+                return value >= 0;
+            case 156: // ifge
+                return value < 0;
+            case 157: // ifgt
+                return value <= 0;
+            default: // ifle
+                return value > 0;
+        }
+    }
+
+    public static boolean holds(int opcode, int a, int b) {
+        switch (opcode) {
+            case 159: // if_icmpeq
+                return a != b;
+            case 160: // if_icmpne
+                return a == b;
+            case 161: // if_icmplt
+                return a >= b;
+            case 162: // if_icmpge
+                return a < b;
+            case 163: // if_icmpgt
+                return a <= b;
+            default: // if_icmple
+                return a > b;
+        }
+    }
+
+    public static boolean holds(int opcode, Object value) {
+        // ifnull (198) or ifnonnull
+        return opcode == 198 ? value != null : value == null;
+    }
+
+    public static boolean holds(int opcode, Object a, Object b) {
+        // if_acmpeq (165) or if_acmpne
+        return opcode == 165 ? a != b : a == b;
+    }
+
+    /* Coverage mode: starts the execution of a test. Branches taken before
+     * (e.g. by class initialization) are dropped.
+     */
+    public static void beginTest() {
+        if (COVERAGE) {
+            CoverageMap.get().reset();
+        }
+    }
+
+    /* Coverage mode: ends the execution of `test` and sends the branches it
+     * took to the master.
+     */
+    public static void endTest(String test) {
+        if (COVERAGE) {
+            CoverageMap.get().publish(test);
+        }
+    }
+
+    /* Pushes out everything buffered by every thread, e.g. at the end of a test.
+     * In store mode this also sends a snapshot of the ProbeStore.
+     */
+    public static void flush() {
+        if (STREAM) {
+            ReportBuffer.flushAll();
+        }
+        if (STORE) {
+            ProbeStore.get().publish(0);
+        }
+        if (TRACE) {
+            TraceWriter.forceAll();
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package src.bytecode;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LineNumberNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.Reporter;
+import src.instrumenters.ProbeFilter;
+import src.instrumenters.ProbeTable;
+import src.metrics.PipelineMetrics;
+import src.runtime.ReportRecord;
+
+/* ClassInstrumenter: the bytecode backend. Inserts the same Reporter probes
+ * as InstrumentingVisitor, but straight into a compiled class, so the result
+ * runs without recompiling anything.
+ *
+ * Every conditional jump that implements an if gets a probe right before it.
+ * The probe duplicates the jump's operands, asks Reporter.holds() whether the
+ * part of the condition the jump tests holds, and reports that outcome with
+ * the fields of the class the condition read. It is straight-line code that
+ * leaves the operand stack as it found it, so the class's existing stack map
+ * frames stay valid and only max stack is recomputed.
+ *
+ * Which way a jump tests its operand depends on where it goes (see
+ * entersBody()). Mostly javac jumps over the then-block when the operand is
+ * false, so falling through means it holds; but e.g. the first operand of
+ * `a || b` jumps into the then-block when `a` is true. Such jumps are probed
+ * with the inverse opcode, so outcome and predicate still read as the source
+ * does.
+ *
+ * The probe table gets the same entries as from source: class, method, line,
+ * predicate and the fields read. Differences to the source backend:
+ *  - a condition with && or || compiles to several jumps, and each gets its
+ *    own probe, with the part of the predicate it tests;
+ *  - the predicate is reconstructed from the bytecode, e.g. `count > limit`,
+ *    with `?` for operands that are not a plain local, field or constant;
+ *  - loop conditions are recognized by the shape javac gives them and are
+ *    skipped, but conditional expressions (a ? b : c) are probed like ifs.
+ */
+public class ClassInstrumenter {
+    private static final Logger logger = LoggerFactory.getLogger(ClassInstrumenter.class.getName());
+
+    private static final String REPORTER = Type.getInternalName(Reporter.class);
+
+    private ClassInstrumenter() {
+    }
+
+    /* Returns the instrumented class, or null if nothing in it needs a probe.
+     * Either way, the probes of `file` are replaced in the probe table.
+     */
+    public static byte[] instrument(byte[] bytes, File file, ProbeTable probes, ProbeFilter filter) {
+        ClassNode node = new ClassNode();
+        new ClassReader(bytes).accept(node, 0);
+
+        ClassProbes found = new ClassProbes(node, probes.fileId(file), filter);
+        for (MethodNode method : node.methods) {
+            found.instrument(method);
+        }
+
+        probes.put(file, found.probes);
+        PipelineMetrics.probes(found.probes.size());
+        if (found.probes.isEmpty()) {
+            return null;
+        }
+
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        node.accept(writer);
+        return writer.toByteArray();
+    }
+
+    /* Source-level class name, as InstrumentingVisitor reports it: the simple
+     * name, with anonymous classes attributed to the class they are in.
+     */
+    static String className(String internalName) {
+        String[] parts = internalName.substring(internalName.lastIndexOf('/') + 1).split("\\$");
+        for (int i = parts.length - 1; i > 0; i--) {
+            if (!parts[i].isEmpty() && !Character.isDigit(parts[i].charAt(0))) {
+                return parts[i];
+            }
+        }
+        return parts[0];
+    }
+
+    /* Source-level method name: constructors are named after their class, and
+     * lambda bodies after the method they were written in.
+     */
+    static String methodName(String name, String className) {
+        if (name.equals("<init>")) {
+            return className;
+        }
+        if (name.startsWith("lambda$")) {
+            int end = name.indexOf('$', "lambda$".length());
+            if (end > "lambda$".length()) {
+                return name.substring("lambda$".length(), end);
+            }
+        }
+        return name;
+    }
+
+    private static class ClassProbes {
+        final ClassNode owner;
+        final int fileId;
+        final ProbeFilter filter;
+        final String className;
+        final String qualifiedName;
+        final List<ProbeTable.Probe> probes = new ArrayList<>();
+        boolean outOfIds = false;
+
+        ClassProbes(ClassNode owner, int fileId, ProbeFilter filter) {
+            this.owner = owner;
+            this.fileId = fileId;
+            this.filter = filter;
+            this.className = className(owner.name);
+            this.qualifiedName = owner.name.replace('/', '.').replace('$', '.');
+        }
+
+        void instrument(MethodNode method) {
+            if (method.instructions.size() == 0 || (method.access & Opcodes.ACC_BRIDGE) != 0) {
+                return;
+            }
+            if ((method.access & Opcodes.ACC_SYNTHETIC) != 0 && !method.name.startsWith("lambda$")) {
+                return;
+            }
+
+            String methodName = methodName(method.name, className);
+            if (!filter.includes(qualifiedName, methodName)) {
+                return;
+            }
+
+            boolean isStatic = (method.access & Opcodes.ACC_STATIC) != 0;
+            AbstractInsnNode[] insns = method.instructions.toArray();
+            Loops loops = new Loops(method.instructions, insns);
+
+            // Settled before any probe goes in, which would shift the indexes.
+            boolean[] intoBody = new boolean[insns.length];
+            for (int i = 0; i < insns.length; i++) {
+                if (insns[i] instanceof JumpInsnNode && operands(insns[i].getOpcode()) > 0) {
+                    intoBody[i] = entersBody(method.instructions, ((JumpInsnNode) insns[i]).label);
+                }
+            }
+
+            // Fields of this class read since the last jump on the current line, by name.
+            TreeMap<String, FieldInsnNode> fields = new TreeMap<>();
+            int line = 0;
+            int selected = 0;
+
+            for (int i = 0; i < insns.length; i++) {
+                AbstractInsnNode insn = insns[i];
+
+                if (insn instanceof LineNumberNode) {
+                    if (((LineNumberNode) insn).line != line) {
+                        line = ((LineNumberNode) insn).line;
+                        fields.clear();
+                    }
+                    continue;
+                }
+
+                if (insn instanceof FieldInsnNode && ((FieldInsnNode) insn).owner.equals(owner.name)) {
+                    FieldInsnNode field = (FieldInsnNode) insn;
+                    // Instance fields only through `this`, which also proves `this`
+                    // is initialized here, so the probe can read the field again.
+                    if (insn.getOpcode() == Opcodes.GETSTATIC
+                            || (insn.getOpcode() == Opcodes.GETFIELD && !isStatic && isThis(previous(insn)))) {
+                        fields.put(field.name, field);
+                    }
+                    continue;
+                }
+
+                if (!(insn instanceof JumpInsnNode) || operands(insn.getOpcode()) == 0) {
+                    continue;
+                }
+
+                boolean skip = loops.isCondition(i)
+                        || (filter.skipLoops() && loops.contains(i))
+                        || (filter.maxProbesPerMethod() > 0 && selected >= filter.maxProbesPerMethod());
+                if (!skip && probes.size() > ProbeTable.MAX_LOCAL) {
+                    if (!outOfIds) {
+                        logger.warn("More than " + (ProbeTable.MAX_LOCAL + 1) + " branches in " + owner.name
+                                + ", skipping the rest.");
+                        outOfIds = true;
+                    }
+                    skip = true;
+                }
+
+                if (!skip) {
+                    int id = ProbeTable.probeId(fileId, probes.size());
+                    int tested = intoBody[i] ? inverse(insn.getOpcode()) : insn.getOpcode();
+                    List<String> variables = new ArrayList<>(fields.keySet());
+                    probes.add(new ProbeTable.Probe(id, line, className, methodName,
+                            Predicates.describe(method, (JumpInsnNode) insn, tested), variables));
+
+                    method.instructions.insertBefore(insn, probe(id, tested, fields));
+                    selected++;
+                }
+                fields.clear();
+            }
+        }
+
+        /* Reports the outcome of the jump, leaving the stack as it was. */
+        private InsnList probe(int id, int opcode, TreeMap<String, FieldInsnNode> fields) {
+            InsnList code = new InsnList();
+
+            // [operands] -> [operands, outcome]
+            boolean references = opcode == Opcodes.IF_ACMPEQ || opcode == Opcodes.IF_ACMPNE
+                    || opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL;
+            String operand = references ? "Ljava/lang/Object;" : "I";
+            if (operands(opcode) == 1) {
+                code.add(new InsnNode(Opcodes.DUP));
+                code.add(push(opcode));
+                code.add(new InsnNode(Opcodes.SWAP));
+                code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REPORTER, "holds", "(I" + operand + ")Z", false));
+            } else {
+                code.add(new InsnNode(Opcodes.DUP2));
+                code.add(push(opcode));
+                code.add(new InsnNode(Opcodes.DUP_X2));
+                code.add(new InsnNode(Opcodes.POP));
+                code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REPORTER, "holds",
+                        "(I" + operand + operand + ")Z", false));
+            }
+
+            // -> [operands, id, outcome]
+            code.add(push(id));
+            code.add(new InsnNode(Opcodes.SWAP));
+
+            int types = 0;
+            boolean typed = fields.size() <= Reporter.MAX_TYPED_VALUES;
+            int i = 0;
+            for (FieldInsnNode field : fields.values()) {
+                int type = valueType(field.desc);
+                typed &= type != ReportRecord.TYPE_REFERENCE;
+                types |= type << (4 * i++);
+            }
+
+            StringBuilder descriptor = new StringBuilder("(IZ");
+            if (typed) {
+                if (!fields.isEmpty()) {
+                    code.add(push(types));
+                    descriptor.append('I');
+                }
+                for (FieldInsnNode field : fields.values()) {
+                    load(code, field);
+                    widen(code, field.desc);
+                    descriptor.append('J');
+                }
+                code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REPORTER, "report", descriptor + ")Z", false));
+            } else {
+                code.add(push(fields.size()));
+                code.add(new TypeInsnNode(Opcodes.ANEWARRAY, "java/lang/Object"));
+                i = 0;
+                for (FieldInsnNode field : fields.values()) {
+                    code.add(new InsnNode(Opcodes.DUP));
+                    code.add(push(i++));
+                    load(code, field);
+                    box(code, field.desc);
+                    code.add(new InsnNode(Opcodes.AASTORE));
+                }
+                code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REPORTER, "reportObjects",
+                        "(IZ[Ljava/lang/Object;)Z", false));
+            }
+
+            // Reporter returns the outcome, which the original jump recomputes.
+            code.add(new InsnNode(Opcodes.POP));
+            return code;
+        }
+
+        private void load(InsnList code, FieldInsnNode field) {
+            if (field.getOpcode() == Opcodes.GETSTATIC) {
+                code.add(new FieldInsnNode(Opcodes.GETSTATIC, field.owner, field.name, field.desc));
+            } else {
+                code.add(new VarInsnNode(Opcodes.ALOAD, 0));
+                code.add(new FieldInsnNode(Opcodes.GETFIELD, field.owner, field.name, field.desc));
+            }
+        }
+    }
+
+    /* Whether a jump to `label` goes into the then-block, i.e. is taken when
+     * the operand it tests holds. That is the place the last jump of a && /
+     * || chain falls through to, or any place the jump before it falls
+     * through to where that jump's own target means the opposite: in
+     * `(a || b) && c`, `a` jumps to `c` when true. Anything else (the else
+     * branch, the end of the if, backward jumps) is taken when it does not.
+     */
+    static boolean entersBody(InsnList instructions, LabelNode label) {
+        AbstractInsnNode before = previous(label);
+        if (!(before instanceof JumpInsnNode) || operands(before.getOpcode()) == 0) {
+            return false;
+        }
+        JumpInsnNode jump = (JumpInsnNode) before;
+        if (instructions.indexOf(jump.label) <= instructions.indexOf(label)) {
+            // A loop at the end of the then-block, or an empty one.
+            return false;
+        }
+        return !entersBody(instructions, jump.label);
+    }
+
+    /* The conditional jump taken exactly when `opcode` is not. */
+    static int inverse(int opcode) {
+        if (opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL) {
+            return opcode == Opcodes.IFNULL ? Opcodes.IFNONNULL : Opcodes.IFNULL;
+        }
+        // ifeq/ifne, iflt/ifge, ..., if_acmpeq/if_acmpne come in pairs.
+        return Opcodes.IFEQ + ((opcode - Opcodes.IFEQ) ^ 1);
+    }
+
+    /* Number of stack operands of a conditional jump, 0 for anything else. */
+    static int operands(int opcode) {
+        switch (opcode) {
+            case Opcodes.IFEQ:
+            case Opcodes.IFNE:
+            case Opcodes.IFLT:
+            case Opcodes.IFGE:
+            case Opcodes.IFGT:
+            case Opcodes.IFLE:
+            case Opcodes.IFNULL:
+            case Opcodes.IFNONNULL:
+                return 1;
+            case Opcodes.IF_ICMPEQ:
+            case Opcodes.IF_ICMPNE:
+            case Opcodes.IF_ICMPLT:
+            case Opcodes.IF_ICMPGE:
+            case Opcodes.IF_ICMPGT:
+            case Opcodes.IF_ICMPLE:
+            case Opcodes.IF_ACMPEQ:
+            case Opcodes.IF_ACMPNE:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    static int valueType(String desc) {
+        switch (desc.charAt(0)) {
+            case 'I':
+            case 'J':
+            case 'S':
+            case 'B':
+            case 'C':
+                return ReportRecord.TYPE_LONG;
+            case 'D':
+            case 'F':
+                return ReportRecord.TYPE_DOUBLE;
+            case 'Z':
+                return ReportRecord.TYPE_BOOLEAN;
+            default:
+                return ReportRecord.TYPE_REFERENCE;
+        }
+    }
+
+    /* Turns a primitive field value into the long the typed report() takes. */
+    private static void widen(InsnList code, String desc) {
+        switch (desc.charAt(0)) {
+            case 'J':
+                break;
+            case 'F':
+                code.add(new InsnNode(Opcodes.F2D));
+                code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REPORTER, "bits", "(D)J", false));
+                break;
+            case 'D':
+                code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REPORTER, "bits", "(D)J", false));
+                break;
+            case 'Z':
+                code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, REPORTER, "bits", "(Z)J", false));
+                break;
+            default:
+                code.add(new InsnNode(Opcodes.I2L));
+                break;
+        }
+    }
+
+    private static void box(InsnList code, String desc) {
+        Type type = Type.getType(desc);
+        if (type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY) {
+            return;
+        }
+
+        String boxed;
+        switch (type.getSort()) {
+            case Type.BOOLEAN:
+                boxed = "java/lang/Boolean";
+                break;
+            case Type.CHAR:
+                boxed = "java/lang/Character";
+                break;
+            case Type.BYTE:
+                boxed = "java/lang/Byte";
+                break;
+            case Type.SHORT:
+                boxed = "java/lang/Short";
+                break;
+            case Type.INT:
+                boxed = "java/lang/Integer";
+                break;
+            case Type.FLOAT:
+                boxed = "java/lang/Float";
+                break;
+            case Type.LONG:
+                boxed = "java/lang/Long";
+                break;
+            default:
+                boxed = "java/lang/Double";
+                break;
+        }
+        code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, boxed, "valueOf", "(" + desc + ")L" + boxed + ";", false));
+    }
+
+    static AbstractInsnNode push(int value) {
+        if (value >= -1 && value <= 5) {
+            return new InsnNode(Opcodes.ICONST_0 + value);
+        }
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            return new IntInsnNode(Opcodes.BIPUSH, value);
+        }
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            return new IntInsnNode(Opcodes.SIPUSH, value);
+        }
+        return new LdcInsnNode(value);
+    }
+
+    /* The closest instruction before `insn`, skipping labels, lines and frames. */
+    static AbstractInsnNode previous(AbstractInsnNode insn) {
+        AbstractInsnNode rval = insn.getPrevious();
+        while (rval != null && rval.getOpcode() < 0) {
+            rval = rval.getPrevious();
+        }
+        return rval;
+    }
+
+    static boolean isThis(AbstractInsnNode insn) {
+        return insn != null && insn.getOpcode() == Opcodes.ALOAD && ((VarInsnNode) insn).var == 0;
+    }
+
+    /* Loops of a method, found from its backward jumps. */
+    private static class Loops {
+        // [first, last] instruction index of every loop.
+        private final List<int[]> ranges = new ArrayList<>();
+        private final boolean[] conditions;
+
+        Loops(InsnList instructions, AbstractInsnNode[] insns) {
+            conditions = new boolean[insns.length];
+
+            for (int i = 0; i < insns.length; i++) {
+                if (!(insns[i] instanceof JumpInsnNode)) {
+                    continue;
+                }
+                JumpInsnNode jump = (JumpInsnNode) insns[i];
+                int target = instructions.indexOf(jump.label);
+                if (target > i) {
+                    continue;
+                }
+
+                ranges.add(new int[] { target, i });
+
+                if (jump.getOpcode() != Opcodes.GOTO) {
+                    // do/while, or a loop whose condition the compiler put at the bottom.
+                    conditions[i] = true;
+                    continue;
+                }
+
+                // javac's while and for: the condition at the top jumps to just past
+                // the GOTO that closes the loop.
+                LabelNode exit = nextLabel(insns[i]);
+                for (int j = target; j < i && exit != null; j++) {
+                    if (insns[j] instanceof JumpInsnNode && ((JumpInsnNode) insns[j]).label == exit) {
+                        conditions[j] = true;
+                    }
+                }
+            }
+        }
+
+        boolean isCondition(int index) {
+            return conditions[index];
+        }
+
+        boolean contains(int index) {
+            for (int[] range : ranges) {
+                if (range[0] <= index && index <= range[1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static LabelNode nextLabel(AbstractInsnNode insn) {
+            for (AbstractInsnNode next = insn.getNext(); next != null; next = next.getNext()) {
+                if (next instanceof LabelNode) {
+                    return (LabelNode) next;
+                }
+                if (next.getOpcode() >= 0) {
+                    return null;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package src.bytecode;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LocalVariableNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+/* Predicates: source-like text for the condition a conditional jump tests,
+ * for the probe table. Operands are followed back through the instructions
+ * that pushed them as long as those are loads of locals, fields and
+ * constants, simple calls, array lengths and instanceof; anything else is `?`.
+ * The text is the condition under which a jump falls through. The
+ * ClassInstrumenter passes the inverse opcode for jumps into the then-block
+ * (see ClassInstrumenter.entersBody()), so either way it is the part of the
+ * if condition as written.
+ */
+final class Predicates {
+    private static final Operand UNKNOWN = new Operand("?", null, false);
+
+    private Predicates() {
+    }
+
+    private static class Operand {
+        final String text;
+        // First instruction that pushes this operand, null if not known.
+        final AbstractInsnNode start;
+        final boolean bool;
+
+        Operand(String text, AbstractInsnNode start, boolean bool) {
+            this.text = text;
+            this.start = start;
+            this.bool = bool;
+        }
+    }
+
+    /* The condition under which `opcode`, in place of the opcode of `jump`,
+     * would fall through on the operands of `jump`.
+     */
+    static String describe(MethodNode method, JumpInsnNode jump, int opcode) {
+        AbstractInsnNode top = ClassInstrumenter.previous(jump);
+
+        if (opcode == Opcodes.IFNULL || opcode == Opcodes.IFNONNULL) {
+            return operand(method, top).text + (opcode == Opcodes.IFNULL ? " != null" : " == null");
+        }
+
+        if (ClassInstrumenter.operands(opcode) == 2) {
+            return comparison(method, top, operator(opcode));
+        }
+
+        int compare = top == null ? -1 : top.getOpcode();
+        if (compare == Opcodes.LCMP || (compare >= Opcodes.FCMPL && compare <= Opcodes.DCMPG)) {
+            return comparison(method, ClassInstrumenter.previous(top), operator(opcode));
+        }
+
+        Operand value = operand(method, top);
+        if (value.bool && opcode == Opcodes.IFEQ) {
+            return value.text;
+        }
+        if (value.bool && opcode == Opcodes.IFNE) {
+            return "!" + value.text;
+        }
+        return value.text + " " + operator(opcode) + " 0";
+    }
+
+    private static String comparison(MethodNode method, AbstractInsnNode top, String operator) {
+        Operand right = operand(method, top);
+        Operand left = right.start == null ? UNKNOWN : operand(method, ClassInstrumenter.previous(right.start));
+        return left.text + " " + operator + " " + right.text;
+    }
+
+    /* The comparison under which the jump falls through. */
+    private static String operator(int opcode) {
+        switch (opcode) {
+            case Opcodes.IFEQ:
+            case Opcodes.IF_ICMPEQ:
+            case Opcodes.IF_ACMPEQ:
+                return "!=";
+            case Opcodes.IFNE:
+            case Opcodes.IF_ICMPNE:
+            case Opcodes.IF_ACMPNE:
+                return "==";
+            case Opcodes.IFLT:
+            case Opcodes.IF_ICMPLT:
+                return ">=";
+            case Opcodes.IFGE:
+            case Opcodes.IF_ICMPGE:
+                return "<";
+            case Opcodes.IFGT:
+            case Opcodes.IF_ICMPGT:
+                return "<=";
+            default:
+                return ">";
+        }
+    }
+
+    private static Operand operand(MethodNode method, AbstractInsnNode insn) {
+        if (insn == null) {
+            return UNKNOWN;
+        }
+
+        int opcode = insn.getOpcode();
+        switch (opcode) {
+            case Opcodes.ACONST_NULL:
+                return new Operand("null", insn, false);
+            case Opcodes.ICONST_M1:
+            case Opcodes.ICONST_0:
+            case Opcodes.ICONST_1:
+            case Opcodes.ICONST_2:
+            case Opcodes.ICONST_3:
+            case Opcodes.ICONST_4:
+            case Opcodes.ICONST_5:
+                return new Operand(Integer.toString(opcode - Opcodes.ICONST_0), insn, false);
+            case Opcodes.LCONST_0:
+            case Opcodes.LCONST_1:
+                return new Operand((opcode - Opcodes.LCONST_0) + "L", insn, false);
+            case Opcodes.FCONST_0:
+            case Opcodes.FCONST_1:
+            case Opcodes.FCONST_2:
+                return new Operand((opcode - Opcodes.FCONST_0) + ".0f", insn, false);
+            case Opcodes.DCONST_0:
+            case Opcodes.DCONST_1:
+                return new Operand((opcode - Opcodes.DCONST_0) + ".0", insn, false);
+            case Opcodes.BIPUSH:
+            case Opcodes.SIPUSH:
+                return new Operand(Integer.toString(((IntInsnNode) insn).operand), insn, false);
+            case Opcodes.LDC:
+                Object constant = ((LdcInsnNode) insn).cst;
+                if (constant instanceof String) {
+                    return new Operand("\"" + constant + "\"", insn, false);
+                }
+                return new Operand(constant.toString(), insn, false);
+            case Opcodes.ILOAD:
+            case Opcodes.LLOAD:
+            case Opcodes.FLOAD:
+            case Opcodes.DLOAD:
+            case Opcodes.ALOAD:
+                return local(method, (VarInsnNode) insn);
+            case Opcodes.GETSTATIC:
+                FieldInsnNode staticField = (FieldInsnNode) insn;
+                return new Operand(staticField.name, insn, staticField.desc.equals("Z"));
+            case Opcodes.GETFIELD: {
+                FieldInsnNode field = (FieldInsnNode) insn;
+                AbstractInsnNode previous = ClassInstrumenter.previous(insn);
+                if (ClassInstrumenter.isThis(previous) && (method.access & Opcodes.ACC_STATIC) == 0) {
+                    return new Operand(field.name, previous, field.desc.equals("Z"));
+                }
+                Operand object = operand(method, previous);
+                return new Operand(object.text + "." + field.name, object.start, field.desc.equals("Z"));
+            }
+            case Opcodes.ARRAYLENGTH: {
+                Operand array = operand(method, ClassInstrumenter.previous(insn));
+                return new Operand(array.text + ".length", array.start, false);
+            }
+            case Opcodes.INSTANCEOF: {
+                Operand object = operand(method, ClassInstrumenter.previous(insn));
+                String type = ((TypeInsnNode) insn).desc;
+                return new Operand(object.text + " instanceof " + type.substring(type.lastIndexOf('/') + 1),
+                        object.start, true);
+            }
+            case Opcodes.INVOKEVIRTUAL:
+            case Opcodes.INVOKEINTERFACE:
+            case Opcodes.INVOKESTATIC:
+                return call(method, (MethodInsnNode) insn);
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    private static Operand call(MethodNode method, MethodInsnNode call) {
+        boolean bool = Type.getReturnType(call.desc) == Type.BOOLEAN_TYPE;
+        boolean noArguments = call.desc.startsWith("()");
+
+        if (!noArguments) {
+            // The arguments are not followed, so neither is the receiver.
+            return new Operand(call.name + "(...)", null, bool);
+        }
+        if (call.getOpcode() == Opcodes.INVOKESTATIC) {
+            return new Operand(call.name + "()", call, bool);
+        }
+
+        AbstractInsnNode previous = ClassInstrumenter.previous(call);
+        if (ClassInstrumenter.isThis(previous) && (method.access & Opcodes.ACC_STATIC) == 0) {
+            return new Operand(call.name + "()", previous, bool);
+        }
+        Operand receiver = operand(method, previous);
+        return new Operand(receiver.text + "." + call.name + "()", receiver.start, bool);
+    }
+
+    private static Operand local(MethodNode method, VarInsnNode load) {
+        if (method.localVariables != null) {
+            int index = method.instructions.indexOf(load);
+            for (LocalVariableNode local : method.localVariables) {
+                if (local.index == load.var && method.instructions.indexOf(local.start) <= index
+                        && index <= method.instructions.indexOf(local.end)) {
+                    return new Operand(local.name, load, local.desc.equals("Z"));
+                }
+            }
+        }
+
+        boolean isThis = load.var == 0 && (method.access & Opcodes.ACC_STATIC) == 0;
+        return new Operand(isThis ? "this" : "local" + load.var, load, false);
+    }
+}
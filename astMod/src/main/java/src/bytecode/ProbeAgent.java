@@ -0,0 +1,88 @@
+package src.bytecode;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+import java.util.Collections;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.Options;
+import src.instrumenters.ProbeFilter;
+import src.instrumenters.ProbeTable;
+
+/* ProbeAgent: the bytecode backend as a Java agent, instrumenting classes as
+ * they are loaded, so tests can run against the project's own build output:
+ *
+ *   java -javaagent:astMod.jar -Dinstrumenter.include=com.example.** ...
+ *
+ * The usual filter options apply. JDK classes, and the instrumenter and its
+ * dependencies, are never instrumented. File ids are handed out in load
+ * order, keyed by the class's internal name relative to the working
+ * directory (e.g. com/example/Parser.class), and the probe table is written
+ * to -Dinstrumenter.agent.probes when the JVM exits.
+ */
+public class ProbeAgent implements ClassFileTransformer {
+    private static final Logger logger = LoggerFactory.getLogger(ProbeAgent.class.getName());
+
+    private static final String[] SKIPPED = { "java/", "javax/", "jdk/", "sun/", "com/sun/", "src/",
+            "org/objectweb/asm/", "org/slf4j/" };
+
+    private final Path root = Paths.get("").toAbsolutePath();
+    private final ProbeTable probes = new ProbeTable(root);
+    private final ProbeFilter filter = new ProbeFilter(Options.include, Options.exclude,
+            Options.maxProbesPerMethod, Options.skipLoops);
+
+    public static void premain(String arguments, Instrumentation instrumentation) {
+        final ProbeAgent agent = new ProbeAgent();
+        instrumentation.addTransformer(agent);
+
+        Runtime.getRuntime().addShutdownHook(new Thread("probe-table-save") {
+            @Override
+            public void run() {
+                agent.save(Paths.get(Options.agentProbes));
+            }
+        });
+        logger.info("Instrumenting classes on load with filter " + agent.filter);
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> redefined,
+            ProtectionDomain protectionDomain, byte[] bytes) {
+        if (loader == null || className == null || redefined != null || isSkipped(className)) {
+            return null;
+        }
+
+        // A class that fails to instrument is loaded as it is.
+        try {
+            File file = new File(root.toFile(), className + ".class");
+            probes.assignFileIds(Collections.singletonList(file));
+            return ClassInstrumenter.instrument(bytes, file, probes, filter);
+        } catch (Throwable t) {
+            logger.error("Could not instrument " + className + ". Stack trace: " + t);
+            return null;
+        }
+    }
+
+    private static boolean isSkipped(String className) {
+        for (String prefix : SKIPPED) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void save(Path location) {
+        try {
+            probes.save(location.toAbsolutePath());
+        } catch (IOException e) {
+            logger.error("Could not write the probe table. Stack trace: " + e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package src.collector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import src.runtime.CoverageBitmap;
+
+/* CoverageStore: the CoverageBitmaps of every test execution the runners
+ * sent, kept in memory in their sparse form, with two indexes on top:
+ *
+ *   - for every branch, the executions that took it, in arrival order, so
+ *     "which tests cover branch X" is one hash lookup;
+ *   - the union of everything covered so far, and what the current
+ *     generation added to it, so "new coverage since the last generation"
+ *     needs no pass over the tests.
+ *
+ * A generation is whatever the caller makes it (e.g. one EvoSuite
+ * generation); nextGeneration() closes the current one.
+ */
+public class CoverageStore {
+    private final List<CoverageBitmap> executions = new ArrayList<>();
+    private final Map<Integer, Executions> byBranch = new HashMap<>();
+
+    // Word index -> covered bits, over all executions and this generation.
+    private final Map<Integer, Long> covered = new HashMap<>();
+    private Map<Integer, Long> generationNew = new HashMap<>();
+    private int generation = 0;
+
+    private static final class Executions {
+        int[] ids = new int[4];
+        int size = 0;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    /* Adds one execution. Returns how many branches it covered first. */
+    public synchronized int add(CoverageBitmap bitmap) {
+        int id = executions.size();
+        executions.add(bitmap);
+
+        int added = 0;
+        for (int i = 0; i < bitmap.words(); i++) {
+            int index = bitmap.index(i);
+            long word = bitmap.word(i);
+
+            long before = covered.getOrDefault(index, 0L);
+            long fresh = word & ~before;
+            if (fresh != 0) {
+                covered.put(index, before | fresh);
+                generationNew.merge(index, fresh, (a, b) -> a | b);
+                added += Long.bitCount(fresh);
+            }
+
+            while (word != 0) {
+                int bit = (index << 6) | Long.numberOfTrailingZeros(word);
+                Executions tests = byBranch.get(bit);
+                if (tests == null) {
+                    tests = new Executions();
+                    byBranch.put(bit, tests);
+                }
+                tests.add(id);
+                word &= word - 1;
+            }
+        }
+        return added;
+    }
+
+    /* The tests whose executions took `outcome` at `probe`, first seen first. */
+    public synchronized Set<String> testsCovering(int probe, boolean outcome) {
+        Set<String> rval = new LinkedHashSet<>();
+        Executions tests = byBranch.get(CoverageBitmap.bit(probe, outcome));
+        if (tests != null) {
+            for (int i = 0; i < tests.size; i++) {
+                rval.add(executions.get(tests.ids[i]).test());
+            }
+        }
+        return rval;
+    }
+
+    public synchronized boolean isCovered(int probe, boolean outcome) {
+        return byBranch.containsKey(CoverageBitmap.bit(probe, outcome));
+    }
+
+    /* Branches covered for the first time in the current generation. */
+    public synchronized CoverageBitmap newCoverage() {
+        return toBitmap("generation-" + generation, generationNew);
+    }
+
+    /* Closes the current generation, returning what it newly covered. */
+    public synchronized CoverageBitmap nextGeneration() {
+        CoverageBitmap rval = newCoverage();
+        generationNew = new HashMap<>();
+        generation++;
+        return rval;
+    }
+
+    /* Everything covered by any execution so far. */
+    public synchronized CoverageBitmap covered() {
+        return toBitmap("all", covered);
+    }
+
+    public synchronized int generation() {
+        return generation;
+    }
+
+    public synchronized int executions() {
+        return executions.size();
+    }
+
+    public synchronized int branchesCovered() {
+        return byBranch.size();
+    }
+
+    private static CoverageBitmap toBitmap(String name, Map<Integer, Long> words) {
+        int[] indexes = new int[words.size()];
+        int n = 0;
+        for (int index : words.keySet()) {
+            indexes[n++] = index;
+        }
+        Arrays.sort(indexes);
+
+        long[] values = new long[indexes.length];
+        for (int i = 0; i < indexes.length; i++) {
+            values[i] = words.get(indexes[i]);
+        }
+        return new CoverageBitmap(name, indexes, values);
+    }
+}
@@ -0,0 +1,129 @@
+package src.collector;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import src.runtime.ProbeStore;
+import src.runtime.ReportRecord;
+import src.runtime.ValueProfile;
+
+/* ProfileSnapshot: the master side view of a ProbeStore snapshot, see
+ * ProbeStore.writeSnapshot() for the encoding. Snapshots of several runners
+ * can be merged: hits are deltas and add up, and distinct counts merge
+ * their HyperLogLog registers, so the estimate is of the union of values.
+ */
+public class ProfileSnapshot {
+    public static class Value {
+        public int type;
+        public long min;
+        public long max;
+        long[] registers;
+
+        /* Estimated number of distinct values. */
+        public long distinct() {
+            return ValueProfile.estimate(registers);
+        }
+
+        Value copy() {
+            Value rval = new Value();
+            rval.type = type;
+            rval.min = min;
+            rval.max = max;
+            rval.registers = registers.clone();
+            return rval;
+        }
+    }
+
+    public static class Probe {
+        public int id;
+        public long trueHits;
+        public long falseHits;
+        public int types;
+        public Value[] values;
+
+        Probe copy() {
+            Probe rval = new Probe();
+            rval.id = id;
+            rval.trueHits = trueHits;
+            rval.falseHits = falseHits;
+            rval.types = types;
+            rval.values = new Value[values.length];
+            for (int v = 0; v < values.length; v++) {
+                rval.values[v] = values[v].copy();
+            }
+            return rval;
+        }
+    }
+
+    private final Map<Integer, Probe> probes = new TreeMap<>();
+
+    public static ProfileSnapshot read(ByteBuffer buffer) {
+        if (buffer.getInt() != ProbeStore.SNAPSHOT_MAGIC) {
+            throw new IllegalArgumentException("Not a probe store snapshot");
+        }
+
+        ProfileSnapshot snapshot = new ProfileSnapshot();
+        int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            Probe probe = new Probe();
+            probe.id = buffer.getInt();
+            probe.trueHits = buffer.getLong();
+            probe.falseHits = buffer.getLong();
+            probe.types = buffer.getInt();
+            probe.values = new Value[buffer.getInt()];
+            for (int v = 0; v < probe.values.length; v++) {
+                Value value = new Value();
+                value.type = (probe.types >>> (4 * v)) & 0xF;
+                value.min = buffer.getLong();
+                value.max = buffer.getLong();
+                value.registers = new long[ValueProfile.REGISTER_WORDS];
+                for (int w = 0; w < value.registers.length; w++) {
+                    value.registers[w] = buffer.getLong();
+                }
+                probe.values[v] = value;
+            }
+            snapshot.probes.put(probe.id, probe);
+        }
+        return snapshot;
+    }
+
+    public synchronized void merge(ProfileSnapshot other) {
+        for (Probe probe : other.probes()) {
+            Probe mine = probes.get(probe.id);
+            if (mine == null) {
+                // A copy, so later merges do not change `other`.
+                probes.put(probe.id, probe.copy());
+                continue;
+            }
+
+            mine.trueHits += probe.trueHits;
+            mine.falseHits += probe.falseHits;
+            for (int v = 0; v < Math.min(mine.values.length, probe.values.length); v++) {
+                Value a = mine.values[v];
+                Value b = probe.values[v];
+                if (a.type == ReportRecord.TYPE_DOUBLE) {
+                    a.min = Double.longBitsToDouble(b.min) < Double.longBitsToDouble(a.min) ? b.min : a.min;
+                    a.max = Double.longBitsToDouble(b.max) > Double.longBitsToDouble(a.max) ? b.max : a.max;
+                } else {
+                    a.min = Math.min(a.min, b.min);
+                    a.max = Math.max(a.max, b.max);
+                }
+                ValueProfile.mergeRegisters(a.registers, b.registers);
+            }
+        }
+    }
+
+    public synchronized Collection<Probe> probes() {
+        return probes.values();
+    }
+
+    public synchronized Probe probe(int id) {
+        return probes.get(id);
+    }
+
+    public synchronized int size() {
+        return probes.size();
+    }
+}
@@ -0,0 +1,256 @@
+package src.collector;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.runtime.CoverageBitmap;
+import src.runtime.ReportRecord;
+
+/* ReportCollector: the master side of the branch report transport.
+ *
+ * Instrumented JVMs connect over a local socket and stream batches of
+ * ReportRecords. One reader thread per connection pulls whole batches off the
+ * socket into a bounded queue, and a single ingest thread hands every record
+ * to the registered listeners. When the ingest thread falls behind, readers
+ * block on the full queue and stop draining their sockets, which in turn
+ * blocks the senders.
+ */
+public class ReportCollector {
+    final static Logger logger = LoggerFactory.getLogger("ReportCollector");
+
+    private final int port;
+    private final BlockingQueue<ByteBuffer> queue;
+    private final List<ReportListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong records = new AtomicLong();
+
+    private ServerSocketChannel server;
+    private volatile boolean running = false;
+
+    public ReportCollector(int port, int queueCapacity) {
+        this.port = port;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    public void addListener(ReportListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", port));
+        running = true;
+
+        startDaemon("report-acceptor", new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+        startDaemon("report-ingest", new Runnable() {
+            @Override
+            public void run() {
+                ingestLoop();
+            }
+        });
+
+        logger.info("Collecting branch reports on port " + port);
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            logger.error("Could not close the report collector socket. " + e);
+        }
+    }
+
+    /* Ingests a batch that did not come through a socket (e.g. the RMI path).
+     * Blocks while the queue is full, like the socket readers do.
+     */
+    public void ingest(ByteBuffer batch) throws InterruptedException {
+        queue.put(batch);
+    }
+
+    public long batchesReceived() {
+        return batches.get();
+    }
+
+    public long recordsReceived() {
+        return records.get();
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final SocketChannel client = server.accept();
+                logger.info("Report stream connected from " + client.getRemoteAddress());
+
+                startDaemon("report-reader", new Runnable() {
+                    @Override
+                    public void run() {
+                        readLoop(client);
+                    }
+                });
+            } catch (IOException e) {
+                if (running) {
+                    logger.error("Could not accept a report stream. " + e);
+                }
+            }
+        }
+    }
+
+    private void readLoop(SocketChannel client) {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            readFully(client, header);
+            if (header.getInt(0) != ReportRecord.MAGIC || header.getInt(4) != ReportRecord.VERSION) {
+                logger.error("Dropping report stream with an unknown header.");
+                return;
+            }
+
+            ByteBuffer count = ByteBuffer.allocate(ReportRecord.BATCH_HEADER);
+            while (running) {
+                count.clear();
+                readFully(client, count);
+
+                int n = count.getInt(0);
+                if (n == ReportRecord.SNAPSHOT_FRAME) {
+                    readSnapshot(client);
+                    continue;
+                }
+                if (n == ReportRecord.COVERAGE_FRAME) {
+                    readCoverage(client);
+                    continue;
+                }
+                if (n < 0 || n > ReportRecord.MAX_BATCH_RECORDS) {
+                    logger.error("Dropping report stream with a corrupt batch of " + n + " records.");
+                    return;
+                }
+
+                ByteBuffer batch = ByteBuffer.allocate(n * ReportRecord.SIZE);
+                readFully(client, batch);
+                batch.flip();
+
+                queue.put(batch);
+            }
+        } catch (EOFException e) {
+            logger.info("Report stream closed.");
+        } catch (IOException e) {
+            logger.error("Report stream failed. " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+        }
+    }
+
+    /* Snapshots are rare and already aggregated, so they skip the queue and go
+     * to the listeners straight from the reader thread.
+     */
+    private void readSnapshot(SocketChannel client) throws IOException {
+        ProfileSnapshot snapshot = ProfileSnapshot.read(readFrame(client));
+        logger.info("Received a profile snapshot of " + snapshot.size() + " probes");
+        for (ReportListener listener : listeners) {
+            try {
+                listener.onSnapshot(snapshot);
+            } catch (RuntimeException e) {
+                logger.error("Report listener failed. " + e);
+            }
+        }
+    }
+
+    /* Coverage bitmaps come once per test execution, not per branch, so they
+     * take the same route as snapshots.
+     */
+    private void readCoverage(SocketChannel client) throws IOException {
+        CoverageBitmap coverage = CoverageBitmap.decode(readFrame(client));
+        for (ReportListener listener : listeners) {
+            try {
+                listener.onCoverage(coverage);
+            } catch (RuntimeException e) {
+                logger.error("Report listener failed. " + e);
+            }
+        }
+    }
+
+    /* A corrupt or hostile length would make us allocate whatever it says, so
+     * anything outside what ReportSender sends ends the stream.
+     */
+    private static ByteBuffer readFrame(SocketChannel client) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(client, length);
+
+        int size = length.getInt(0);
+        if (size < 0 || size > ReportRecord.MAX_FRAME) {
+            throw new IOException("corrupt frame of " + size + " bytes");
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        readFully(client, frame);
+        frame.flip();
+        return frame;
+    }
+
+    private void ingestLoop() {
+        while (running) {
+            ByteBuffer batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            int n = batch.limit() / ReportRecord.SIZE;
+            for (int i = 0; i < n; i++) {
+                int offset = i * ReportRecord.SIZE;
+                for (ReportListener listener : listeners) {
+                    try {
+                        listener.onRecord(batch, offset);
+                    } catch (RuntimeException e) {
+                        logger.error("Report listener failed. " + e);
+                    }
+                }
+            }
+
+            batches.incrementAndGet();
+            records.addAndGet(n);
+        }
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void startDaemon(String name, Runnable body) {
+        Thread thread = new Thread(body, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,21 @@
+package src.collector;
+
+import java.nio.ByteBuffer;
+
+import src.runtime.CoverageBitmap;
+
+/* ReportListener: consumer of the records ingested by a ReportCollector.
+ * Records are handed out in place; use the ReportRecord accessors with the
+ * given offset to read them. The buffer must not be kept after the call.
+ */
+public interface ReportListener {
+    void onRecord(ByteBuffer batch, int offset);
+
+    /* Called with every ProbeStore snapshot a runner sends. */
+    default void onSnapshot(ProfileSnapshot snapshot) {
+    }
+
+    /* Called with the coverage of every test execution a runner finishes. */
+    default void onCoverage(CoverageBitmap coverage) {
+    }
+}
@@ -0,0 +1,184 @@
+package src.collector;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import src.runtime.TraceFormat;
+
+/* TraceReader: scans trace segments written by TraceWriter (see TraceFormat
+ * for the layout). Segments are mapped read-only and decoded in place; the
+ * visitor gets the values in a reused array, so scanning does not allocate
+ * per record.
+ */
+public class TraceReader {
+    public interface Visitor {
+        /* `values` holds `count` decoded raw values (ReportRecord bit layout),
+         * and is only valid during the call.
+         */
+        void onRecord(int probe, boolean outcome, int types, int count, long[] values);
+    }
+
+    public static class Header {
+        public long created;
+        public long pid;
+        public int writer;
+        public int segment;
+        public long probeTableSize;
+        public long probeTableModified;
+        public String probeTablePath;
+
+        /* True if the probe table on disk is still the one this segment refers to. */
+        public boolean matchesProbeTable() {
+            File table = new File(probeTablePath);
+            return table.length() == probeTableSize && table.lastModified() == probeTableModified;
+        }
+    }
+
+    /* Segments of a trace directory, ordered by process, writer and segment index. */
+    public static List<Path> segments(Path directory) throws IOException {
+        List<Path> rval = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + TraceFormat.SUFFIX)) {
+            for (Path path : stream) {
+                rval.add(path);
+            }
+        }
+        Collections.sort(rval, (a, b) -> compareSegments(a.getFileName().toString(), b.getFileName().toString()));
+        return rval;
+    }
+
+    public static Header readHeader(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, TraceFormat.HEADER_SIZE);
+            return header(buffer, segment);
+        }
+    }
+
+    /* Scans one segment and returns the number of records. */
+    public static long scan(Path segment, Visitor visitor) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int headerSize = header(buffer, segment) == null ? 0 : buffer.getShort(6);
+
+            long[] values = new long[8];
+            long records = 0;
+            int position = headerSize;
+            int limit = buffer.limit();
+
+            while (position < limit) {
+                int length = buffer.get(position) & 0xFF;
+                if (length == 0) {
+                    break; // End of data, or a record cut short by a crash.
+                }
+
+                int p = position + 1;
+                int end = p + length;
+
+                long probe = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buffer.get(p++);
+                    probe |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+
+                int flags = buffer.get(p++);
+                boolean outcome = (flags >>> 4) != 0;
+                int count = flags & 0xF;
+
+                int types = 0;
+                if (count > 0) {
+                    long t = 0;
+                    shift = 0;
+                    do {
+                        b = buffer.get(p++);
+                        t |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    types = (int) t;
+                }
+
+                for (int i = 0; i < count; i++) {
+                    long v = 0;
+                    shift = 0;
+                    do {
+                        b = buffer.get(p++);
+                        v |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    values[i] = TraceFormat.decodeValue((types >>> (4 * i)) & 0xF, v);
+                }
+
+                if (p != end) {
+                    throw new IOException("Corrupt trace record at " + position + " in " + segment);
+                }
+
+                visitor.onRecord((int) probe, outcome, types, count, values);
+                records++;
+                position = end;
+            }
+
+            return records;
+        }
+    }
+
+    /* Scans every segment of a trace directory and returns the number of records. */
+    public static long scanDirectory(Path directory, Visitor visitor) throws IOException {
+        long records = 0;
+        for (Path segment : segments(directory)) {
+            records += scan(segment, visitor);
+        }
+        return records;
+    }
+
+    private static Header header(MappedByteBuffer buffer, Path segment) throws IOException {
+        if (buffer.getInt(0) != TraceFormat.MAGIC) {
+            throw new IOException(segment + " is not a trace segment");
+        }
+        if (buffer.getShort(4) != TraceFormat.VERSION) {
+            throw new IOException(segment + " has unsupported trace version " + buffer.getShort(4));
+        }
+
+        Header header = new Header();
+        header.created = buffer.getLong(8);
+        header.pid = buffer.getLong(16);
+        header.writer = buffer.getInt(24);
+        header.segment = buffer.getInt(28);
+        header.probeTableSize = buffer.getLong(32);
+        header.probeTableModified = buffer.getLong(40);
+
+        byte[] path = new byte[buffer.getShort(48)];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = buffer.get(50 + i);
+        }
+        header.probeTablePath = new String(path, StandardCharsets.UTF_8);
+        return header;
+    }
+
+    /* trace-<pid>-<writer>-<segment>.seg, compared numerically. */
+    private static int compareSegments(String a, String b) {
+        String[] x = a.substring(0, a.length() - TraceFormat.SUFFIX.length()).split("-");
+        String[] y = b.substring(0, b.length() - TraceFormat.SUFFIX.length()).split("-");
+        for (int i = 1; i < Math.min(x.length, y.length); i++) {
+            try {
+                int c = Long.compare(Long.parseLong(x[i]), Long.parseLong(y[i]));
+                if (c != 0) {
+                    return c;
+                }
+            } catch (NumberFormatException e) {
+                return a.compareTo(b);
+            }
+        }
+        return a.compareTo(b);
+    }
+}
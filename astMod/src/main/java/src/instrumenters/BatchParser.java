@@ -0,0 +1,182 @@
+package src.instrumenters;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jdt.core.JavaCore;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.FileASTRequestor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.metrics.PipelineMetrics;
+import src.metrics.PipelineMetrics.Stage;
+
+/* BatchParser: parses many compilation units through one configured
+ * ASTParser environment (source level, classpath, encoding) with
+ * ASTParser.createASTs, instead of one parser per file.
+ *
+ * When binding resolution is enabled, every file in a batch is compiled
+ * together, so references between them (and into the classpath) resolve to
+ * real bindings that the InstrumentingVisitor can use.
+ *
+ * Without bindings, files whose text is in the UnitCache are instrumented
+ * from it and left out of the batch, and the units parsed here go into it.
+ */
+public class BatchParser {
+    final static Logger logger = LoggerFactory.getLogger("Instrumenter");
+
+    private final String[] classpath;
+    private final String[] sourcepath;
+    private final String encoding;
+    private final boolean resolveBindings;
+    private final Map<String, String> compilerOptions;
+
+    public BatchParser(String[] classpath, String[] sourcepath, String encoding, boolean resolveBindings) {
+        this.classpath = classpath;
+        this.sourcepath = sourcepath;
+        this.encoding = encoding;
+        this.resolveBindings = resolveBindings;
+
+        this.compilerOptions = new HashMap<>(JavaCore.getOptions());
+        JavaCore.setComplianceOptions(JavaCore.VERSION_1_8, this.compilerOptions);
+    }
+
+    /* Instruments the given destinations from their `sources` as one batch,
+     * and into the collector tree under `collectorRoot` unless that is null.
+     * The manifest stamp of the text each source was instrumented from goes
+     * to `stamps` (see SourceFiles.readStamped()). Returns the destinations
+     * that could not be instrumented.
+     */
+    public List<File> instrument(List<File> destinations, Map<File, File> sources, final ProbeTable probes,
+            final ProbeFilter filter, final Path collectorRoot, final Map<File, String> stamps) {
+        final Charset charset = Charset.forName(encoding);
+        final List<File> failed = new ArrayList<>();
+        final UnitCache cache = UnitCache.get();
+
+        final Map<String, File> byPath = new HashMap<>();
+        final Map<String, File> sourceByPath = new HashMap<>();
+        final Map<String, char[]> contentsByPath = new HashMap<>();
+        List<String> toParse = new ArrayList<>();
+        for (File destination : destinations) {
+            File source = sources.get(destination);
+            String path = source.getAbsolutePath();
+
+            // Units with bindings pin their batch environment, so only plain
+            // parses go through the cache.
+            if (cache.enabled() && !resolveBindings) {
+                try {
+                    long read = PipelineMetrics.start();
+                    SourceFiles.Text text = SourceFiles.readStamped(source.toPath(), charset);
+                    char[] chars = text.chars;
+                    stamps.put(source, text.stamp);
+                    PipelineMetrics.stage(Stage.READ, read);
+
+                    String key = UnitCache.key(chars);
+                    if (cache.contains(key)) {
+                        String contents = new String(chars);
+                        UnitCache.Result result = SourceInstrumenter.instrument(key, null, contents, destination,
+                                probes, filter, collectorRoot != null);
+                        SourceInstrumenter.write(source, destination, contents, result, charset, probes,
+                                collectorRoot);
+                        PipelineMetrics.file(destination.getName(), read);
+                        continue;
+                    }
+                    contentsByPath.put(path, chars);
+                } catch (Exception e) {
+                    failed.add(destination);
+                    logger.error("Could not instrument " + source.toString() + ". Stack trace: " + e);
+                    continue;
+                }
+            }
+
+            toParse.add(path);
+            byPath.put(path, destination);
+            sourceByPath.put(path, source);
+        }
+        if (toParse.isEmpty()) {
+            return failed;
+        }
+
+        String[] paths = toParse.toArray(new String[0]);
+        String[] encodings = new String[paths.length];
+        Arrays.fill(encodings, encoding);
+
+        FileASTRequestor requestor = new FileASTRequestor() {
+            // The parser works between two callbacks, so that is its time for the unit.
+            long parsed = PipelineMetrics.start();
+
+            @Override
+            public void acceptAST(String sourceFilePath, CompilationUnit unit) {
+                long start = PipelineMetrics.stage(Stage.PARSE, parsed);
+                File destination = byPath.remove(sourceFilePath);
+                if (destination == null) {
+                    parsed = PipelineMetrics.start();
+                    return;
+                }
+                File source = sourceByPath.get(sourceFilePath);
+
+                try {
+                    String key = null;
+                    String contents;
+                    char[] chars = contentsByPath.remove(sourceFilePath);
+                    if (chars != null) {
+                        key = UnitCache.key(chars);
+                        contents = new String(chars);
+                    } else {
+                        // Decode with the same charset the parser used, so node offsets line up.
+                        long read = PipelineMetrics.start();
+                        SourceFiles.Text text = SourceFiles.readStamped(source.toPath(), charset);
+                        contents = new String(text.chars);
+                        stamps.put(source, text.stamp);
+                        PipelineMetrics.stage(Stage.READ, read);
+                    }
+                    UnitCache.Result result = SourceInstrumenter.instrument(key, unit, contents, destination,
+                            probes, filter, collectorRoot != null);
+                    SourceInstrumenter.write(source, destination, contents, result, charset, probes,
+                            collectorRoot);
+                    PipelineMetrics.file(destination.getName(), start);
+                } catch (Exception e) {
+                    failed.add(destination);
+                    logger.error("Could not instrument " + source.toString() + ". Stack trace: " + e);
+                }
+                parsed = PipelineMetrics.start();
+            }
+        };
+
+        newParser().createASTs(paths, encodings, new String[0], requestor, null);
+
+        // Anything the parser never handed back was not instrumented either.
+        failed.addAll(byPath.values());
+        return failed;
+    }
+
+    private ASTParser newParser() {
+        @SuppressWarnings("deprecation") // AST.JLS(K), where K < current JDK version is always
+                                         // deprecated.
+        ASTParser parser = ASTParser.newParser(AST.JLS8);
+
+        parser.setKind(ASTParser.K_COMPILATION_UNIT);
+        parser.setCompilerOptions(compilerOptions);
+        parser.setEnvironment(classpath, sourcepath, null, true);
+        parser.setResolveBindings(resolveBindings);
+        parser.setBindingsRecovery(resolveBindings);
+
+        return parser;
+    }
+
+    public static String[] splitPath(String path) {
+        if (path == null || path.isEmpty()) {
+            return new String[0];
+        }
+        return path.split(File.pathSeparator);
+    }
+}
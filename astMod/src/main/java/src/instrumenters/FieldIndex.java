@@ -0,0 +1,601 @@
+package src.instrumenters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.EnumDeclaration;
+import org.eclipse.jdt.core.dom.FieldDeclaration;
+import org.eclipse.jdt.core.dom.ImportDeclaration;
+import org.eclipse.jdt.core.dom.Modifier;
+import org.eclipse.jdt.core.dom.Type;
+import org.eclipse.jdt.core.dom.TypeDeclaration;
+import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.metrics.PipelineMetrics;
+import src.metrics.PipelineMetrics.Stage;
+
+/* FieldIndex: the fields of every class in the source roots, so a branch can
+ * report the fields its class inherits or sees in an enclosing class, and
+ * those its class declares after the method, not only the ones its own file
+ * declared before it.
+ *
+ * It is built by a pre-pass over all sources (see Builder) that parses
+ * declarations only. For every type it keeps the declared fields with their
+ * modifiers and type names, the superclass (when it is one of the sources
+ * too) and the enclosing type. Superclasses are resolved from the names in
+ * the source: members of enclosing types, single-type imports, the package,
+ * on-demand imports, then the name as it is.
+ *
+ * The index is written as one flat file and mapped back read-only. Lookups
+ * are absolute reads of the mapping, so the instrumenting workers share one
+ * index without locks. The layout, big-endian:
+ *
+ *   header:  int FIELDS_MAGIC, int VERSION, long checksum, int types,
+ *            int fields, int slots, int strings offset
+ *   slots:   slots * int type index + 1 (0 = empty), open addressing on the
+ *            String.hashCode() of type names
+ *   types:   types * int (name, package, file, super, outer, modifiers,
+ *            first field, field count)
+ *   fields:  fields * int (name, type, modifiers)
+ *   strings: (int length, UTF-8 bytes)*
+ *
+ * Names, packages, files and field types are offsets into the strings (-1
+ * for none); super and outer are type indexes (-1 for none). The checksum is
+ * the CRC32 of everything after the header.
+ */
+public final class FieldIndex {
+    final static Logger logger = LoggerFactory.getLogger("Instrumenter");
+
+    public static final int FIELDS_MAGIC = 0x464c4458; // "FLDX"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 32;
+    private static final int TYPE_INTS = 8;
+    private static final int FIELD_INTS = 3;
+
+    private static final int T_NAME = 0, T_PACKAGE = 1, T_FILE = 2, T_SUPER = 3, T_OUTER = 4, T_MODIFIERS = 5,
+            T_FIRST_FIELD = 6, T_FIELD_COUNT = 7;
+    private static final int F_NAME = 0, F_TYPE = 1, F_MODIFIERS = 2;
+
+    // Longer super or outer chains than this are taken to be cycles.
+    private static final int MAX_DEPTH = 64;
+
+    private static volatile FieldIndex current = null;
+
+    private final ByteBuffer buffer;
+    private final long checksum;
+    private final int types;
+    private final int slots;
+    private final int typesOffset;
+    private final int fieldsOffset;
+    private final int stringsOffset;
+
+    /* A field as the index has it. `type` is the declared type name, null
+     * for array fields declared with extra dimensions (`int x[]`).
+     */
+    public static final class Field {
+        public final String name;
+        public final String type;
+        public final int modifiers;
+
+        public Field(String name, String type, int modifiers) {
+            this.name = name;
+            this.type = type;
+            this.modifiers = modifiers;
+        }
+
+        public boolean isStatic() {
+            return Modifier.isStatic(modifiers);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Field)) {
+                return false;
+            }
+            Field field = (Field) other;
+            return name.equals(field.name) && Objects.equals(type, field.type) && modifiers == field.modifiers;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, type, modifiers);
+        }
+
+        @Override
+        public String toString() {
+            return type + " " + name;
+        }
+    }
+
+    private FieldIndex(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != FIELDS_MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a field index of version " + VERSION);
+        }
+
+        this.buffer = buffer;
+        this.checksum = buffer.getLong(8);
+        this.types = buffer.getInt(16);
+        int fields = buffer.getInt(20);
+        this.slots = buffer.getInt(24);
+        this.stringsOffset = buffer.getInt(28);
+        this.typesOffset = HEADER_BYTES + this.slots * 4;
+        this.fieldsOffset = this.typesOffset + this.types * TYPE_INTS * 4;
+        if (this.fieldsOffset + fields * FIELD_INTS * 4 != this.stringsOffset || this.stringsOffset > buffer.limit()) {
+            throw new IOException("Corrupt field index");
+        }
+    }
+
+    /* Maps an index written by a Builder. */
+    public static FieldIndex open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new FieldIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /* The index instrumentation runs against, or null for none. */
+    public static FieldIndex current() {
+        return current;
+    }
+
+    public static void install(FieldIndex index) {
+        current = index;
+    }
+
+    /* Changes whenever any type or field in the index does. */
+    public long checksum() {
+        return checksum;
+    }
+
+    public int types() {
+        return types;
+    }
+
+    /* The fields code in `qualifiedName` can read by their bare names, or null
+     * when the type is not in the index: its own, the non-private ones it
+     * inherits (package-private ones only from its own package), then those
+     * of its enclosing types, static ones only once the walk out passed a
+     * static type. A name seen earlier hides the same name further out.
+     */
+    public List<Field> visibleFields(String qualifiedName) {
+        int type = find(qualifiedName);
+        return type < 0 ? null : visibleFields(type);
+    }
+
+    private List<Field> visibleFields(int type) {
+        Map<String, Field> rval = new LinkedHashMap<>();
+        String pkg = string(typeInt(type, T_PACKAGE));
+        boolean staticOnly = false;
+        for (int t = type, depth = 0; t >= 0 && depth < MAX_DEPTH; t = typeInt(t, T_OUTER), depth++) {
+            collect(t, pkg, staticOnly, rval);
+            staticOnly |= Modifier.isStatic(typeInt(t, T_MODIFIERS));
+        }
+        return new ArrayList<>(rval.values());
+    }
+
+    /* The fields of `type` and those it inherits, as seen from `pkg`. */
+    private void collect(int type, String pkg, boolean staticOnly, Map<String, Field> into) {
+        for (int t = type, depth = 0; t >= 0 && depth < MAX_DEPTH; t = typeInt(t, T_SUPER), depth++) {
+            boolean inherited = t != type;
+            boolean samePackage = pkg.equals(string(typeInt(t, T_PACKAGE)));
+
+            int first = typeInt(t, T_FIRST_FIELD);
+            int count = typeInt(t, T_FIELD_COUNT);
+            for (int f = first; f < first + count; f++) {
+                int modifiers = fieldInt(f, F_MODIFIERS);
+                if (staticOnly && !Modifier.isStatic(modifiers)) {
+                    continue;
+                }
+                if (inherited && (Modifier.isPrivate(modifiers) || (!samePackage && !Modifier.isPublic(modifiers)
+                        && !Modifier.isProtected(modifiers)))) {
+                    continue;
+                }
+
+                String name = string(fieldInt(f, F_NAME));
+                if (!into.containsKey(name)) {
+                    into.put(name, new Field(name, string(fieldInt(f, F_TYPE)), modifiers));
+                }
+            }
+        }
+    }
+
+    /* The source files declaring a type whose visible fields differ from
+     * those in `previous` (all of them when that is null).
+     */
+    public Set<File> filesWithChangedFields(FieldIndex previous) {
+        Set<File> rval = new LinkedHashSet<>();
+        for (int type = 0; type < types; type++) {
+            File file = new File(string(typeInt(type, T_FILE)));
+            if (rval.contains(file)) {
+                continue;
+            }
+
+            List<Field> before = previous == null ? null : previous.visibleFields(string(typeInt(type, T_NAME)));
+            if (!visibleFields(type).equals(before)) {
+                rval.add(file);
+            }
+        }
+        return rval;
+    }
+
+    private int find(String name) {
+        int mask = slots - 1;
+        for (int i = name.hashCode() & mask;; i = (i + 1) & mask) {
+            int slot = buffer.getInt(HEADER_BYTES + i * 4);
+            if (slot == 0) {
+                return -1;
+            }
+            if (name.equals(string(typeInt(slot - 1, T_NAME)))) {
+                return slot - 1;
+            }
+        }
+    }
+
+    private int typeInt(int type, int field) {
+        return buffer.getInt(typesOffset + (type * TYPE_INTS + field) * 4);
+    }
+
+    private int fieldInt(int index, int field) {
+        return buffer.getInt(fieldsOffset + (index * FIELD_INTS + field) * 4);
+    }
+
+    private String string(int offset) {
+        if (offset < 0) {
+            return null;
+        }
+
+        int at = stringsOffset + offset;
+        byte[] bytes = new byte[buffer.getInt(at)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(at + 4 + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* Builder: the declarations of every source, kept between builds, so a
+     * rebuild only parses the files that changed since (by size and mtime).
+     */
+    public static final class Builder {
+        private final Map<File, Scanned> scanned = new ConcurrentHashMap<>();
+
+        private static final class Scanned {
+            final long size;
+            final long modified;
+            final List<TypeEntry> types;
+
+            Scanned(long size, long modified, List<TypeEntry> types) {
+                this.size = size;
+                this.modified = modified;
+                this.types = types;
+            }
+        }
+
+        private static final class TypeEntry {
+            final String name;
+            final String pkg;
+            final String file;
+            final String superName;
+            final String outer;
+            final int modifiers;
+            final List<String> imports;
+            final List<Field> fields = new ArrayList<>();
+
+            TypeEntry(String name, String pkg, String file, String superName, String outer, int modifiers,
+                    List<String> imports) {
+                this.name = name;
+                this.pkg = pkg;
+                this.file = file;
+                this.superName = superName;
+                this.outer = outer;
+                this.modifiers = modifiers;
+                this.imports = imports;
+            }
+        }
+
+        /* Brings the declarations up to date with `sources`, parsing the
+         * changed ones on `workers` threads, and forgets all other files.
+         */
+        public void scan(Collection<File> sources, final Charset charset, int workers) {
+            scanned.keySet().retainAll(new HashSet<>(sources));
+
+            List<Callable<Void>> tasks = new ArrayList<>(sources.size());
+            for (final File source : sources) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        scan(source, charset);
+                        return null;
+                    }
+                });
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, workers));
+            try {
+                pool.invokeAll(tasks);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        private void scan(File source, Charset charset) {
+            long size = source.length();
+            long modified = source.lastModified();
+            Scanned previous = scanned.get(source);
+            if (previous != null && previous.size == size && previous.modified == modified) {
+                return;
+            }
+
+            long start = PipelineMetrics.start();
+            List<TypeEntry> types = new ArrayList<>();
+            try {
+                CompilationUnit unit = parse(SourceFiles.read(source.toPath(), charset));
+                declarations(unit, source.getAbsolutePath(), types);
+            } catch (IOException | RuntimeException e) {
+                logger.warn("Could not index " + source + ", only its own file knows its fields. " + e);
+                types.clear();
+            }
+            scanned.put(source, new Scanned(size, modified, types));
+            PipelineMetrics.stage(Stage.INDEX, start);
+        }
+
+        private static CompilationUnit parse(char[] contents) {
+            @SuppressWarnings("deprecation") // AST.JLS(K), where K < current JDK version is always
+                                             // deprecated.
+            ASTParser parser = ASTParser.newParser(AST.JLS8);
+
+            parser.setSource(contents);
+            parser.setKind(ASTParser.K_COMPILATION_UNIT);
+            parser.setIgnoreMethodBodies(true);
+
+            return (CompilationUnit) parser.createAST(null);
+        }
+
+        private static void declarations(CompilationUnit unit, String file, List<TypeEntry> into) {
+            String pkg = unit.getPackage() == null ? "" : unit.getPackage().getName().getFullyQualifiedName();
+
+            List<String> imports = new ArrayList<>();
+            for (Object declaration : unit.imports()) {
+                ImportDeclaration imported = (ImportDeclaration) declaration;
+                if (!imported.isStatic()) {
+                    imports.add(imported.getName().getFullyQualifiedName() + (imported.isOnDemand() ? ".*" : ""));
+                }
+            }
+
+            declarations(unit.types(), pkg, file, null, false, imports, into);
+        }
+
+        /* Member types only; local and anonymous classes are not indexed. */
+        @SuppressWarnings("unchecked")
+        private static void declarations(List<?> declarations, String pkg, String file, String outer,
+                boolean outerInterface, List<String> imports, List<TypeEntry> into) {
+            for (Object declaration : declarations) {
+                if (!(declaration instanceof AbstractTypeDeclaration)) {
+                    continue;
+                }
+
+                AbstractTypeDeclaration type = (AbstractTypeDeclaration) declaration;
+                String simpleName = type.getName().getIdentifier();
+                String name = outer != null ? outer + "." + simpleName
+                        : pkg.isEmpty() ? simpleName : pkg + "." + simpleName;
+                // Annotation types are interfaces as well.
+                boolean isInterface = type instanceof TypeDeclaration ? ((TypeDeclaration) type).isInterface()
+                        : !(type instanceof EnumDeclaration);
+
+                // Nested enums and interfaces, and types nested in interfaces, are static.
+                int modifiers = type.getModifiers();
+                if (outer != null && (isInterface || type instanceof EnumDeclaration || outerInterface)) {
+                    modifiers |= Modifier.STATIC;
+                }
+
+                Type superType = type instanceof TypeDeclaration ? ((TypeDeclaration) type).getSuperclassType()
+                        : null;
+                TypeEntry entry = new TypeEntry(name, pkg, file, superType == null ? null : rawName(superType),
+                        outer, modifiers, imports);
+
+                for (Object body : type.bodyDeclarations()) {
+                    if (!(body instanceof FieldDeclaration)) {
+                        continue;
+                    }
+
+                    FieldDeclaration field = (FieldDeclaration) body;
+                    int fieldModifiers = field.getModifiers();
+                    if (isInterface) {
+                        fieldModifiers |= Modifier.PUBLIC | Modifier.STATIC | Modifier.FINAL;
+                    }
+                    for (VariableDeclarationFragment fragment : (List<VariableDeclarationFragment>) field
+                            .fragments()) {
+                        entry.fields.add(new Field(fragment.getName().getIdentifier(),
+                                fragment.getExtraDimensions() == 0 ? field.getType().toString() : null,
+                                fieldModifiers));
+                    }
+                }
+                into.add(entry);
+
+                declarations(type.bodyDeclarations(), pkg, file, name, isInterface, imports, into);
+            }
+        }
+
+        /* `a.B<T>` -> `a.B`. */
+        private static String rawName(Type type) {
+            String name = type.toString();
+            int generic = name.indexOf('<');
+            return generic < 0 ? name : name.substring(0, generic);
+        }
+
+        /* Writes the index of everything scanned to `path` and maps it. */
+        public FieldIndex write(Path path) throws IOException {
+            List<TypeEntry> entries = new ArrayList<>();
+            for (Scanned file : scanned.values()) {
+                entries.addAll(file.types);
+            }
+            // Sorted, so the same sources always give the same file. Of two
+            // types of the same name (in different roots), the first is kept.
+            Collections.sort(entries, (a, b) -> {
+                int rval = a.name.compareTo(b.name);
+                return rval != 0 ? rval : a.file.compareTo(b.file);
+            });
+
+            Map<String, Integer> byName = new HashMap<>();
+            List<TypeEntry> types = new ArrayList<>(entries.size());
+            for (TypeEntry entry : entries) {
+                if (!byName.containsKey(entry.name)) {
+                    byName.put(entry.name, types.size());
+                    types.add(entry);
+                }
+            }
+
+            int fieldCount = 0;
+            for (TypeEntry type : types) {
+                fieldCount += type.fields.size();
+            }
+            int slots = Integer.highestOneBit(Math.max(1, types.size()) * 2 - 1) * 2;
+
+            Strings strings = new Strings();
+            ByteBuffer body = ByteBuffer.allocate((slots + types.size() * TYPE_INTS + fieldCount * FIELD_INTS) * 4);
+
+            int mask = slots - 1;
+            for (int type = 0; type < types.size(); type++) {
+                int i = types.get(type).name.hashCode() & mask;
+                while (body.getInt(i * 4) != 0) {
+                    i = (i + 1) & mask;
+                }
+                body.putInt(i * 4, type + 1);
+            }
+
+            body.position(slots * 4);
+            int firstField = 0;
+            for (TypeEntry type : types) {
+                Integer outer = type.outer == null ? null : byName.get(type.outer);
+                body.putInt(strings.add(type.name)).putInt(strings.add(type.pkg)).putInt(strings.add(type.file))
+                        .putInt(resolveSuper(type, byName, types)).putInt(outer == null ? -1 : outer)
+                        .putInt(type.modifiers).putInt(firstField).putInt(type.fields.size());
+                firstField += type.fields.size();
+            }
+            for (TypeEntry type : types) {
+                for (Field field : type.fields) {
+                    body.putInt(strings.add(field.name)).putInt(strings.add(field.type)).putInt(field.modifiers);
+                }
+            }
+
+            byte[] stringBytes = strings.bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, body.capacity());
+            crc.update(stringBytes, 0, stringBytes.length);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(FIELDS_MAGIC).putInt(VERSION).putLong(crc.getValue()).putInt(types.size())
+                    .putInt(fieldCount).putInt(slots).putInt(HEADER_BYTES + body.capacity());
+            header.flip();
+            body.clear();
+
+            Path temporary = path.resolveSibling(path.getFileName().toString() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer[] buffers = { header, body, ByteBuffer.wrap(stringBytes) };
+                while (buffers[0].hasRemaining() || buffers[1].hasRemaining() || buffers[2].hasRemaining()) {
+                    channel.write(buffers);
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            return open(path);
+        }
+
+        /* The index of the superclass of `type`, or -1 when it is not in the sources. */
+        private static int resolveSuper(TypeEntry type, Map<String, Integer> byName, List<TypeEntry> types) {
+            String name = type.superName;
+            if (name == null) {
+                return -1;
+            }
+            int dot = name.indexOf('.');
+            String first = dot < 0 ? name : name.substring(0, dot);
+            String rest = dot < 0 ? "" : name.substring(dot);
+
+            List<String> candidates = new ArrayList<>();
+            for (String outer = type.outer; outer != null;) {
+                candidates.add(outer + "." + name);
+                Integer index = byName.get(outer);
+                outer = index == null ? null : types.get(index).outer;
+            }
+            for (String imported : type.imports) {
+                if (imported.endsWith("." + first)) {
+                    candidates.add(imported + rest);
+                }
+            }
+            candidates.add(type.pkg.isEmpty() ? name : type.pkg + "." + name);
+            for (String imported : type.imports) {
+                if (imported.endsWith(".*")) {
+                    candidates.add(imported.substring(0, imported.length() - 1) + name);
+                }
+            }
+            candidates.add(name);
+
+            for (String candidate : candidates) {
+                Integer index = byName.get(candidate);
+                if (index != null && !candidate.equals(type.name)) {
+                    return index;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /* The string section, each distinct string once. */
+    private static final class Strings {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final Map<String, Integer> offsets = new HashMap<>();
+
+        int add(String value) {
+            if (value == null) {
+                return -1;
+            }
+
+            Integer offset = offsets.get(value);
+            if (offset == null) {
+                offset = bytes.size();
+                offsets.put(value, offset);
+
+                byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+                bytes.write(encoded.length >>> 24);
+                bytes.write(encoded.length >>> 16);
+                bytes.write(encoded.length >>> 8);
+                bytes.write(encoded.length);
+                bytes.write(encoded, 0, encoded.length);
+            }
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package src.instrumenters;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+/* InstrumentationManifest: remembers which source files went into the
+ * Instrumented tree, and what they looked like at that time.
+ *
+ * Every entry maps an absolute source path to "size:lastModified:sha256".
+ * Size and mtime are only a shortcut; a file is considered changed when its
+ * hash differs. The whole manifest is discarded when it was written by a
+ * different instrumenter version or with different settings (e.g. the probe
+ * filter), since the generated code may differ.
+ */
+public class InstrumentationManifest {
+    private static final String VERSION_KEY = "#instrumenter.version";
+    private static final String SETTINGS_KEY = "#instrumenter.settings";
+
+    private final Path location;
+    private final String settings;
+    private final Properties entries = new Properties();
+
+    private InstrumentationManifest(Path location, String settings) {
+        this.location = location;
+        this.settings = settings;
+    }
+
+    /* A manifest with no entries, e.g. when the previous one can not be read;
+     * save() writes it to `location`.
+     */
+    public static InstrumentationManifest empty(Path location, String settings) {
+        return new InstrumentationManifest(location, settings);
+    }
+
+    /* `settings` describes every option that affects the generated code. */
+    public static InstrumentationManifest load(Path location, String settings) throws IOException {
+        InstrumentationManifest manifest = new InstrumentationManifest(location, settings);
+
+        if (Files.exists(location)) {
+            try (InputStream in = Files.newInputStream(location)) {
+                manifest.entries.load(in);
+            }
+
+            if (!SourceInstrumenter.VERSION.equals(manifest.entries.getProperty(VERSION_KEY))
+                    || !settings.equals(manifest.entries.getProperty(SETTINGS_KEY))) {
+                // Produced by another version of the instrumenter, or with other
+                // settings, nothing in it can be trusted.
+                manifest.entries.clear();
+            }
+            manifest.entries.remove(VERSION_KEY);
+            manifest.entries.remove(SETTINGS_KEY);
+        }
+
+        return manifest;
+    }
+
+    /* True if the source has the same contents as when it was last recorded. */
+    public boolean isUpToDate(File source) throws IOException {
+        String recorded = entries.getProperty(source.getAbsolutePath());
+        if (recorded == null) {
+            return false;
+        }
+
+        String[] parts = recorded.split(":", 3);
+        if (parts.length != 3) {
+            return false;
+        }
+
+        if (Long.parseLong(parts[0]) == source.length() && Long.parseLong(parts[1]) == source.lastModified()) {
+            return true;
+        }
+
+        // Touched, but possibly not modified. Compare contents.
+        if (hash(source).equals(parts[2])) {
+            recordHash(source, parts[2]);
+            return true;
+        }
+
+        return false;
+    }
+
+    /* Records `source` as it was when it was read for instrumenting, see
+     * stamp(). A file edited since then no longer matches and is instrumented
+     * again.
+     */
+    public void record(File source, String stamp) {
+        entries.setProperty(source.getAbsolutePath(), stamp);
+    }
+
+    private void recordHash(File source, String hash) {
+        entries.setProperty(source.getAbsolutePath(), source.length() + ":" + source.lastModified() + ":" + hash);
+    }
+
+    /* The entry of a file of `size` and `modified` time, taken before reading
+     * it, whose contents were `bytes` (not consumed).
+     */
+    public static String stamp(long size, long modified, ByteBuffer bytes) {
+        MessageDigest digest = sha256();
+        digest.update(bytes.duplicate());
+        return size + ":" + modified + ":" + hex(digest.digest());
+    }
+
+    public void remove(File source) {
+        entries.remove(source.getAbsolutePath());
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public Set<File> sources() {
+        Set<File> rval = new HashSet<>();
+        for (String name : entries.stringPropertyNames()) {
+            rval.add(new File(name));
+        }
+        return rval;
+    }
+
+    public void save() throws IOException {
+        Properties out = new Properties();
+        out.putAll(entries);
+        out.setProperty(VERSION_KEY, SourceInstrumenter.VERSION);
+        out.setProperty(SETTINGS_KEY, settings);
+
+        // Write next to the manifest and move it over, so a crash never leaves a half written file.
+        Path temporary = location.resolveSibling(location.getFileName() + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(temporary)) {
+            out.store(stream, "Instrumenter manifest. Do not edit.");
+        }
+        Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static String hash(File source) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = Files.newInputStream(source.toPath())) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+
+        return hex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available on this JVM", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,234 @@
+package src.instrumenters;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+
+/* OutputLayout: where each source file goes under IfInstrumented, and the
+ * index of which source owns which output.
+ *
+ * FLAT puts every file directly into IfInstrumented under its own name, as
+ * the instrumenter always did. PACKAGES keeps each file's path relative to
+ * its source root, so IfInstrumented mirrors the package directories and
+ * same-named classes of different packages no longer meet. Several source
+ * roots may be given; an output belongs to the first source that claims it,
+ * and later sources that map to the same output are skipped, the way a
+ * sourcepath searches its roots in order.
+ *
+ * The index is written next to the probe table as a tab separated file of
+ * "L <layout>" and "R <index> <root>" lines, followed by
+ * "S <root index> <source relative to its root> <output relative to the
+ * output directory>" lines. Incremental runs and the daemon read it back to
+ * know which output to delete when a source goes away.
+ */
+public class OutputLayout {
+    public static final String FLAT = "flat";
+    public static final String PACKAGES = "packages";
+
+    private final String mode;
+    private final List<Path> roots = new ArrayList<>();
+    private final Path output;
+
+    // Output relative to `output` -> the source that owns it, and back.
+    private final Map<String, File> owners = new TreeMap<>();
+    private final Map<File, String> outputs = new HashMap<>();
+
+    public OutputLayout(String mode, List<File> roots, Path output) {
+        if (!mode.equals(FLAT) && !mode.equals(PACKAGES)) {
+            throw new IllegalArgumentException("Unknown output layout " + mode);
+        }
+
+        this.mode = mode;
+        this.output = output.toAbsolutePath().normalize();
+        for (File root : roots) {
+            this.roots.add(root.getAbsoluteFile().toPath().normalize());
+        }
+    }
+
+    public String mode() {
+        return mode;
+    }
+
+    /* The first root `source` is under, or -1. */
+    public int rootOf(File source) {
+        Path path = source.getAbsoluteFile().toPath().normalize();
+        for (int i = 0; i < roots.size(); i++) {
+            if (path.startsWith(roots.get(i)) && !path.equals(roots.get(i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /* Where `source` goes. Null for sources outside every root in the
+     * PACKAGES layout, where there is no relative path to keep.
+     */
+    public File destinationOf(File source) {
+        if (mode.equals(FLAT)) {
+            return output.resolve(source.getName()).toFile();
+        }
+
+        int root = rootOf(source);
+        if (root < 0) {
+            return null;
+        }
+        return output.resolve(roots.get(root).relativize(source.getAbsoluteFile().toPath().normalize())).toFile();
+    }
+
+    /* Records that `source` writes `destination`. Returns false, and records
+     * nothing, when another source that still exists owns it already.
+     */
+    public synchronized boolean claim(File source, File destination) {
+        source = source.getAbsoluteFile();
+        String key = relative(destination);
+
+        File owner = owners.get(key);
+        if (owner != null && !owner.equals(source) && owner.isFile() && rootOf(owner) >= 0) {
+            return false;
+        }
+
+        String previous = outputs.put(source, key);
+        if (previous != null && !previous.equals(key)) {
+            owners.remove(previous);
+        }
+        if (owner != null && !owner.equals(source)) {
+            outputs.remove(owner);
+        }
+        owners.put(key, source);
+        return true;
+    }
+
+    /* The source that owns `destination`, or null. */
+    public synchronized File ownerOf(File destination) {
+        return owners.get(relative(destination));
+    }
+
+    /* Forgets `source`, which went away. Returns the output it owned, to be
+     * deleted, or null if it owned none. Sources from before the index existed
+     * get back their computed destination if nobody else owns it.
+     */
+    public synchronized File release(File source) {
+        source = source.getAbsoluteFile();
+        String key = outputs.remove(source);
+        if (key != null) {
+            owners.remove(key);
+            return output.resolve(key).toFile();
+        }
+
+        File destination = destinationOf(source);
+        if (destination == null || owners.containsKey(relative(destination))) {
+            return null;
+        }
+        return destination;
+    }
+
+    /* The indexed sources at or below `path`, e.g. of a deleted directory. */
+    public synchronized List<File> sourcesUnder(File path) {
+        Path prefix = path.getAbsoluteFile().toPath().normalize();
+        List<File> rval = new ArrayList<>();
+        for (File source : outputs.keySet()) {
+            if (source.toPath().normalize().startsWith(prefix)) {
+                rval.add(source);
+            }
+        }
+        return rval;
+    }
+
+    /* Deletes every output in the index, e.g. when the layout changed. */
+    public synchronized void deleteOutputs() {
+        for (String key : owners.keySet()) {
+            FileUtils.deleteQuietly(output.resolve(key).toFile());
+        }
+        owners.clear();
+        outputs.clear();
+    }
+
+    public synchronized int size() {
+        return owners.size();
+    }
+
+    public synchronized void save(Path location) throws IOException {
+        Path temporary = location.resolveSibling(location.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writer.write("# Instrumenter output index. Do not edit.\n");
+            writer.write("L\t" + mode + "\n");
+            for (int i = 0; i < roots.size(); i++) {
+                writer.write("R\t" + i + "\t" + roots.get(i) + "\n");
+            }
+            for (Map.Entry<String, File> entry : owners.entrySet()) {
+                File source = entry.getValue();
+                int root = rootOf(source);
+                String path = root < 0 ? source.getPath()
+                        : roots.get(root).relativize(source.toPath().normalize()).toString();
+                writer.write("S\t" + root + "\t" + path + "\t" + entry.getKey() + "\n");
+            }
+        }
+        Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Reads an index written by save(). The layout and roots are the ones
+     * recorded in it, which may differ from the current ones; compare mode()
+     * before reusing it. Without an index, returns an empty layout of `mode`.
+     */
+    public static OutputLayout load(String mode, List<File> roots, Path output, Path location) throws IOException {
+        if (!Files.exists(location)) {
+            return new OutputLayout(mode, roots, output);
+        }
+
+        String savedMode = mode;
+        List<File> savedRoots = new ArrayList<>();
+        List<String[]> entries = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(location, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.isEmpty()) {
+                    continue;
+                }
+
+                String[] parts = line.split("\t", -1);
+                if (parts[0].equals("L")) {
+                    savedMode = parts[1];
+                } else if (parts[0].equals("R")) {
+                    savedRoots.add(new File(parts[2]));
+                } else if (parts[0].equals("S")) {
+                    entries.add(parts);
+                }
+            }
+        }
+
+        OutputLayout layout = new OutputLayout(savedMode, savedRoots, output);
+        for (String[] entry : entries) {
+            int root = Integer.parseInt(entry[1]);
+            File source = root < 0 || root >= savedRoots.size() ? new File(entry[2])
+                    : new File(savedRoots.get(root), entry[2]);
+            source = source.getAbsoluteFile();
+            layout.owners.put(entry[3], source);
+            layout.outputs.put(source, entry[3]);
+        }
+
+        if (!layout.roots.equals(new OutputLayout(mode, roots, output).roots)) {
+            // Same layout, other roots: keep the entries, but map by the new roots.
+            OutputLayout rval = new OutputLayout(savedMode, roots, output);
+            rval.owners.putAll(layout.owners);
+            rval.outputs.putAll(layout.outputs);
+            return rval;
+        }
+        return layout;
+    }
+
+    private String relative(File destination) {
+        return output.relativize(destination.getAbsoluteFile().toPath().normalize()).toString();
+    }
+}
@@ -0,0 +1,128 @@
+package src.instrumenters;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/* ParallelInstrumenter: instruments a set of files on a bounded ForkJoin pool.
+ * The file list is split recursively, so idle workers steal the remaining halves
+ * from busy ones. Each file is written back as soon as it is done, and since
+ * every file goes through SourceInstrumenter on its own, the output is identical
+ * to the sequential path.
+ *
+ * With a BatchParser, slices are split down to one batch each and every worker
+ * parses its batch through the shared environment.
+ */
+public class ParallelInstrumenter {
+    final static Logger logger = LoggerFactory.getLogger("Instrumenter");
+
+    // Below this many files a task stops splitting and runs its slice directly.
+    private static final int SEQUENTIAL_THRESHOLD = 4;
+
+    private final int workers;
+    private final BatchParser batchParser;
+    private final ProbeTable probes;
+    private final Charset charset;
+    private final ProbeFilter filter;
+    private final Path collectorRoot;
+    private final int threshold;
+    private final List<File> failed = Collections.synchronizedList(new ArrayList<>());
+    private Map<File, File> sources;
+    private Map<File, String> stamps;
+
+    public ParallelInstrumenter(int workers, ProbeTable probes, Charset charset, ProbeFilter filter) {
+        this(workers, probes, charset, filter, null, null, SEQUENTIAL_THRESHOLD);
+    }
+
+    /* `collectorRoot` is where the collector tree goes, or null for none. */
+    public ParallelInstrumenter(int workers, ProbeTable probes, Charset charset, ProbeFilter filter,
+            Path collectorRoot, BatchParser batchParser, int batchSize) {
+        this.workers = workers;
+        this.probes = probes;
+        this.charset = charset;
+        this.filter = filter;
+        this.collectorRoot = collectorRoot;
+        this.batchParser = batchParser;
+        // Without a parser, leaves stay small so the work spreads over every
+        // worker; with one, a leaf is one batch.
+        this.threshold = batchParser == null ? SEQUENTIAL_THRESHOLD : Math.max(1, batchSize);
+    }
+
+    public List<File> run(Map<File, File> sources) {
+        return run(sources, new ConcurrentHashMap<File, String>());
+    }
+
+    /* Instruments every destination -> source pair, putting the manifest stamp
+     * of what each source was instrumented from in `stamps`, which must be
+     * thread-safe. Returns the destinations that could not be instrumented.
+     */
+    public List<File> run(Map<File, File> sources, Map<File, String> stamps) {
+        this.sources = sources;
+        this.stamps = stamps;
+        List<File> files = new ArrayList<>(sources.keySet());
+        ForkJoinPool pool = new ForkJoinPool(workers);
+
+        logger.info("Instrumenting " + files.size() + " files with " + workers + " workers");
+        try {
+            pool.invoke(new InstrumentTask(files, 0, files.size()));
+        } finally {
+            pool.shutdown();
+        }
+
+        return new ArrayList<>(failed);
+    }
+
+    private class InstrumentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> files;
+        private final int from;
+        private final int to;
+
+        InstrumentTask(List<File> files, int from, int to) {
+            this.files = files;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= threshold) {
+                if (batchParser != null) {
+                    failed.addAll(batchParser.instrument(files.subList(from, to), sources, probes, filter,
+                            collectorRoot, stamps));
+                    return;
+                }
+
+                for (int i = from; i < to; i++) {
+                    instrument(files.get(i));
+                }
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new InstrumentTask(files, from, mid), new InstrumentTask(files, mid, to));
+        }
+
+        private void instrument(File destination) {
+            File source = sources.get(destination);
+            try {
+                stamps.put(source, SourceInstrumenter.instrumentFile(source, destination, charset, probes, filter,
+                        collectorRoot));
+            } catch (Exception e) {
+                failed.add(destination);
+                logger.error("Could not instrument " + source.toString() + ". Stack trace: " + e);
+            }
+        }
+    }
+}
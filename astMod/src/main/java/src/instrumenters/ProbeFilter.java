@@ -0,0 +1,139 @@
+package src.instrumenters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/* ProbeFilter: decides which ifs get a probe.
+ *
+ * Include and exclude lists are comma separated patterns of the form
+ * `class[#method]`, where `class` is a qualified class name (nested classes
+ * separated by dots) and the method part defaults to every method. In the
+ * class part `*` matches within one name segment, `**` across segments and
+ * `?` one character; in the method part `*` matches anything. A method is
+ * instrumented when it matches some include (or there are none) and no
+ * exclude, e.g.
+ *
+ *   include = com.example.**
+ *   exclude = **.generated.**, **.*Test, com.example.Parser#next*
+ *
+ * On top of that, ifs inside loops can be skipped and the number of probes in
+ * one method can be capped; the first ifs in source order are kept.
+ *
+ * With operand capture, every comparison (==, !=, <, <=, >, >=) in the
+ * condition of a selected if gets a term probe of its own as well, which
+ * reports the values of both sides (see Reporter.term).
+ */
+public class ProbeFilter {
+    public static final ProbeFilter ALL = new ProbeFilter("", "", 0, false);
+
+    private final String include;
+    private final String exclude;
+    private final List<Pattern[]> includes;
+    private final List<Pattern[]> excludes;
+    private final int maxProbesPerMethod;
+    private final boolean skipLoops;
+    private final boolean captureOperands;
+
+    public ProbeFilter(String include, String exclude, int maxProbesPerMethod, boolean skipLoops) {
+        this(include, exclude, maxProbesPerMethod, skipLoops, false);
+    }
+
+    /* A `maxProbesPerMethod` of 0 (or less) means no limit. */
+    public ProbeFilter(String include, String exclude, int maxProbesPerMethod, boolean skipLoops,
+            boolean captureOperands) {
+        this.include = include == null ? "" : include.trim();
+        this.exclude = exclude == null ? "" : exclude.trim();
+        this.includes = parse(this.include);
+        this.excludes = parse(this.exclude);
+        this.maxProbesPerMethod = Math.max(0, maxProbesPerMethod);
+        this.skipLoops = skipLoops;
+        this.captureOperands = captureOperands;
+    }
+
+    public boolean includes(String className, String methodName) {
+        if (!includes.isEmpty() && !matches(includes, className, methodName)) {
+            return false;
+        }
+        return !matches(excludes, className, methodName);
+    }
+
+    public int maxProbesPerMethod() {
+        return maxProbesPerMethod;
+    }
+
+    public boolean skipLoops() {
+        return skipLoops;
+    }
+
+    public boolean captureOperands() {
+        return captureOperands;
+    }
+
+    /* Changes to the filter change the output, so incremental runs compare this. */
+    @Override
+    public String toString() {
+        return "include=" + include + ";exclude=" + exclude + ";maxProbesPerMethod=" + maxProbesPerMethod
+                + ";skipLoops=" + skipLoops + (captureOperands ? ";captureOperands=true" : "");
+    }
+
+    private static boolean matches(List<Pattern[]> patterns, String className, String methodName) {
+        for (Pattern[] pattern : patterns) {
+            if (pattern[0].matcher(className).matches()
+                    && (pattern[1] == null || pattern[1].matcher(methodName).matches())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static List<Pattern[]> parse(String patterns) {
+        List<Pattern[]> rval = new ArrayList<>();
+        for (String pattern : patterns.split(",")) {
+            pattern = pattern.trim();
+            if (pattern.isEmpty()) {
+                continue;
+            }
+
+            int hash = pattern.indexOf('#');
+            String classPart = hash < 0 ? pattern : pattern.substring(0, hash);
+            String methodPart = hash < 0 ? null : pattern.substring(hash + 1);
+
+            rval.add(new Pattern[] {
+                    glob(classPart, "[^.]*", "[^.]"),
+                    methodPart == null ? null : glob(methodPart, ".*", "."),
+            });
+        }
+        return rval;
+    }
+
+    private static Pattern glob(String glob, String star, String question) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') {
+                literal.append(c);
+                continue;
+            }
+
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+                literal.setLength(0);
+            }
+
+            if (c == '?') {
+                regex.append(question);
+            } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else {
+                regex.append(star);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
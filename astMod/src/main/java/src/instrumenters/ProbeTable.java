@@ -0,0 +1,249 @@
+package src.instrumenters;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import src.runtime.ProbeStore;
+
+/* ProbeTable: the sidecar that maps the integer probe ids used at runtime back
+ * to what they stand for (class, method, predicate, line, variables).
+ *
+ * A probe id is (fileId << LOCAL_BITS) | local, where local counts the probes
+ * of one file in visiting order. File ids are handed out in sorted path order
+ * before any file is instrumented, and are kept across incremental runs, so ids
+ * do not depend on the number of workers or on which files changed.
+ *
+ * On disk this is a tab separated file: "F <fileId> <path>" lines for files,
+ * followed by "P <id> <line> <class> <method> <vars> <predicate> <parent> <op>"
+ * lines, where the last two are only filled in for comparison terms.
+ */
+public class ProbeTable {
+    public static final int LOCAL_BITS = ProbeStore.LOCAL_BITS;
+    public static final int MAX_LOCAL = (1 << LOCAL_BITS) - 1;
+    public static final int MAX_FILES = 1 << (32 - LOCAL_BITS);
+
+    public static class Probe {
+        public final int id;
+        public final int line;
+        public final String className;
+        public final String methodName;
+        public final String predicate;
+        public final List<String> variables;
+
+        // Probes of single comparisons in a condition, from operand capture, name
+        // the if probe they are part of and their operator; their two values are
+        // the comparison's operands. For if probes, `parent` is the probe itself
+        // and `operator` is null.
+        public final int parent;
+        public final String operator;
+
+        public Probe(int id, int line, String className, String methodName, String predicate,
+                List<String> variables) {
+            this(id, line, className, methodName, predicate, variables, id, null);
+        }
+
+        public Probe(int id, int line, String className, String methodName, String predicate,
+                List<String> variables, int parent, String operator) {
+            this.id = id;
+            this.line = line;
+            this.className = className;
+            this.methodName = methodName;
+            this.predicate = predicate;
+            this.variables = variables;
+            this.parent = parent;
+            this.operator = operator;
+        }
+
+        public boolean isTerm() {
+            return operator != null;
+        }
+
+        @Override
+        public String toString() {
+            if (isTerm()) {
+                return String.format("term(%d) of probe(%d) %s.%s:%d (%s)", id, parent, className, methodName, line,
+                        predicate);
+            }
+            return String.format("probe(%d) %s.%s:%d (%s) %s", id, className, methodName, line, predicate, variables);
+        }
+    }
+
+    private final Path root;
+    private final Map<String, Integer> fileIds = new ConcurrentHashMap<>();
+    private final Map<String, List<Probe>> probes = new ConcurrentHashMap<>();
+    private int nextFileId = 0;
+
+    /* `root` is the directory that file keys are relative to. */
+    public ProbeTable(Path root) {
+        this.root = root;
+    }
+
+    public static int probeId(int fileId, int local) {
+        return (fileId << LOCAL_BITS) | local;
+    }
+
+    public static int fileIdOf(int probeId) {
+        return probeId >>> LOCAL_BITS;
+    }
+
+    public static int localOf(int probeId) {
+        return probeId & MAX_LOCAL;
+    }
+
+    public String keyOf(File file) {
+        return root.relativize(file.getAbsoluteFile().toPath()).toString().replace(File.separatorChar, '/');
+    }
+
+    /* Hands out ids to files that do not have one yet, in sorted order. Must be
+     * called before files are instrumented (and not concurrently with it).
+     */
+    public synchronized void assignFileIds(Collection<File> files) {
+        Set<String> keys = new TreeSet<>();
+        for (File file : files) {
+            keys.add(keyOf(file));
+        }
+
+        for (String key : keys) {
+            if (!fileIds.containsKey(key)) {
+                if (nextFileId >= MAX_FILES) {
+                    throw new IllegalStateException("More than " + MAX_FILES + " files in the probe table");
+                }
+                fileIds.put(key, nextFileId++);
+            }
+        }
+    }
+
+    public int fileId(File file) {
+        Integer id = fileIds.get(keyOf(file));
+        if (id == null) {
+            throw new IllegalStateException("No probe file id assigned to " + file.toString());
+        }
+        return id;
+    }
+
+    /* Replaces all probes recorded for the file. */
+    public void put(File file, List<Probe> fileProbes) {
+        probes.put(keyOf(file), fileProbes);
+    }
+
+    /* Drops files (and their probes) that are not in `files` anymore. Their file
+     * ids are not reused.
+     */
+    public synchronized void retainFiles(Collection<File> files) {
+        Set<String> keys = new HashSet<>();
+        for (File file : files) {
+            keys.add(keyOf(file));
+        }
+        fileIds.keySet().retainAll(keys);
+        probes.keySet().retainAll(keys);
+    }
+
+    public List<Probe> probes() {
+        List<Probe> rval = new ArrayList<>();
+        for (List<Probe> fileProbes : probes.values()) {
+            rval.addAll(fileProbes);
+        }
+        Collections.sort(rval, (a, b) -> Integer.compareUnsigned(a.id, b.id));
+        return rval;
+    }
+
+    public synchronized void save(Path location) throws IOException {
+        Path temporary = location.resolveSibling(location.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writer.write("# Instrumenter probe table. Do not edit.\n");
+            for (Map.Entry<String, Integer> file : new TreeMap<>(fileIds).entrySet()) {
+                writer.write("F\t" + file.getValue() + "\t" + escape(file.getKey()) + "\n");
+            }
+            for (Probe probe : probes()) {
+                writer.write("P\t" + probe.id + "\t" + probe.line + "\t" + escape(probe.className) + "\t"
+                        + escape(probe.methodName) + "\t" + escape(String.join(",", probe.variables)) + "\t"
+                        + escape(probe.predicate) + "\t" + probe.parent + "\t"
+                        + (probe.operator == null ? "" : escape(probe.operator)) + "\n");
+            }
+        }
+        Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static ProbeTable load(Path root, Path location) throws IOException {
+        ProbeTable table = new ProbeTable(root);
+        if (!Files.exists(location)) {
+            return table;
+        }
+
+        Map<Integer, String> keysById = new TreeMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(location, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("#") || line.isEmpty()) {
+                    continue;
+                }
+
+                String[] parts = line.split("\t", -1);
+                if (parts[0].equals("F")) {
+                    int id = Integer.parseInt(parts[1]);
+                    String key = unescape(parts[2]);
+                    table.fileIds.put(key, id);
+                    keysById.put(id, key);
+                    table.nextFileId = Math.max(table.nextFileId, id + 1);
+
+                } else if (parts[0].equals("P")) {
+                    int id = Integer.parseInt(parts[1]);
+                    String variables = unescape(parts[5]);
+                    // Tables written before operand capture have no parent and operator.
+                    boolean term = parts.length > 8 && !parts[8].isEmpty();
+                    Probe probe = new Probe(id, Integer.parseInt(parts[2]), unescape(parts[3]), unescape(parts[4]),
+                            unescape(parts[6]), variables.isEmpty() ? Collections.<String>emptyList()
+                                    : Arrays.asList(variables.split(",")),
+                            term ? Integer.parseInt(parts[7]) : id, term ? unescape(parts[8]) : null);
+
+                    String key = keysById.get(fileIdOf(id));
+                    if (key != null) {
+                        List<Probe> fileProbes = table.probes.get(key);
+                        if (fileProbes == null) {
+                            fileProbes = new ArrayList<>();
+                            table.probes.put(key, fileProbes);
+                        }
+                        fileProbes.add(probe);
+                    }
+                }
+            }
+        }
+
+        return table;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder rval = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                rval.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                rval.append(c);
+            }
+        }
+        return rval.toString();
+    }
+}
@@ -0,0 +1,131 @@
+package src.instrumenters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/* SourceFiles: the file I/O of the instrumentation pipeline. Every source is
+ * read exactly once, decoded with an explicit charset (never the platform
+ * default), and the result goes straight to its destination. Destinations
+ * that stay byte-for-byte identical to their source are hard links instead of
+ * copies.
+ */
+public class SourceFiles {
+    // Files at least this large are memory-mapped instead of read into the heap.
+    static final long MAP_THRESHOLD = 1 << 20;
+
+    private SourceFiles() {
+    }
+
+    /* Reads and decodes the whole file. Malformed input is an error rather than
+     * being silently replaced, since it would shift the parser's offsets.
+     */
+    public static char[] read(Path path, Charset charset) throws IOException {
+        return decode(bytes(path), charset);
+    }
+
+    /* A source as it was read: its text, and its manifest entry (see
+     * InstrumentationManifest.stamp()) of the very bytes the text came from.
+     */
+    public static final class Text {
+        public final char[] chars;
+        public final String stamp;
+
+        Text(char[] chars, String stamp) {
+            this.chars = chars;
+            this.stamp = stamp;
+        }
+    }
+
+    /* read(), with the stamp the manifest records once the text is instrumented.
+     * Size and time are taken before the read, so an edit during it shows.
+     */
+    public static Text readStamped(Path path, Charset charset) throws IOException {
+        File file = path.toFile();
+        long size = file.length();
+        long modified = file.lastModified();
+
+        ByteBuffer bytes = bytes(path);
+        String stamp = InstrumentationManifest.stamp(size, modified, bytes);
+        return new Text(decode(bytes, charset), stamp);
+    }
+
+    private static ByteBuffer bytes(Path path) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(path.toString() + " is too large to instrument");
+            }
+
+            if (size >= MAP_THRESHOLD) {
+                bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                bytes = ByteBuffer.allocate((int) size);
+                while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+                    // Keep reading until the buffer is full or the file ends.
+                }
+                bytes.flip();
+            }
+        }
+        return bytes;
+    }
+
+    private static char[] decode(ByteBuffer bytes, Charset charset) throws IOException {
+        CharBuffer chars = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(bytes);
+
+        // The parser takes the whole array, so it has to be exactly the text.
+        if (chars.hasArray() && chars.arrayOffset() == 0 && chars.array().length == chars.limit()) {
+            return chars.array();
+        }
+        return Arrays.copyOfRange(chars.array(), chars.arrayOffset(), chars.arrayOffset() + chars.limit());
+    }
+
+    /* Replaces `path` with the encoded text. The text is written next to it and
+     * moved over it, so a hard link at `path` is replaced, not written through.
+     */
+    public static void write(Path path, String text, Charset charset) throws IOException {
+        ByteBuffer bytes = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .encode(CharBuffer.wrap(text));
+
+        Path temporary = path.resolveSibling(path.getFileName().toString() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Makes `destination` an unmodified copy of `source`: a hard link when the
+     * file system allows it, a plain copy otherwise (e.g. across devices).
+     */
+    public static void link(Path source, Path destination) throws IOException {
+        Files.deleteIfExists(destination);
+
+        try {
+            Files.createLink(destination, source);
+            return;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Fall back to copying.
+        }
+
+        Files.copy(source, destination, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
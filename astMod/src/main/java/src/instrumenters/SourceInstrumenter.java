@@ -0,0 +1,280 @@
+package src.instrumenters;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.ImportDeclaration;
+import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.text.edits.TextEdit;
+
+import src.Options;
+import src.metrics.PipelineMetrics;
+import src.metrics.PipelineMetrics.Stage;
+import src.visitors.CollectorVisitor;
+import src.visitors.InstrumentingVisitor;
+
+/* SourceInstrumenter: parses a single compilation unit, runs the
+ * InstrumentingVisitor over it and applies the resulting rewrite, and
+ * optionally the CollectorVisitor's rewrite of the same unit.
+ * Everything here is local to one file, so it is safe to call from
+ * several threads at once.
+ */
+public class SourceInstrumenter {
+    // Bump this whenever the generated code changes, so incremental runs
+    // re-instrument everything instead of trusting the manifest.
+    public static final String VERSION = "7";
+
+    // Runs the collector pass of each file next to its branch rewrite.
+    private static final ExecutorService COLLECTORS = Executors.newFixedThreadPool(Options.workers,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "collector-rewrite");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public static String instrument(String contents, File file, ProbeTable probes) throws BadLocationException {
+        return instrument(parse(contents.toCharArray()), contents, file, probes);
+    }
+
+    private static CompilationUnit parse(char[] contents) {
+        @SuppressWarnings("deprecation") // AST.JLS(K), where K < current JDK version is always
+                                         // deprecated.
+        ASTParser parser = ASTParser.newParser(AST.JLS8);
+
+        parser.setSource(contents);
+        parser.setKind(ASTParser.K_COMPILATION_UNIT);
+
+        return (CompilationUnit) parser.createAST(null);
+    }
+
+    /* Instruments an already parsed unit. `contents` must be the exact text the
+     * unit was parsed from. The probes inserted into `file` are recorded in the
+     * probe table once the rewrite succeeded. A unit without any probe (no ifs,
+     * or all of them filtered out) comes back as `contents` itself, untouched.
+     */
+    public static String instrument(CompilationUnit unit, String contents, File file, ProbeTable probes)
+            throws BadLocationException {
+        return instrument(unit, contents, file, probes, ProbeFilter.ALL);
+    }
+
+    public static String instrument(CompilationUnit unit, String contents, File file, ProbeTable probes,
+            ProbeFilter filter) throws BadLocationException {
+        UnitCache.Result result = instrument(null, unit, contents, file, probes, filter, false);
+        return result.output == null ? contents : result.output;
+    }
+
+    /* Instruments `contents` for IfInstrumented and, with `collect`, for
+     * CollectorInstrumented as well (see CollectorVisitor), from one parse.
+     * Outputs that come back null are unchanged. The probes of both are
+     * recorded for `file`.
+     *
+     * With a `key` (see UnitCache.key()), this goes through the UnitCache:
+     * the outputs of an earlier run over the same text and model are reused
+     * as they are, and otherwise the unit parsed from it before. `unit` is
+     * the caller's own parse, or null to take it from the cache or parse
+     * here.
+     */
+    public static UnitCache.Result instrument(String key, CompilationUnit unit, String contents, File file,
+            ProbeTable probes, ProbeFilter filter, boolean collect) throws BadLocationException {
+        UnitCache cache = UnitCache.get();
+        int fileId = probes.fileId(file);
+        // The fields a class sees come from the index, so outputs are only
+        // reused with the same one.
+        FieldIndex index = FieldIndex.current();
+        String model = fileId + ";" + filter + (collect ? ";collector" : "")
+                + (index == null ? "" : ";fields=" + Long.toHexString(index.checksum()));
+
+        UnitCache.Result result = key == null ? null : cache.result(key, model);
+        if (result == null) {
+            if (unit == null && key != null) {
+                unit = cache.unit(key);
+            }
+            if (unit == null) {
+                long start = PipelineMetrics.start();
+                unit = parse(contents.toCharArray());
+                PipelineMetrics.stage(Stage.PARSE, start);
+            }
+
+            result = rewrite(unit, contents, fileId, filter, index, collect);
+            if (key != null) {
+                cache.putUnit(key, unit, contents.length());
+                cache.putResult(key, model, result);
+            }
+        }
+
+        probes.put(file, result.probes);
+        return result;
+    }
+
+    /* The branch rewrite and the collector rewrite both only read the tree, so
+     * once the InstrumentingVisitor has built the model, the collector pass
+     * runs on its own thread while the branch rewrite is applied here.
+     */
+    private static UnitCache.Result rewrite(final CompilationUnit unit, final String contents, int fileId,
+            ProbeFilter filter, FieldIndex index, boolean collect) throws BadLocationException {
+        AST ast = unit.getAST();
+
+        ASTRewrite rewrite = ASTRewrite.create(ast);
+        InstrumentingVisitor instrumenter = new InstrumentingVisitor(rewrite, fileId, filter, index);
+
+        long start = PipelineMetrics.start();
+        unit.accept(instrumenter);
+        start = PipelineMetrics.stage(Stage.VISIT, start);
+
+        CollectorVisitor collector = null;
+        Future<String> collected = null;
+        if (collect) {
+            final CollectorVisitor visitor = new CollectorVisitor(ASTRewrite.create(ast), fileId,
+                    instrumenter.getProbes().size(), filter, instrumenter.getClasses());
+            collected = COLLECTORS.submit(new Callable<String>() {
+                @Override
+                public String call() throws BadLocationException {
+                    long start = PipelineMetrics.start();
+                    unit.accept(visitor);
+                    String rval = visitor.getProbes().isEmpty() ? null : apply(unit, visitor.getRewriter(), contents);
+                    PipelineMetrics.stage(Stage.COLLECT, start);
+                    return rval;
+                }
+            });
+            collector = visitor;
+        }
+
+        String output = null;
+        if (!instrumenter.getProbes().isEmpty()) {
+            output = apply(unit, rewrite, contents);
+            PipelineMetrics.stage(Stage.REWRITE, start);
+        }
+
+        if (collected == null) {
+            PipelineMetrics.probes(instrumenter.getProbes().size());
+            return new UnitCache.Result(output, instrumenter.getProbes(), null);
+        }
+
+        String collectedOutput = join(collected);
+        List<ProbeTable.Probe> probes = new ArrayList<>(instrumenter.getProbes());
+        probes.addAll(collector.getProbes());
+        PipelineMetrics.probes(probes.size());
+        return new UnitCache.Result(output, probes, collectedOutput);
+    }
+
+    /* Applies `rewrite`, plus the import of the Reporter, to `contents`. */
+    private static String apply(CompilationUnit unit, ASTRewrite rewrite, String contents)
+            throws BadLocationException {
+        AST ast = unit.getAST();
+        Document document = new Document();
+        document.set(contents);
+
+        ImportDeclaration importDeclaration = ast.newImportDeclaration();
+        importDeclaration.setName(ast.newName("src.Reporter"));
+
+        ListRewrite listRewrite = rewrite.getListRewrite(unit, CompilationUnit.IMPORTS_PROPERTY);
+        listRewrite.insertLast(importDeclaration, null);
+
+        TextEdit edits = rewrite.rewriteAST(document, null);
+        edits.apply(document);
+        return document.get();
+    }
+
+    private static String join(Future<String> collected) throws BadLocationException {
+        try {
+            return collected.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the collector pass", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BadLocationException) {
+                throw (BadLocationException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public static String instrumentFile(File source, File destination, Charset charset, ProbeTable probes,
+            ProbeFilter filter) throws IOException, BadLocationException {
+        return instrumentFile(source, destination, charset, probes, filter, null);
+    }
+
+    /* Instruments `source` into `destination`, and into the same place under
+     * `collectorRoot` unless that is null. The source is read once; when
+     * nothing in it needs a probe, a destination is just a link to it.
+     * Returns the manifest stamp of the text that was instrumented (see
+     * SourceFiles.readStamped()).
+     */
+    public static String instrumentFile(File source, File destination, Charset charset, ProbeTable probes,
+            ProbeFilter filter, Path collectorRoot) throws IOException, BadLocationException {
+        long start = PipelineMetrics.start();
+        SourceFiles.Text text = SourceFiles.readStamped(source.toPath(), charset);
+        char[] chars = text.chars;
+        String contents = new String(chars);
+        long read = PipelineMetrics.stage(Stage.READ, start);
+
+        UnitCache.Result result;
+        if (UnitCache.get().enabled()) {
+            result = instrument(UnitCache.key(chars), null, contents, destination, probes, filter,
+                    collectorRoot != null);
+        } else {
+            CompilationUnit unit = parse(chars);
+            PipelineMetrics.stage(Stage.PARSE, read);
+            result = instrument(null, unit, contents, destination, probes, filter, collectorRoot != null);
+        }
+        write(source, destination, contents, result, charset, probes, collectorRoot);
+        PipelineMetrics.file(destination.getName(), start);
+        return text.stamp;
+    }
+
+    /* The counterpart of `destination` (under the probe table's root) in the
+     * collector tree.
+     */
+    public static File collectedDestination(Path collectorRoot, ProbeTable probes, File destination) {
+        return collectorRoot.resolve(probes.keyOf(destination)).toFile();
+    }
+
+    static void write(File source, File destination, String contents, UnitCache.Result result, Charset charset,
+            ProbeTable probes, Path collectorRoot) throws IOException {
+        write(source, destination, contents, result.output, charset);
+        if (collectorRoot != null) {
+            File collected = collectedDestination(collectorRoot, probes, destination);
+            Files.createDirectories(collected.toPath().getParent());
+            write(source, collected, contents, result.collected, charset);
+        }
+    }
+
+    /* Writes an output of instrument(), or links the source if it is null or
+     * came back unchanged.
+     */
+    static void write(File source, File destination, String contents, String instrumented, Charset charset)
+            throws IOException {
+        long start = PipelineMetrics.start();
+        if (instrumented == null || instrumented == contents) {
+            SourceFiles.link(source.toPath(), destination.toPath());
+        } else {
+            SourceFiles.write(destination.toPath(), instrumented, charset);
+        }
+        PipelineMetrics.stage(Stage.WRITE, start);
+    }
+}
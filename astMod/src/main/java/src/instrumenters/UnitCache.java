@@ -0,0 +1,244 @@
+package src.instrumenters;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.core.dom.CompilationUnit;
+
+import src.Options;
+
+/* UnitCache: parsed compilation units, and what instrumenting them produced,
+ * keyed by the SHA-256 of the source text, so a file that comes back with
+ * contents seen before (a daemon refresh after a revert or a branch switch,
+ * or another instrumentation mode over the same text) is not parsed again.
+ *
+ * For every unit it also keeps the results of instrumenting it, per model:
+ * the file id and settings that went into the rewrite. The same text under
+ * the same model gives the same output and probes, so a hit there skips the
+ * visit and the rewrite as well.
+ *
+ * Entries are weighed by their source length and kept in LRU order within
+ * `Options.unitCacheBytes`. Entries pushed out go to a second tier behind
+ * soft references, outside the budget, where the collector may take them
+ * when memory runs short; a hit there brings them back in. Units parsed with
+ * bindings hold on to the whole batch environment and are never cached.
+ *
+ * Units are only handed to one caller at a time in practice (a file is
+ * instrumented by one worker), and the visitor and ASTRewrite only read
+ * them, so a cached unit can be instrumented again.
+ */
+public final class UnitCache {
+    // Rough heap cost of a parsed unit per source char, measured on JDT DOM
+    // trees of typical sources; outputs are counted at two bytes per char.
+    private static final long UNIT_BYTES_PER_CHAR = 16;
+
+    private static final UnitCache instance = new UnitCache(Options.unitCacheBytes);
+
+    private final long budget;
+    private long weight = 0;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final Map<String, SoftEntry> spilled = new HashMap<>();
+    private final ReferenceQueue<Entry> collected = new ReferenceQueue<>();
+
+    private final AtomicLong unitHits = new AtomicLong();
+    private final AtomicLong outputHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /* What instrumenting a unit under one model produced: the IfInstrumented
+     * output, the CollectorInstrumented one and the probes of both. A null
+     * output means the unit came back unchanged (or was not collected).
+     */
+    public static final class Result {
+        public final String output;
+        public final List<ProbeTable.Probe> probes;
+        public final String collected;
+
+        public Result(String output, List<ProbeTable.Probe> probes, String collected) {
+            this.output = output;
+            this.probes = probes;
+            this.collected = collected;
+        }
+    }
+
+    private static final class Entry {
+        final CompilationUnit unit;
+        final Map<String, Result> results = new HashMap<>(4);
+        long weight;
+
+        Entry(CompilationUnit unit, int length) {
+            this.unit = unit;
+            this.weight = length * UNIT_BYTES_PER_CHAR;
+        }
+    }
+
+    private static final class SoftEntry extends SoftReference<Entry> {
+        final String key;
+
+        SoftEntry(String key, Entry entry, ReferenceQueue<Entry> queue) {
+            super(entry, queue);
+            this.key = key;
+        }
+    }
+
+    public UnitCache(long budget) {
+        this.budget = budget;
+    }
+
+    public static UnitCache get() {
+        return instance;
+    }
+
+    public boolean enabled() {
+        return budget > 0;
+    }
+
+    /* The cache key of a source text. */
+    public static String key(char[] contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available on this JVM", e);
+        }
+
+        digest.update(StandardCharsets.UTF_8.encode(CharBuffer.wrap(contents)));
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >>> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /* The unit parsed from the text under `key`, or null. */
+    public synchronized CompilationUnit unit(String key) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        unitHits.incrementAndGet();
+        return entry.unit;
+    }
+
+    public synchronized boolean contains(String key) {
+        return lookup(key) != null;
+    }
+
+    public synchronized void putUnit(String key, CompilationUnit unit, int length) {
+        if (!enabled() || lookup(key) != null) {
+            return;
+        }
+
+        Entry entry = new Entry(unit, length);
+        if (entry.weight > budget) {
+            return;
+        }
+        entries.put(key, entry);
+        weight += entry.weight;
+        evict();
+    }
+
+    /* What instrumenting the text under `key` with `model` produced before, or null. */
+    public synchronized Result result(String key, String model) {
+        Entry entry = lookup(key);
+        Result rval = entry == null ? null : entry.results.get(model);
+        if (rval != null) {
+            outputHits.incrementAndGet();
+        }
+        return rval;
+    }
+
+    /* Records a result for a unit already in the cache; others are not kept. */
+    public synchronized void putResult(String key, String model, Result result) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+
+        Result previous = entry.results.put(model, result);
+        long delta = weigh(result) - (previous == null ? 0 : weigh(previous));
+        entry.weight += delta;
+        weight += delta;
+        evict();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        spilled.clear();
+        weight = 0;
+    }
+
+    public long unitHits() {
+        return unitHits.get();
+    }
+
+    public long outputHits() {
+        return outputHits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private Entry lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            return entry;
+        }
+
+        purge();
+        SoftEntry soft = spilled.remove(key);
+        entry = soft == null ? null : soft.get();
+        if (entry != null) {
+            entries.put(key, entry);
+            weight += entry.weight;
+            evict();
+        }
+        return entry;
+    }
+
+    /* Least recently used entries go to the soft tier until the rest fits. */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (weight > budget && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            weight -= eldest.getValue().weight;
+            spilled.put(eldest.getKey(), new SoftEntry(eldest.getKey(), eldest.getValue(), collected));
+        }
+        purge();
+    }
+
+    private void purge() {
+        SoftEntry soft;
+        while ((soft = (SoftEntry) collected.poll()) != null) {
+            if (spilled.get(soft.key) == soft) {
+                spilled.remove(soft.key);
+            }
+        }
+    }
+
+    private static long weigh(Result result) {
+        return 2L * ((result.output == null ? 0 : result.output.length())
+                + (result.collected == null ? 0 : result.collected.length()));
+    }
+}
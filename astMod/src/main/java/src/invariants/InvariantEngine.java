@@ -0,0 +1,245 @@
+package src.invariants;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.collector.ReportListener;
+import src.instrumenters.ProbeTable;
+import src.runtime.ReportRecord;
+
+/* InvariantEngine: learns facts about the reported branch variables while the
+ * reports come in, Daikon style. Every probe and outcome is a program point
+ * with a fixed set of candidate invariants (see VariableInvariants and
+ * PairInvariants); each record falsifies the candidates it contradicts in
+ * constant time and is then dropped, so nothing is buffered however long the
+ * run is.
+ *
+ * Memory is bounded by `maxProbes`: records of probes beyond that are only
+ * counted. Points are kept in an open addressing table keyed by probe id, so
+ * a record costs no allocation once its probe has been seen.
+ *
+ * Records come from the collector's single ingest thread; snapshots can be
+ * taken from any thread and see a consistent state of every point.
+ */
+public class InvariantEngine implements ReportListener {
+    final static Logger logger = LoggerFactory.getLogger("InvariantEngine");
+
+    /* The invariants of one program point at the time of a snapshot. */
+    public static class Point {
+        public final int probe;
+        public final byte outcome;
+        public final long samples;
+        public final List<String> invariants;
+
+        Point(int probe, byte outcome, long samples, List<String> invariants) {
+            this.probe = probe;
+            this.outcome = outcome;
+            this.samples = samples;
+            this.invariants = invariants;
+        }
+    }
+
+    private final int maxProbes;
+    private final long minSamples;
+
+    private int[] keys = new int[1024];
+    private PointInvariants[][] points = new PointInvariants[1024][];
+    private int size = 0;
+    private long dropped = 0;
+
+    private ScheduledExecutorService snapshots = null;
+
+    public InvariantEngine(int maxProbes, long minSamples) {
+        this.maxProbes = maxProbes;
+        this.minSamples = minSamples;
+    }
+
+    @Override
+    public synchronized void onRecord(ByteBuffer batch, int offset) {
+        PointInvariants[] outcomes = lookup(ReportRecord.branchId(batch, offset));
+        if (outcomes == null) {
+            dropped++;
+            return;
+        }
+
+        int outcome = ReportRecord.outcome(batch, offset);
+        if (outcome < 0 || outcome > ReportRecord.OUTCOME_UNKNOWN) {
+            outcome = ReportRecord.OUTCOME_UNKNOWN;
+        }
+        PointInvariants point = outcomes[outcome];
+        if (point == null) {
+            point = new PointInvariants();
+            outcomes[outcome] = point;
+        }
+        point.add(batch, offset);
+    }
+
+    /* The invariants of every point with at least `minSamples` samples,
+     * naming variables after the probe table (which may be null).
+     */
+    public synchronized List<Point> snapshot(ProbeTable table) {
+        Map<Integer, ProbeTable.Probe> probes = new HashMap<>();
+        if (table != null) {
+            for (ProbeTable.Probe probe : table.probes()) {
+                probes.put(probe.id, probe);
+            }
+        }
+
+        List<Point> rval = new ArrayList<>();
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (points[slot] == null) {
+                continue;
+            }
+
+            ProbeTable.Probe probe = probes.get(keys[slot]);
+            List<String> names = probe == null ? null : probe.variables;
+            for (byte outcome = 0; outcome <= ReportRecord.OUTCOME_UNKNOWN; outcome++) {
+                PointInvariants point = points[slot][outcome];
+                if (point != null && point.samples >= minSamples) {
+                    rval.add(new Point(keys[slot], outcome, point.samples, point.describe(names)));
+                }
+            }
+        }
+
+        Collections.sort(rval, (a, b) -> a.probe != b.probe ? Integer.compareUnsigned(a.probe, b.probe)
+                : Byte.compare(a.outcome, b.outcome));
+        return rval;
+    }
+
+    /* Writes a snapshot as a tab separated file of
+     * "<probe> <outcome> <samples> <class> <method> <invariant>" lines,
+     * replacing `location` atomically.
+     */
+    public void writeSnapshot(Path location, ProbeTable table) throws IOException {
+        Map<Integer, ProbeTable.Probe> probes = new HashMap<>();
+        if (table != null) {
+            for (ProbeTable.Probe probe : table.probes()) {
+                probes.put(probe.id, probe);
+            }
+        }
+
+        Path temporary = location.resolveSibling(location.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            writer.write("# Branch variable invariants. " + droppedRecords() + " records of untracked probes.\n");
+            for (Point point : snapshot(table)) {
+                ProbeTable.Probe probe = probes.get(point.probe);
+                String where = probe == null ? "\t" : probe.className + "\t" + probe.methodName;
+                String outcome = point.outcome == ReportRecord.OUTCOME_TRUE ? "true"
+                        : point.outcome == ReportRecord.OUTCOME_FALSE ? "false" : "unknown";
+                for (String invariant : point.invariants) {
+                    writer.write(point.probe + "\t" + outcome + "\t" + point.samples + "\t" + where + "\t"
+                            + invariant + "\n");
+                }
+            }
+        }
+        Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* Writes a snapshot to `location` every `millis` ms and once more on exit.
+     * The probe table is re-read each time, as the daemon may have changed it.
+     */
+    public synchronized void startSnapshots(final Path location, final Path root, final Path probeTable,
+            long millis) {
+        if (snapshots != null) {
+            return;
+        }
+
+        final Runnable write = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeSnapshot(location, ProbeTable.load(root, probeTable));
+                } catch (IOException | RuntimeException e) {
+                    logger.error("Could not write the invariant snapshot. " + e);
+                }
+            }
+        };
+
+        snapshots = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "invariant-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        snapshots.scheduleWithFixedDelay(write, millis, millis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(write, "invariant-snapshot-final"));
+    }
+
+    public synchronized int probes() {
+        return size;
+    }
+
+    public synchronized long droppedRecords() {
+        return dropped;
+    }
+
+    /* The points of `probe`, added if there is room; null if there is not. */
+    private PointInvariants[] lookup(int probe) {
+        int mask = keys.length - 1;
+        int slot = slot(probe) & mask;
+        while (points[slot] != null) {
+            if (keys[slot] == probe) {
+                return points[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size >= maxProbes) {
+            return null;
+        }
+        if ((size + 1) * 2 > keys.length) {
+            grow();
+            return lookup(probe);
+        }
+
+        keys[slot] = probe;
+        points[slot] = new PointInvariants[ReportRecord.OUTCOME_UNKNOWN + 1];
+        size++;
+        return points[slot];
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        PointInvariants[][] oldPoints = points;
+        keys = new int[oldKeys.length * 2];
+        points = new PointInvariants[oldKeys.length * 2][];
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldPoints[i] == null) {
+                continue;
+            }
+            int slot = slot(oldKeys[i]) & mask;
+            while (points[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            points[slot] = oldPoints[i];
+        }
+    }
+
+    /* Probe ids are a file id over a small local counter; spread them out. */
+    private static int slot(int probe) {
+        int h = probe * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
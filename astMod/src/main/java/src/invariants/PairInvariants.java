@@ -0,0 +1,114 @@
+package src.invariants;
+
+import java.util.List;
+
+import src.runtime.ReportRecord;
+
+/* PairInvariants: the candidate invariants between two variables at one
+ * program point: how they compare (==, <, <=, ...) and, for integral
+ * variables, whether one is a linear function y == a * x + b of the other
+ * with an integer slope.
+ *
+ * The comparison is kept as the set of orders seen so far, so a sample can
+ * only ever add a bit. The line is fixed by the first two samples with
+ * different x, and every later sample either lies on it or falsifies it.
+ * Samples where either side is null or of another kind are skipped.
+ */
+final class PairInvariants {
+    private static final int LESS = 1;
+    private static final int EQUAL = 2;
+    private static final int GREATER = 4;
+
+    private static final int LINE_EMPTY = 0;
+    private static final int LINE_POINT = 1;
+    private static final int LINE_FITTED = 2;
+    private static final int LINE_FALSIFIED = 3;
+
+    long samples = 0;
+    int orders = 0;
+
+    int line = LINE_EMPTY;
+    long x0;
+    long y0;
+    long slope;
+    long intercept;
+
+    void add(int kind, long x, long y) {
+        samples++;
+        if (kind == ReportRecord.TYPE_DOUBLE) {
+            double a = Double.longBitsToDouble(x);
+            double b = Double.longBitsToDouble(y);
+            orders |= a < b ? LESS : a > b ? GREATER : EQUAL;
+            line = LINE_FALSIFIED;
+            return;
+        }
+
+        orders |= x < y ? LESS : x > y ? GREATER : EQUAL;
+        switch (line) {
+            case LINE_EMPTY:
+                x0 = x;
+                y0 = y;
+                line = LINE_POINT;
+                break;
+            case LINE_POINT:
+                if (x == x0) {
+                    if (y != y0) {
+                        line = LINE_FALSIFIED;
+                    }
+                } else if ((y - y0) % (x - x0) != 0) {
+                    line = LINE_FALSIFIED;
+                } else {
+                    slope = (y - y0) / (x - x0);
+                    intercept = y0 - slope * x0;
+                    line = LINE_FITTED;
+                }
+                break;
+            case LINE_FITTED:
+                if (y != slope * x + intercept) {
+                    line = LINE_FALSIFIED;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /* Appends the invariants that still hold. A line with slope 1 and no
+     * intercept is just ==, and one with slope 0 a constant, which the
+     * variables already report.
+     */
+    void describe(String x, String y, List<String> out) {
+        if (samples == 0) {
+            return;
+        }
+
+        switch (orders) {
+            case EQUAL:
+                out.add(x + " == " + y);
+                break;
+            case LESS:
+                out.add(x + " < " + y);
+                break;
+            case LESS | EQUAL:
+                out.add(x + " <= " + y);
+                break;
+            case GREATER:
+                out.add(x + " > " + y);
+                break;
+            case GREATER | EQUAL:
+                out.add(x + " >= " + y);
+                break;
+            case LESS | GREATER:
+                out.add(x + " != " + y);
+                break;
+            default:
+                break;
+        }
+
+        if (line == LINE_FITTED && slope != 0 && !(slope == 1 && intercept == 0)) {
+            String term = slope == 1 ? x : slope == -1 ? "-" + x : slope + " * " + x;
+            String offset = intercept == 0 ? "" : intercept > 0 ? " + " + intercept : " - " + -intercept;
+            out.add(y + " == " + term + offset);
+        }
+    }
+}
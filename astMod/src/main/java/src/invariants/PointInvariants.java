@@ -0,0 +1,83 @@
+package src.invariants;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import src.runtime.ReportRecord;
+
+/* PointInvariants: every candidate invariant of one program point, i.e. one
+ * probe taking one outcome. Sized by the number of values of the first record
+ * (at most ReportRecord.MAX_VALUES), so a point never takes more than 8
+ * variables and 28 pairs however many samples it gets.
+ */
+final class PointInvariants {
+    long samples = 0;
+    private VariableInvariants[] variables;
+    private PairInvariants[] pairs;
+
+    void add(ByteBuffer batch, int offset) {
+        int count = ReportRecord.valueCount(batch, offset);
+        if (variables == null) {
+            variables = new VariableInvariants[count];
+            for (int i = 0; i < count; i++) {
+                variables[i] = new VariableInvariants();
+            }
+            pairs = new PairInvariants[count * (count - 1) / 2];
+            for (int i = 0; i < pairs.length; i++) {
+                pairs[i] = new PairInvariants();
+            }
+        }
+        samples++;
+
+        int n = Math.min(count, variables.length);
+        for (int i = 0; i < n; i++) {
+            variables[i].add(ReportRecord.valueType(batch, offset, i), ReportRecord.value(batch, offset, i));
+        }
+
+        int pair = 0;
+        for (int j = 1; j < n; j++) {
+            VariableInvariants y = variables[j];
+            for (int i = 0; i < j; i++, pair++) {
+                VariableInvariants x = variables[i];
+                if (x.kind != y.kind || !x.isNumeric() || !y.isNumeric()
+                        || ReportRecord.valueType(batch, offset, i) != x.kind
+                        || ReportRecord.valueType(batch, offset, j) != y.kind) {
+                    continue;
+                }
+                pairs[pair].add(x.kind, ReportRecord.value(batch, offset, i), ReportRecord.value(batch, offset, j));
+            }
+        }
+    }
+
+    /* The invariants that still hold, with `names` for the variables. Pairs
+     * involving a constant are left out: the constant says it all.
+     */
+    List<String> describe(List<String> names) {
+        List<String> rval = new ArrayList<>();
+        if (variables == null) {
+            return rval;
+        }
+
+        for (int i = 0; i < variables.length; i++) {
+            variables[i].describe(name(names, i), rval);
+        }
+
+        int pair = 0;
+        for (int j = 1; j < variables.length; j++) {
+            for (int i = 0; i < j; i++, pair++) {
+                VariableInvariants x = variables[i];
+                VariableInvariants y = variables[j];
+                if (x.kind != y.kind || !x.isNumeric() || !y.isNumeric() || x.isConstant() || y.isConstant()) {
+                    continue;
+                }
+                pairs[pair].describe(name(names, i), name(names, j), rval);
+            }
+        }
+        return rval;
+    }
+
+    private static String name(List<String> names, int index) {
+        return names != null && index < names.size() ? names.get(index) : "v" + index;
+    }
+}
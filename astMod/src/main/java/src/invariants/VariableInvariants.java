@@ -0,0 +1,169 @@
+package src.invariants;
+
+import java.util.List;
+
+import src.runtime.ReportRecord;
+
+/* VariableInvariants: the candidate invariants over one variable at one
+ * program point: its range, whether it is never zero, whether it only takes
+ * a few values (a constant being the case of one) and whether it is never
+ * null. Each sample updates a handful of fields, and nothing grows with the
+ * number of samples.
+ *
+ * The kind of a variable is the type of its first non-null sample. A later
+ * sample of another kind means the reported values are not comparable (e.g.
+ * an Object variable holding both Integers and Strings), and only the null
+ * check is kept.
+ */
+final class VariableInvariants {
+    static final int MAX_ONE_OF = 3;
+
+    int kind = ReportRecord.TYPE_NONE;
+    boolean mixed = false;
+    long samples = 0;
+    long nulls = 0;
+
+    long min;
+    long max;
+    boolean zeroSeen = false;
+
+    // The distinct values seen so far, until there are more than MAX_ONE_OF.
+    final long[] oneOf = new long[MAX_ONE_OF];
+    int oneOfCount = 0;
+    boolean oneOfFalsified = false;
+
+    void add(int type, long bits) {
+        samples++;
+        if (type == ReportRecord.TYPE_NULL) {
+            nulls++;
+            return;
+        }
+        if (mixed) {
+            return;
+        }
+        if (kind == ReportRecord.TYPE_NONE) {
+            kind = type;
+            min = bits;
+            max = bits;
+        } else if (kind != type) {
+            mixed = true;
+            return;
+        }
+
+        if (kind == ReportRecord.TYPE_REFERENCE) {
+            // Identity hash codes; only nullness means something.
+            return;
+        }
+
+        if (less(bits, min)) {
+            min = bits;
+        }
+        if (less(max, bits)) {
+            max = bits;
+        }
+        if (isZero(bits)) {
+            zeroSeen = true;
+        }
+
+        if (!oneOfFalsified) {
+            for (int i = 0; i < oneOfCount; i++) {
+                if (oneOf[i] == bits) {
+                    return;
+                }
+            }
+            if (oneOfCount == MAX_ONE_OF) {
+                oneOfFalsified = true;
+            } else {
+                oneOf[oneOfCount++] = bits;
+            }
+        }
+    }
+
+    /* Whether the variable held one and the same non-null value throughout. */
+    boolean isConstant() {
+        return !mixed && nulls == 0 && kind != ReportRecord.TYPE_REFERENCE && kind != ReportRecord.TYPE_NONE
+                && !oneOfFalsified && oneOfCount == 1;
+    }
+
+    boolean isNumeric() {
+        return !mixed && (kind == ReportRecord.TYPE_LONG || kind == ReportRecord.TYPE_DOUBLE);
+    }
+
+    /* Appends the invariants that still hold, strongest first. */
+    void describe(String name, List<String> out) {
+        if (samples == 0) {
+            return;
+        }
+        if (nulls == samples) {
+            out.add(name + " == null");
+            return;
+        }
+        if (nulls == 0 && (kind == ReportRecord.TYPE_REFERENCE || mixed)) {
+            out.add(name + " != null");
+        }
+        if (mixed || kind == ReportRecord.TYPE_REFERENCE) {
+            return;
+        }
+
+        String suffix = nulls == 0 ? "" : " (when not null)";
+        if (!oneOfFalsified && oneOfCount == 1) {
+            out.add(name + " == " + format(oneOf[0]) + suffix);
+            return;
+        }
+        if (!oneOfFalsified && kind != ReportRecord.TYPE_BOOLEAN) {
+            StringBuilder values = new StringBuilder();
+            long[] sorted = sorted();
+            for (int i = 0; i < sorted.length; i++) {
+                values.append(i == 0 ? "" : ", ").append(format(sorted[i]));
+            }
+            out.add(name + " one of { " + values + " }" + suffix);
+        }
+        if (kind == ReportRecord.TYPE_BOOLEAN) {
+            return;
+        }
+
+        out.add(format(min) + " <= " + name + " <= " + format(max) + suffix);
+        if (!zeroSeen && less(min, zero()) && less(zero(), max)) {
+            out.add(name + " != 0" + suffix);
+        }
+    }
+
+    String format(long bits) {
+        switch (kind) {
+            case ReportRecord.TYPE_DOUBLE:
+                return Double.toString(Double.longBitsToDouble(bits));
+            case ReportRecord.TYPE_BOOLEAN:
+                return bits != 0 ? "true" : "false";
+            default:
+                return Long.toString(bits);
+        }
+    }
+
+    private long[] sorted() {
+        long[] values = new long[oneOfCount];
+        System.arraycopy(oneOf, 0, values, 0, oneOfCount);
+        for (int i = 1; i < values.length; i++) {
+            for (int j = i; j > 0 && less(values[j], values[j - 1]); j--) {
+                long swap = values[j];
+                values[j] = values[j - 1];
+                values[j - 1] = swap;
+            }
+        }
+        return values;
+    }
+
+    private boolean less(long a, long b) {
+        if (kind == ReportRecord.TYPE_DOUBLE) {
+            return Double.longBitsToDouble(a) < Double.longBitsToDouble(b);
+        }
+        return a < b;
+    }
+
+    private boolean isZero(long bits) {
+        return kind == ReportRecord.TYPE_DOUBLE ? Double.longBitsToDouble(bits) == 0.0 : bits == 0L;
+    }
+
+    private long zero() {
+        return kind == ReportRecord.TYPE_DOUBLE ? Double.doubleToRawLongBits(0.0) : 0L;
+    }
+}
@@ -0,0 +1,61 @@
+package src.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/* JfrEvents: the custom Flight Recorder events of the pipeline. Only touched
+ * when -Dinstrumenter.metrics.jfr=true, so JVMs without jdk.jfr (older 8
+ * updates) never load this class.
+ */
+final class JfrEvents {
+    private JfrEvents() {
+    }
+
+    @Name("src.InstrumenterStage")
+    @Label("Instrumenter Stage")
+    @Category("Instrumenter")
+    @Description("One pipeline stage of one file")
+    static final class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+    }
+
+    @Name("src.InstrumenterFile")
+    @Label("Instrumented File")
+    @Category("Instrumenter")
+    @Description("One file going through the whole pipeline")
+    static final class FileEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+    }
+
+    static void stage(String stage, long nanos) {
+        StageEvent event = new StageEvent();
+        if (event.isEnabled()) {
+            event.stage = stage;
+            event.nanos = nanos;
+            event.commit();
+        }
+    }
+
+    static void file(String file, long nanos) {
+        FileEvent event = new FileEvent();
+        if (event.isEnabled()) {
+            event.file = file;
+            event.nanos = nanos;
+            event.commit();
+        }
+    }
+}
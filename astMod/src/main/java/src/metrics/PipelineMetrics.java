@@ -0,0 +1,313 @@
+package src.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.Options;
+
+/* PipelineMetrics: where the time of an instrumentation run goes.
+ *
+ * Every file is timed per stage (see Stage) and as a whole, and the number of
+ * probes it got is recorded; these go into LatencyHistograms. Other parts of
+ * the master add counters (monotonic, also shown as a rate) and gauges, e.g.
+ * the report collector's record count and queue depth.
+ *
+ * The numbers are shown over JMX, written as JSON every `metricsMillis` ms
+ * and on exit, and, with -Dinstrumenter.metrics.jfr=true, also emitted as
+ * JFR events. Timing a stage costs two System.nanoTime() calls and a few
+ * uncontended atomic increments; with -Dinstrumenter.metrics=false it costs
+ * nothing.
+ */
+public final class PipelineMetrics implements PipelineMetricsMXBean {
+    final static Logger logger = LoggerFactory.getLogger("PipelineMetrics");
+
+    public static final String OBJECT_NAME = "src:type=PipelineMetrics";
+
+    /* The stages of one source file. READ is the single read of the source
+     * that replaced copying it into IfInstrumented; in batch mode PARSE is the
+     * time the parser spent between handing out two units. COLLECT is the
+     * collector pass, which runs next to REWRITE on another thread. INDEX is
+     * the FieldIndex pre-pass over a source, before any of the others.
+     */
+    public enum Stage {
+        LIST, INDEX, READ, PARSE, VISIT, REWRITE, COLLECT, WRITE
+    }
+
+    private static final PipelineMetrics INSTANCE = new PipelineMetrics();
+    private static final boolean ENABLED = Options.metrics;
+    private static final boolean JFR = ENABLED && Options.metricsJfr && jfrAvailable();
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+    private final LatencyHistogram files = new LatencyHistogram();
+    private final LatencyHistogram probes = new LatencyHistogram();
+    private final Map<String, LongSupplier> counters = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+    // Counter values and time of the last rate sample.
+    private final Map<String, Long> lastCounts = new ConcurrentHashMap<>();
+    private final Map<String, Double> rates = new ConcurrentHashMap<>();
+    private long lastSample = System.nanoTime();
+
+    private ScheduledExecutorService dumps = null;
+
+    private PipelineMetrics() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new LatencyHistogram();
+        }
+    }
+
+    public static PipelineMetrics get() {
+        return INSTANCE;
+    }
+
+    /* Start of a timed section, to pass to stage() or file(). */
+    public static long start() {
+        return ENABLED ? System.nanoTime() : 0L;
+    }
+
+    /* Records the time since `start` as one run of `stage`. Returns the end
+     * time, so consecutive stages can be timed with one clock read each.
+     */
+    public static long stage(Stage stage, long start) {
+        if (!ENABLED) {
+            return 0L;
+        }
+
+        long end = System.nanoTime();
+        INSTANCE.stages[stage.ordinal()].record(end - start);
+        if (JFR) {
+            JfrEvents.stage(stage.name(), end - start);
+        }
+        return end;
+    }
+
+    /* Records one file that went through the pipeline since `start`. */
+    public static void file(String file, long start) {
+        if (!ENABLED) {
+            return;
+        }
+
+        long nanos = System.nanoTime() - start;
+        INSTANCE.files.record(nanos);
+        if (JFR) {
+            JfrEvents.file(file, nanos);
+        }
+    }
+
+    /* Records the number of probes one file got. */
+    public static void probes(int count) {
+        if (ENABLED) {
+            INSTANCE.probes.record(count);
+        }
+    }
+
+    public void counter(String name, LongSupplier value) {
+        counters.put(name, value);
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /* Registers the MXBean and writes `location` every `millis` ms (if more
+     * than 0) and on exit. Does nothing when metrics are off.
+     */
+    public synchronized void publish(final Path location, long millis) {
+        if (!ENABLED || dumps != null) {
+            return;
+        }
+
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            logger.error("Could not register the metrics MXBean. " + e);
+        }
+
+        final Runnable dump = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(location);
+                } catch (IOException e) {
+                    logger.error("Could not write the metrics. " + e);
+                }
+            }
+        };
+
+        dumps = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "metrics-dump");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (millis > 0) {
+            dumps.scheduleWithFixedDelay(dump, millis, millis, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(dump, "metrics-dump-final"));
+    }
+
+    public void write(Path location) throws IOException {
+        Path temporary = location.resolveSibling(location.getFileName() + ".tmp");
+        Files.write(temporary, getJson().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, location, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ----------------------------- MXBean -----------------------------
+    @Override
+    public long getFilesInstrumented() {
+        return files.count();
+    }
+
+    @Override
+    public long getProbesInserted() {
+        return probes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getStageTotalMicros() {
+        Map<String, Long> rval = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            rval.put(stage.name(), stages[stage.ordinal()].sum() / 1000);
+        }
+        return rval;
+    }
+
+    @Override
+    public Map<String, Long> getStageP99Micros() {
+        Map<String, Long> rval = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            rval.put(stage.name(), stages[stage.ordinal()].percentile(0.99) / 1000);
+        }
+        return rval;
+    }
+
+    @Override
+    public long getFileP50Micros() {
+        return files.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getFileP99Micros() {
+        return files.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getFileMaxMicros() {
+        return files.max() / 1000;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        return read(counters);
+    }
+
+    /* Per second, since the previous call (of this or of getJson()). */
+    @Override
+    public synchronized Map<String, Double> getCounterRates() {
+        long now = System.nanoTime();
+        double seconds = (now - lastSample) / 1e9;
+        lastSample = now;
+
+        for (Map.Entry<String, Long> counter : getCounters().entrySet()) {
+            Long last = lastCounts.put(counter.getKey(), counter.getValue());
+            if (last != null && seconds > 0) {
+                rates.put(counter.getKey(), (counter.getValue() - last) / seconds);
+            }
+        }
+        return new TreeMap<>(rates);
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        return read(gauges);
+    }
+
+    @Override
+    public String getJson() {
+        StringBuilder json = new StringBuilder(2048);
+        json.append("{\n  \"timestamp\": ").append(System.currentTimeMillis());
+        json.append(",\n  \"stages\": {");
+        for (Stage stage : Stage.values()) {
+            json.append(stage.ordinal() == 0 ? "\n    " : ",\n    ");
+            histogram(json.append('"').append(stage.name().toLowerCase()).append("\": "),
+                    stages[stage.ordinal()]);
+        }
+        histogram(json.append("\n  },\n  \"file\": "), files);
+        json.append(",\n  \"probesPerFile\": {\"files\": ").append(probes.count());
+        json.append(", \"total\": ").append(probes.sum());
+        json.append(", \"p50\": ").append(probes.percentile(0.5));
+        json.append(", \"max\": ").append(probes.max()).append('}');
+        values(json.append(",\n  \"counters\": "), getCounters());
+        values(json.append(",\n  \"rates\": "), getCounterRates());
+        values(json.append(",\n  \"gauges\": "), getGauges());
+        return json.append("\n}\n").toString();
+    }
+
+    private static void histogram(StringBuilder json, LatencyHistogram histogram) {
+        json.append("{\"count\": ").append(histogram.count());
+        json.append(", \"totalMicros\": ").append(histogram.sum() / 1000);
+        json.append(", \"p50Micros\": ").append(histogram.percentile(0.5) / 1000);
+        json.append(", \"p90Micros\": ").append(histogram.percentile(0.9) / 1000);
+        json.append(", \"p99Micros\": ").append(histogram.percentile(0.99) / 1000);
+        json.append(", \"maxMicros\": ").append(histogram.max() / 1000).append('}');
+    }
+
+    private static void values(StringBuilder json, Map<String, ?> values) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, ?> value : values.entrySet()) {
+            json.append(first ? "" : ", ").append('"').append(value.getKey()).append("\": ");
+            Object number = value.getValue();
+            if (number instanceof Double) {
+                json.append(String.format(Locale.ROOT, "%.1f", (Double) number));
+            } else {
+                json.append(number);
+            }
+            first = false;
+        }
+        json.append('}');
+    }
+
+    private static Map<String, Long> read(Map<String, LongSupplier> suppliers) {
+        Map<String, Long> rval = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> supplier : suppliers.entrySet()) {
+            rval.put(supplier.getKey(), supplier.getValue().getAsLong());
+        }
+        return rval;
+    }
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            logger.error("JFR events requested, but this JVM has no jdk.jfr.");
+            return false;
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package src.metrics;
+
+import java.util.Map;
+
+/* PipelineMetricsMXBean: what PipelineMetrics shows over JMX, registered as
+ * PipelineMetrics.OBJECT_NAME. Times are in microseconds.
+ */
+public interface PipelineMetricsMXBean {
+    long getFilesInstrumented();
+
+    long getProbesInserted();
+
+    Map<String, Long> getStageTotalMicros();
+
+    Map<String, Long> getStageP99Micros();
+
+    long getFileP50Micros();
+
+    long getFileP99Micros();
+
+    long getFileMaxMicros();
+
+    Map<String, Long> getCounters();
+
+    Map<String, Double> getCounterRates();
+
+    Map<String, Long> getGauges();
+
+    String getJson();
+}
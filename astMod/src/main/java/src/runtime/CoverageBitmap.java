@@ -0,0 +1,172 @@
+package src.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* CoverageBitmap: the branches one test execution took, two bits per probe:
+ * bit probe * 2 for the false outcome and probe * 2 + 1 for the true one.
+ *
+ * Probe ids are sparse (a file id over a local counter, see ProbeTable), so
+ * only the non-zero 64-bit words are kept, with their word index, in index
+ * order. On the wire (see encode()) consecutive words form runs, and each run
+ * is written as the gap since the previous run, its length and its words,
+ * with the gap and length as varints:
+ *
+ *   int COVERAGE_MAGIC, string test id (int length + UTF-8),
+ *   varint runs, runs * (varint gap, varint length, length * long word)
+ */
+public final class CoverageBitmap {
+    public static final int COVERAGE_MAGIC = 0x43564247; // "CVBG"
+
+    private final String test;
+    private final int[] indexes;
+    private final long[] words;
+
+    /* `indexes` must be ascending, and `words` non-zero; both are kept. */
+    public CoverageBitmap(String test, int[] indexes, long[] words) {
+        this.test = test;
+        this.indexes = indexes;
+        this.words = words;
+    }
+
+    public static int bit(int probe, boolean outcome) {
+        return (probe << 1) | (outcome ? 1 : 0);
+    }
+
+    public static int probeOf(int bit) {
+        return bit >>> 1;
+    }
+
+    public static boolean outcomeOf(int bit) {
+        return (bit & 1) != 0;
+    }
+
+    public String test() {
+        return test;
+    }
+
+    public int words() {
+        return indexes.length;
+    }
+
+    public int index(int i) {
+        return indexes[i];
+    }
+
+    public long word(int i) {
+        return words[i];
+    }
+
+    public boolean get(int bit) {
+        int i = Arrays.binarySearch(indexes, bit >>> 6);
+        return i >= 0 && (words[i] & (1L << (bit & 63))) != 0;
+    }
+
+    public int cardinality() {
+        int rval = 0;
+        for (long word : words) {
+            rval += Long.bitCount(word);
+        }
+        return rval;
+    }
+
+    /* Every set bit, ascending. */
+    public int[] bits() {
+        int[] rval = new int[cardinality()];
+        int n = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                rval[n++] = (indexes[i] << 6) | Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return rval;
+    }
+
+    public ByteBuffer encode() {
+        byte[] name = test.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(13 + name.length + indexes.length * 18);
+        buffer.putInt(COVERAGE_MAGIC).putInt(name.length).put(name);
+
+        int runs = 0;
+        for (int i = 0; i < indexes.length; i++) {
+            if (i == 0 || indexes[i] != indexes[i - 1] + 1) {
+                runs++;
+            }
+        }
+        putVarint(buffer, runs);
+
+        int end = 0;
+        for (int from = 0; from < indexes.length;) {
+            int to = from + 1;
+            while (to < indexes.length && indexes[to] == indexes[to - 1] + 1) {
+                to++;
+            }
+
+            putVarint(buffer, indexes[from] - end);
+            putVarint(buffer, to - from);
+            for (int i = from; i < to; i++) {
+                buffer.putLong(words[i]);
+            }
+            end = indexes[to - 1] + 1;
+            from = to;
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    public static CoverageBitmap decode(ByteBuffer buffer) {
+        if (buffer.getInt() != COVERAGE_MAGIC) {
+            throw new IllegalArgumentException("Not a coverage bitmap");
+        }
+
+        byte[] name = new byte[buffer.getInt()];
+        buffer.get(name);
+
+        int runs = getVarint(buffer);
+        int[] indexes = new int[16];
+        long[] words = new long[16];
+        int n = 0;
+        int end = 0;
+        for (int run = 0; run < runs; run++) {
+            int index = end + getVarint(buffer);
+            int length = getVarint(buffer);
+            if (n + length > indexes.length) {
+                int capacity = Math.max(indexes.length * 2, n + length);
+                indexes = Arrays.copyOf(indexes, capacity);
+                words = Arrays.copyOf(words, capacity);
+            }
+            for (int i = 0; i < length; i++) {
+                indexes[n] = index + i;
+                words[n++] = buffer.getLong();
+            }
+            end = index + length;
+        }
+
+        return new CoverageBitmap(new String(name, StandardCharsets.UTF_8), Arrays.copyOf(indexes, n),
+                Arrays.copyOf(words, n));
+    }
+
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Corrupt varint in coverage bitmap");
+    }
+}
@@ -0,0 +1,116 @@
+package src.runtime;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* CoverageMap: the branch bitmap of the test execution in progress, for the
+ * "coverage" report mode. Every file with probes gets a dense block of two
+ * bits per possible local probe (see CoverageBitmap for the bit layout).
+ *
+ * Resetting between tests is O(1): it only moves to a new epoch. A file's
+ * block is cleared the first time it is hit in an epoch, so the cost of a
+ * reset is paid by the files the next test actually reaches. A hit on a
+ * branch that is already set is a single read; only the first hit of a
+ * branch in a test writes.
+ */
+public final class CoverageMap {
+    private static final int FILES = 1 << (32 - ProbeStore.LOCAL_BITS);
+    private static final int LOCAL_MASK = (1 << ProbeStore.LOCAL_BITS) - 1;
+    // 32 probes of two bits per word.
+    private static final int WORD_BITS = ProbeStore.LOCAL_BITS - 5;
+
+    private static final CoverageMap instance = new CoverageMap();
+
+    private final AtomicReferenceArray<FileWords> files = new AtomicReferenceArray<>(FILES);
+    private volatile int epoch = 1;
+
+    // Files hit in the current epoch, in first-hit order.
+    private int[] touched = new int[64];
+    private int touchedCount = 0;
+
+    private static final class FileWords {
+        volatile int epoch = 0;
+        final AtomicLongArray words = new AtomicLongArray(1 << WORD_BITS);
+    }
+
+    public static CoverageMap get() {
+        return instance;
+    }
+
+    public void hit(int probe, boolean outcome) {
+        int file = probe >>> ProbeStore.LOCAL_BITS;
+        int local = probe & LOCAL_MASK;
+
+        FileWords words = files.get(file);
+        if (words == null || words.epoch != epoch) {
+            words = touch(file);
+        }
+
+        int index = local >>> 5;
+        long mask = 1L << (((local & 31) << 1) | (outcome ? 1 : 0));
+        long current = words.words.get(index);
+        while ((current & mask) == 0 && !words.words.compareAndSet(index, current, current | mask)) {
+            current = words.words.get(index);
+        }
+    }
+
+    /* Starts a new test execution; what was recorded so far is dropped. */
+    public synchronized void reset() {
+        epoch++;
+        touchedCount = 0;
+    }
+
+    /* The bitmap of the current execution under `test`; then resets. */
+    public synchronized CoverageBitmap finish(String test) {
+        int[] fileIds = Arrays.copyOf(touched, touchedCount);
+        Arrays.sort(fileIds);
+
+        int[] indexes = new int[64];
+        long[] values = new long[64];
+        int n = 0;
+        for (int file : fileIds) {
+            AtomicLongArray words = files.get(file).words;
+            for (int i = 0; i < words.length(); i++) {
+                long word = words.get(i);
+                if (word == 0) {
+                    continue;
+                }
+                if (n == indexes.length) {
+                    indexes = Arrays.copyOf(indexes, n * 2);
+                    values = Arrays.copyOf(values, n * 2);
+                }
+                indexes[n] = (file << WORD_BITS) | i;
+                values[n++] = word;
+            }
+        }
+
+        reset();
+        return new CoverageBitmap(test, Arrays.copyOf(indexes, n), Arrays.copyOf(values, n));
+    }
+
+    /* Sends the bitmap of the current execution to the master; then resets. */
+    public void publish(String test) {
+        ReportSender.get().submitCoverage(finish(test).encode());
+    }
+
+    private synchronized FileWords touch(int file) {
+        FileWords words = files.get(file);
+        if (words == null) {
+            words = new FileWords();
+            files.set(file, words);
+        }
+        if (words.epoch != epoch) {
+            for (int i = 0; i < words.words.length(); i++) {
+                words.words.set(i, 0L);
+            }
+            words.epoch = epoch;
+
+            if (touchedCount == touched.length) {
+                touched = Arrays.copyOf(touched, touchedCount * 2);
+            }
+            touched[touchedCount++] = file;
+        }
+        return words;
+    }
+}
@@ -0,0 +1,66 @@
+package src.runtime;
+
+/* Operands: the per thread stack that comparison operands wait on between
+ * Reporter.operand(), which captures each side as it is evaluated, and
+ * Reporter.term(), which reports the comparison they belong to. Comparisons
+ * nested in an operand push and pop their own pair first, so the top two
+ * entries always belong to the comparison being reported.
+ *
+ * Values are kept the way a record stores them (a type and raw long bits), so
+ * capturing primitives does not allocate. An exception thrown between an
+ * operand and its comparison leaves entries behind; they only cost a slot
+ * until the stack wraps around.
+ */
+public final class Operands {
+    private static final int CAPACITY = 64;
+
+    private static final ThreadLocal<Operands> current = new ThreadLocal<Operands>() {
+        @Override
+        protected Operands initialValue() {
+            return new Operands();
+        }
+    };
+
+    private final int[] types = new int[CAPACITY];
+    private final long[] values = new long[CAPACITY];
+    private int depth = 0;
+
+    private Operands() {
+    }
+
+    public static Operands get() {
+        return current.get();
+    }
+
+    public void push(int type, long value) {
+        if (depth == CAPACITY) {
+            // Only entries stranded by exceptions can fill it up.
+            depth = 0;
+        }
+        types[depth] = type;
+        values[depth] = value;
+        depth++;
+    }
+
+    public void push(Object value) {
+        int type = ReportRecord.typeOf(value);
+        push(type, ReportRecord.bitsOf(value, type));
+    }
+
+    public int size() {
+        return depth;
+    }
+
+    /* Type and value of the entry `fromTop` entries below the top. */
+    public int type(int fromTop) {
+        return types[depth - 1 - fromTop];
+    }
+
+    public long value(int fromTop) {
+        return values[depth - 1 - fromTop];
+    }
+
+    public void drop(int count) {
+        depth = Math.max(0, depth - count);
+    }
+}
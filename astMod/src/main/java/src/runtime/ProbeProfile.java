@@ -0,0 +1,79 @@
+package src.runtime;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/* ProbeProfile: what one probe has seen so far. Hit counters are LongAdders,
+ * which stripe themselves across cells once threads start contending, so
+ * many threads can hit the same probe without fighting over one cache line.
+ */
+public final class ProbeProfile {
+    private final int id;
+    private final int types;
+    private final LongAdder trueHits = new LongAdder();
+    private final LongAdder falseHits = new LongAdder();
+    private final ValueProfile[] values;
+
+    // Hits already sent in snapshots, see ProbeStore.writeSnapshot().
+    private long sentTrueHits = 0;
+    private long sentFalseHits = 0;
+
+    ProbeProfile(int id, int types, int count) {
+        this.id = id;
+        this.types = types;
+        this.values = new ValueProfile[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = new ValueProfile((types >>> (4 * i)) & 0xF);
+        }
+    }
+
+    void hit(boolean outcome) {
+        if (outcome) {
+            trueHits.increment();
+        } else {
+            falseHits.increment();
+        }
+    }
+
+    void value(int index, long bits) {
+        if (index < values.length) {
+            values[index].record(bits);
+        }
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public int types() {
+        return types;
+    }
+
+    public long trueHits() {
+        return trueHits.sum();
+    }
+
+    public long falseHits() {
+        return falseHits.sum();
+    }
+
+    /* Hits since the previous call, as {true, false}. Only the snapshot
+     * writer calls this, under its lock. Hits that race with it are in the
+     * next delta, none are lost.
+     */
+    long[] takeHits() {
+        long t = trueHits.sum();
+        long f = falseHits.sum();
+        long[] rval = { t - sentTrueHits, f - sentFalseHits };
+        sentTrueHits = t;
+        sentFalseHits = f;
+        return rval;
+    }
+
+    public int valueCount() {
+        return values.length;
+    }
+
+    public ValueProfile value(int index) {
+        return values[index];
+    }
+}
@@ -0,0 +1,104 @@
+package src.runtime;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* ProbeSampler: bounds what hot probes cost at runtime. Every probe is
+ * recorded for its first `after` hits; from then on only one hit in `every`
+ * is, so rare branches are always seen while a probe in a tight loop settles
+ * at a fixed fraction of the work.
+ *
+ * Enabled with -Dinstrumenter.sample.after=N (0, the default, records every
+ * hit) and -Dinstrumenter.sample.every=K (default 100).
+ *
+ * Counters are plain ints in the same two level layout as ProbeStore and are
+ * updated without synchronization. Two threads may lose an increment now and
+ * then, which only moves the next sample by a hit.
+ */
+public final class ProbeSampler {
+    public static final String AFTER_PROPERTY = "instrumenter.sample.after";
+    public static final String EVERY_PROPERTY = "instrumenter.sample.every";
+
+    private static final int FILES = 1 << (32 - ProbeStore.LOCAL_BITS);
+    private static final int LOCAL_MASK = (1 << ProbeStore.LOCAL_BITS) - 1;
+
+    private static final ProbeSampler instance = new ProbeSampler(Integer.getInteger(AFTER_PROPERTY, 0),
+            Integer.getInteger(EVERY_PROPERTY, 100));
+
+    private final int after;
+    private final int every;
+    private final AtomicReferenceArray<FileCounters> files;
+
+    private static final class FileCounters {
+        volatile int[] counts = new int[16];
+    }
+
+    ProbeSampler(int after, int every) {
+        this.after = Math.max(0, after);
+        this.every = Math.max(1, every);
+        this.files = this.after > 0 ? new AtomicReferenceArray<FileCounters>(FILES) : null;
+    }
+
+    public static ProbeSampler get() {
+        return instance;
+    }
+
+    public boolean enabled() {
+        return after > 0;
+    }
+
+    /* Counts a hit of the probe and tells whether it should be recorded. */
+    public boolean sample(int probe) {
+        int[] counts = counts(probe);
+        int local = probe & LOCAL_MASK;
+
+        int count = counts[local] + 1;
+        if (count <= after) {
+            counts[local] = count;
+            return true;
+        }
+
+        // Past `after` the counter cycles through a window of `every` hits and
+        // only the first hit of each window is recorded. It never overflows.
+        if (count > after + every) {
+            count = after + 1;
+        }
+        counts[local] = count;
+        return count == after + 1;
+    }
+
+    private int[] counts(int probe) {
+        int file = probe >>> ProbeStore.LOCAL_BITS;
+        int local = probe & LOCAL_MASK;
+
+        FileCounters counters = files.get(file);
+        if (counters != null) {
+            int[] counts = counters.counts;
+            if (local < counts.length) {
+                return counts;
+            }
+        }
+        return grow(file, local);
+    }
+
+    private int[] grow(int file, int local) {
+        FileCounters counters = files.get(file);
+        if (counters == null) {
+            files.compareAndSet(file, null, new FileCounters());
+            counters = files.get(file);
+        }
+
+        synchronized (counters) {
+            int[] counts = counters.counts;
+            if (local < counts.length) {
+                return counts;
+            }
+
+            int length = Math.max(Integer.highestOneBit(local) << 1, counts.length);
+            int[] updated = new int[length];
+            System.arraycopy(counts, 0, updated, 0, counts.length);
+
+            counters.counts = updated;
+            return updated;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package src.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/* ProbeStore: in-process branch coverage and value profiles, keyed by probe id.
+ *
+ * Probe ids are (fileId << LOCAL_BITS) | local (see ProbeTable), so the store
+ * is a two level table: one slot per file, and per file a growable array of
+ * ProbeProfiles. Looking up an existing profile is two array reads and no
+ * locking; only creating a profile (once per probe) takes the file's lock.
+ *
+ * The master reads the store in bulk through writeSnapshot(). Snapshots
+ * carry the hits since the previous one, so the master can add them up
+ * however often a runner flushes.
+ */
+public final class ProbeStore {
+    // Shared with ProbeTable, which hands out the ids.
+    public static final int LOCAL_BITS = 14;
+    public static final int SNAPSHOT_MAGIC = 0x50534e32; // "PSN2"
+
+    private static final int FILES = 1 << (32 - LOCAL_BITS);
+    private static final int LOCAL_MASK = (1 << LOCAL_BITS) - 1;
+
+    private static final ProbeStore instance = new ProbeStore();
+
+    private final AtomicReferenceArray<FileProfiles> files = new AtomicReferenceArray<>(FILES);
+
+    private static final class FileProfiles {
+        volatile ProbeProfile[] probes = new ProbeProfile[16];
+    }
+
+    public static ProbeStore get() {
+        return instance;
+    }
+
+    public void record(int probe, boolean outcome, int types, int count, long v0, long v1, long v2, long v3) {
+        ProbeProfile profile = profile(probe, types, count);
+        profile.hit(outcome);
+        switch (count) {
+            case 4:
+                profile.value(3, v3);
+            case 3:
+                profile.value(2, v2);
+            case 2:
+                profile.value(1, v1);
+            case 1:
+                profile.value(0, v0);
+            default:
+                break;
+        }
+    }
+
+    public void record(int probe, boolean outcome, Object[] values) {
+        int count = values == null ? 0 : Math.min(values.length, ReportRecord.MAX_VALUES);
+        int types = 0;
+        for (int i = 0; i < count; i++) {
+            types |= ReportRecord.typeOf(values[i]) << (4 * i);
+        }
+
+        ProbeProfile profile = profile(probe, types, count);
+        profile.hit(outcome);
+        for (int i = 0; i < count; i++) {
+            int type = (types >>> (4 * i)) & 0xF;
+            profile.value(i, ReportRecord.bitsOf(values[i], type));
+        }
+    }
+
+    private ProbeProfile profile(int probe, int types, int count) {
+        int file = probe >>> LOCAL_BITS;
+        int local = probe & LOCAL_MASK;
+
+        FileProfiles profiles = files.get(file);
+        if (profiles != null) {
+            ProbeProfile[] probes = profiles.probes;
+            if (local < probes.length && probes[local] != null) {
+                return probes[local];
+            }
+        }
+        return create(probe, file, local, types, count);
+    }
+
+    private ProbeProfile create(int probe, int file, int local, int types, int count) {
+        FileProfiles profiles = files.get(file);
+        if (profiles == null) {
+            files.compareAndSet(file, null, new FileProfiles());
+            profiles = files.get(file);
+        }
+
+        synchronized (profiles) {
+            ProbeProfile[] probes = profiles.probes;
+            if (local < probes.length && probes[local] != null) {
+                return probes[local];
+            }
+
+            // Copy on write, so that readers never see a slot change under them.
+            int length = Math.max(Integer.highestOneBit(local) << 1, probes.length);
+            ProbeProfile[] updated = new ProbeProfile[length];
+            System.arraycopy(probes, 0, updated, 0, probes.length);
+            updated[local] = new ProbeProfile(probe, types, count);
+
+            profiles.probes = updated;
+            return updated[local];
+        }
+    }
+
+    public List<ProbeProfile> profiles() {
+        List<ProbeProfile> rval = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            FileProfiles profiles = files.get(i);
+            if (profiles == null) {
+                continue;
+            }
+            for (ProbeProfile profile : profiles.probes) {
+                if (profile != null) {
+                    rval.add(profile);
+                }
+            }
+        }
+        return rval;
+    }
+
+    /* Sends a snapshot to the master's ReportCollector and waits up to
+     * `timeoutMillis` for it to go out.
+     */
+    public void publish(long timeoutMillis) {
+        ReportSender sender = ReportSender.get();
+        sender.submitSnapshot(writeSnapshot());
+        sender.drain(timeoutMillis);
+    }
+
+    /* Encodes every profile as:
+     *   int magic, int probe count, then per probe:
+     *   int id, long true hits, long false hits, int types, int value count,
+     *   and per value: long min, long max, and the ValueProfile.REGISTER_WORDS
+     *   longs of its distinct count registers.
+     * Hits are those since the previous snapshot; values are cumulative, and
+     * merge to the same result when sent again.
+     */
+    public synchronized ByteBuffer writeSnapshot() {
+        List<ProbeProfile> profiles = profiles();
+
+        int size = 8;
+        for (ProbeProfile profile : profiles) {
+            size += 28 + (16 + 8 * ValueProfile.REGISTER_WORDS) * profile.valueCount();
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(profiles.size());
+        for (ProbeProfile profile : profiles) {
+            long[] hits = profile.takeHits();
+            buffer.putInt(profile.id()).putLong(hits[0]).putLong(hits[1]);
+            buffer.putInt(profile.types()).putInt(profile.valueCount());
+            for (int i = 0; i < profile.valueCount(); i++) {
+                ValueProfile value = profile.value(i);
+                buffer.putLong(value.min()).putLong(value.max());
+                for (long word : value.registers()) {
+                    buffer.putLong(word);
+                }
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
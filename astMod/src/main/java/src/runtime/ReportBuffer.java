@@ -0,0 +1,131 @@
+package src.runtime;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/* ReportBuffer: a per-thread buffer of ReportRecords. Probes append to the
+ * buffer of their own thread without any contention; full buffers are handed
+ * to the ReportSender as one batch, and the thread continues with a fresh one.
+ *
+ * All live buffers are remembered, so that whatever is still buffered when the
+ * JVM exits gets flushed by a shutdown hook. The buffer of a thread that ended
+ * is flushed and let go the next time the list has doubled, or at exit, so
+ * short-lived threads do not pile up direct buffers.
+ */
+public final class ReportBuffer {
+    private static final ReportSender sender = ReportSender.get();
+    private static final List<ReportBuffer> buffers = new ArrayList<>();
+    private static int sweepAt = 16; // guarded by buffers
+
+    private static final ThreadLocal<ReportBuffer> local = new ThreadLocal<ReportBuffer>() {
+        @Override
+        protected ReportBuffer initialValue() {
+            ReportBuffer buffer = new ReportBuffer(Thread.currentThread());
+            List<ReportBuffer> retired = null;
+            synchronized (buffers) {
+                buffers.add(buffer);
+                if (buffers.size() >= sweepAt) {
+                    retired = removeRetired();
+                    sweepAt = Math.max(16, buffers.size() * 2);
+                }
+            }
+            if (retired != null) {
+                for (ReportBuffer dead : retired) {
+                    dead.retire();
+                }
+            }
+            return buffer;
+        }
+    };
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("branch-report-flush") {
+            @Override
+            public void run() {
+                flushAll();
+                sender.drain(2000);
+            }
+        });
+    }
+
+    private final WeakReference<Thread> owner;
+    private ByteBuffer buffer = sender.acquire();
+
+    private ReportBuffer(Thread owner) {
+        this.owner = new WeakReference<>(owner);
+    }
+
+    public static ReportBuffer get() {
+        return local.get();
+    }
+
+    public synchronized void append(int branchId, boolean outcome, Object[] values) {
+        if (buffer.remaining() < ReportRecord.SIZE) {
+            flush();
+        }
+        ReportRecord.encode(buffer, branchId, outcome ? ReportRecord.OUTCOME_TRUE : ReportRecord.OUTCOME_FALSE, values);
+    }
+
+    public synchronized void append(int branchId, boolean outcome, int types, int count, long v0, long v1, long v2,
+            long v3) {
+        if (buffer.remaining() < ReportRecord.SIZE) {
+            flush();
+        }
+        ReportRecord.encode(buffer, branchId, outcome ? ReportRecord.OUTCOME_TRUE : ReportRecord.OUTCOME_FALSE, types,
+                count, v0, v1, v2, v3);
+    }
+
+    public synchronized void flush() {
+        if (buffer == null || buffer.position() == ReportRecord.BATCH_HEADER) {
+            return;
+        }
+        sender.submit(buffer);
+        buffer = sender.acquire();
+    }
+
+    private boolean ownerEnded() {
+        Thread thread = owner.get();
+        return thread == null || !thread.isAlive();
+    }
+
+    /* Sends what the ended owner left, and hands the buffer back to the sender. */
+    private synchronized void retire() {
+        if (buffer.position() == ReportRecord.BATCH_HEADER) {
+            sender.recycle(buffer);
+        } else {
+            sender.submit(buffer);
+        }
+        buffer = null;
+    }
+
+    /* Takes the buffers of ended threads off the list. Call with `buffers` held. */
+    private static List<ReportBuffer> removeRetired() {
+        List<ReportBuffer> rval = new ArrayList<>();
+        for (Iterator<ReportBuffer> it = buffers.iterator(); it.hasNext();) {
+            ReportBuffer buffer = it.next();
+            if (buffer.ownerEnded()) {
+                it.remove();
+                rval.add(buffer);
+            }
+        }
+        return rval;
+    }
+
+    public static void flushAll() {
+        List<ReportBuffer> snapshot;
+        List<ReportBuffer> retired;
+        synchronized (buffers) {
+            retired = removeRetired();
+            snapshot = new ArrayList<>(buffers);
+        }
+        for (ReportBuffer buffer : retired) {
+            buffer.retire();
+        }
+        for (ReportBuffer buffer : snapshot) {
+            buffer.flush();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package src.runtime;
+
+import java.nio.ByteBuffer;
+
+/* ReportRecord: the fixed-size binary layout of one branch evaluation, shared
+ * by the instrumented side (ReportBuffer) and the master (ReportCollector).
+ *
+ * A batch on the wire is an int record count followed by that many records.
+ * A count of SNAPSHOT_FRAME instead announces a ProbeStore snapshot, and
+ * COVERAGE_FRAME the CoverageBitmap of one test execution: either is an int
+ * length, at most MAX_FRAME, followed by that many bytes.
+ *
+ * Record layout:
+ *
+ *   offset  size  field
+ *        0     4  branch id
+ *        4     1  outcome (OUTCOME_FALSE, OUTCOME_TRUE or OUTCOME_UNKNOWN)
+ *        5     1  number of values
+ *        6     2  flags (FLAG_TRUNCATED)
+ *        8     4  value types, 4 bits per value
+ *       12     4  reserved
+ *       16    64  MAX_VALUES values, 8 bytes each
+ *
+ * Integral values are stored sign-extended, floating point values as their raw
+ * IEEE bits, and references as their identity hash code.
+ */
+public final class ReportRecord {
+    public static final int MAGIC = 0x42525054; // "BRPT"
+    public static final int VERSION = 1;
+
+    public static final int MAX_VALUES = 8;
+    public static final int SIZE = 16 + MAX_VALUES * 8;
+    public static final int BATCH_HEADER = 4;
+    public static final int MAX_BATCH_RECORDS = 1 << 16;
+    public static final int SNAPSHOT_FRAME = -1;
+    public static final int COVERAGE_FRAME = -2;
+    public static final int MAX_FRAME = 1 << 26;
+
+    public static final byte OUTCOME_FALSE = 0;
+    public static final byte OUTCOME_TRUE = 1;
+    public static final byte OUTCOME_UNKNOWN = 2;
+
+    public static final short FLAG_TRUNCATED = 1;
+
+    public static final int TYPE_NONE = 0;
+    public static final int TYPE_LONG = 1;
+    public static final int TYPE_DOUBLE = 2;
+    public static final int TYPE_BOOLEAN = 3;
+    public static final int TYPE_REFERENCE = 4;
+    public static final int TYPE_NULL = 5;
+
+    private ReportRecord() {
+    }
+
+    /* Branch id for reports that still name their branch by strings (the RMI
+     * path). These ids are not in the probe table.
+     */
+    public static int branchId(String className, String methodName, String branchExpr) {
+        int h = className.hashCode();
+        h = 31 * h + methodName.hashCode();
+        h = 31 * h + branchExpr.hashCode();
+        return h;
+    }
+
+    /* Writes one record at the buffer's position. The values are in the order of
+     * the probe's variable list in the probe table.
+     */
+    public static void encode(ByteBuffer buffer, int branchId, byte outcome, Object[] values) {
+        int start = buffer.position();
+        int count = values == null ? 0 : Math.min(values.length, MAX_VALUES);
+        int types = 0;
+
+        for (int i = 0; i < count; i++) {
+            Object value = values[i];
+            int type = typeOf(value);
+            types |= type << (4 * i);
+            buffer.putLong(start + 16 + 8 * i, bitsOf(value, type));
+        }
+        for (int i = count; i < MAX_VALUES; i++) {
+            buffer.putLong(start + 16 + 8 * i, 0L);
+        }
+
+        buffer.putInt(start, branchId);
+        buffer.put(start + 4, outcome);
+        buffer.put(start + 5, (byte) count);
+        buffer.putShort(start + 6, values != null && values.length > MAX_VALUES ? FLAG_TRUNCATED : 0);
+        buffer.putInt(start + 8, types);
+        buffer.putInt(start + 12, 0);
+
+        buffer.position(start + SIZE);
+    }
+
+    /* Writes one record of up to four values that the caller already turned
+     * into raw longs. `types` holds the type of each value, 4 bits per value,
+     * in the same layout as the record header. Allocation free.
+     */
+    public static void encode(ByteBuffer buffer, int branchId, byte outcome, int types, int count, long v0, long v1,
+            long v2, long v3) {
+        int start = buffer.position();
+
+        buffer.putInt(start, branchId);
+        buffer.put(start + 4, outcome);
+        buffer.put(start + 5, (byte) count);
+        buffer.putShort(start + 6, (short) 0);
+        buffer.putInt(start + 8, types);
+        buffer.putInt(start + 12, 0);
+
+        buffer.putLong(start + 16, v0);
+        buffer.putLong(start + 24, v1);
+        buffer.putLong(start + 32, v2);
+        buffer.putLong(start + 40, v3);
+        for (int i = 4; i < MAX_VALUES; i++) {
+            buffer.putLong(start + 16 + 8 * i, 0L);
+        }
+
+        buffer.position(start + SIZE);
+    }
+
+    static int typeOf(Object value) {
+        if (value == null) {
+            return TYPE_NULL;
+        } else if (value instanceof Double || value instanceof Float) {
+            return TYPE_DOUBLE;
+        } else if (value instanceof Number) {
+            return TYPE_LONG;
+        } else if (value instanceof Character) {
+            return TYPE_LONG;
+        } else if (value instanceof Boolean) {
+            return TYPE_BOOLEAN;
+        }
+        return TYPE_REFERENCE;
+    }
+
+    static long bitsOf(Object value, int type) {
+        switch (type) {
+            case TYPE_LONG:
+                return value instanceof Character ? (long) ((Character) value).charValue()
+                        : ((Number) value).longValue();
+            case TYPE_DOUBLE:
+                return Double.doubleToRawLongBits(((Number) value).doubleValue());
+            case TYPE_BOOLEAN:
+                return ((Boolean) value) ? 1L : 0L;
+            case TYPE_REFERENCE:
+                return System.identityHashCode(value);
+            default:
+                return 0L;
+        }
+    }
+
+    // ----------------- Accessors for records inside a batch -----------------
+    public static int branchId(ByteBuffer batch, int offset) {
+        return batch.getInt(offset);
+    }
+
+    public static byte outcome(ByteBuffer batch, int offset) {
+        return batch.get(offset + 4);
+    }
+
+    public static int valueCount(ByteBuffer batch, int offset) {
+        return batch.get(offset + 5);
+    }
+
+    public static boolean isTruncated(ByteBuffer batch, int offset) {
+        return (batch.getShort(offset + 6) & FLAG_TRUNCATED) != 0;
+    }
+
+    public static int valueType(ByteBuffer batch, int offset, int index) {
+        return (batch.getInt(offset + 8) >>> (4 * index)) & 0xF;
+    }
+
+    public static long value(ByteBuffer batch, int offset, int index) {
+        return batch.getLong(offset + 16 + 8 * index);
+    }
+}
@@ -0,0 +1,244 @@
+package src.runtime;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/* ReportSender: ships frames (batches from the per-thread ReportBuffers, and
+ * ProbeStore snapshots) to the master's ReportCollector on a background thread.
+ *
+ * Full buffers go through a bounded queue. When the master falls behind, the
+ * socket stops draining, the queue fills up and submit() blocks the producing
+ * thread. That is the backpressure.
+ *
+ * When the collector cannot be reached, or the connection breaks, the sender
+ * keeps the batch it was writing and reconnects with a backoff, from 100ms up
+ * to 5s between attempts. In the meantime submit() no longer blocks: the queue
+ * keeps the newest batches and drops the oldest ones once it is full, so the
+ * program under test keeps running and the last window of reports still
+ * reaches a collector that comes back.
+ */
+final class ReportSender implements Runnable {
+    static final String HOST_PROPERTY = "instrumenter.report.host";
+    static final String PORT_PROPERTY = "instrumenter.report.port";
+
+    static final int RECORDS_PER_BATCH = 512;
+    static final int BUFFER_SIZE = ReportRecord.BATCH_HEADER + RECORDS_PER_BATCH * ReportRecord.SIZE;
+
+    private static final int QUEUE_CAPACITY = 64;
+    private static final long MIN_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private static class Holder {
+        static final ReportSender instance = new ReportSender(BUFFER_SIZE);
+    }
+
+    private final BlockingQueue<ByteBuffer> pending = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final int bufferSize;
+
+    private SocketChannel channel;
+    // Set while the sender has no working connection and is backing off.
+    private volatile boolean down = false;
+    private long backoffMillis = MIN_BACKOFF_MILLIS;
+    private int dropped = 0;
+
+    static ReportSender get() {
+        return Holder.instance;
+    }
+
+    ReportSender(int bufferSize) {
+        this.bufferSize = bufferSize;
+
+        Thread thread = new Thread(this, "branch-report-sender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        buffer.position(ReportRecord.BATCH_HEADER);
+        return buffer;
+    }
+
+    /* Queues a batch filled from acquire(). Blocks while the queue is full,
+     * unless the collector is down. */
+    void submit(ByteBuffer batch) {
+        int records = (batch.position() - ReportRecord.BATCH_HEADER) / ReportRecord.SIZE;
+        batch.putInt(0, records);
+        batch.flip();
+        enqueue(batch);
+    }
+
+    /* Queues a ProbeStore snapshot. */
+    void submitSnapshot(ByteBuffer snapshot) {
+        submitFrame(ReportRecord.SNAPSHOT_FRAME, snapshot);
+    }
+
+    /* Queues an encoded CoverageBitmap. */
+    void submitCoverage(ByteBuffer coverage) {
+        submitFrame(ReportRecord.COVERAGE_FRAME, coverage);
+    }
+
+    private void submitFrame(int kind, ByteBuffer payload) {
+        if (payload.remaining() > ReportRecord.MAX_FRAME) {
+            System.err.println("[Reporter] Dropping a frame of " + payload.remaining()
+                    + " bytes, the collector accepts at most " + ReportRecord.MAX_FRAME);
+            return;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(8 + payload.remaining());
+        frame.putInt(kind).putInt(payload.remaining()).put(payload).flip();
+        enqueue(frame);
+    }
+
+    private void enqueue(ByteBuffer batch) {
+        boolean interrupted = false;
+        while (true) {
+            if (down) {
+                enqueueDroppingOldest(batch);
+                break;
+            }
+            // Wait in slices, the collector may go down while the queue is full.
+            try {
+                if (pending.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void enqueueDroppingOldest(ByteBuffer batch) {
+        while (!pending.offer(batch)) {
+            ByteBuffer oldest = pending.poll();
+            if (oldest != null) {
+                recycle(oldest);
+                synchronized (this) {
+                    dropped++;
+                }
+            }
+        }
+    }
+
+    /* Waits until everything queued so far has been written. */
+    void drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!pending.isEmpty() && !down && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer retry = null;
+        while (true) {
+            ByteBuffer batch = retry;
+            if (batch == null) {
+                try {
+                    batch = pending.poll(1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (batch == null) {
+                    continue;
+                }
+            }
+
+            try {
+                write(batch);
+            } catch (IOException e) {
+                lost(e);
+                // Start the whole frame again on the next connection.
+                batch.rewind();
+                retry = batch;
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+                continue;
+            }
+            retry = null;
+            if (down) {
+                reconnected();
+            }
+            recycle(batch);
+        }
+    }
+
+    void recycle(ByteBuffer batch) {
+        // Snapshot frames are sized to fit, only batch buffers are reused.
+        if (batch.capacity() == bufferSize) {
+            free.offer(batch);
+        }
+    }
+
+    private void write(ByteBuffer batch) throws IOException {
+        if (channel == null) {
+            connect();
+        }
+
+        while (batch.hasRemaining()) {
+            channel.write(batch);
+        }
+    }
+
+    private void connect() throws IOException {
+        String host = System.getProperty(HOST_PROPERTY, "127.0.0.1");
+        int port = Integer.getInteger(PORT_PROPERTY, 1112);
+
+        channel = SocketChannel.open(new InetSocketAddress(host, port));
+        channel.socket().setTcpNoDelay(true);
+
+        ByteBuffer hello = ByteBuffer.allocate(8);
+        hello.putInt(ReportRecord.MAGIC).putInt(ReportRecord.VERSION).flip();
+        while (hello.hasRemaining()) {
+            channel.write(hello);
+        }
+    }
+
+    private void lost(IOException cause) {
+        if (!down) {
+            down = true;
+            System.err.println("[Reporter] Lost connection to the branch report collector, retrying: " + cause);
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Reconnecting opens a new one.
+            }
+            channel = null;
+        }
+    }
+
+    private void reconnected() {
+        int lostBatches;
+        synchronized (this) {
+            lostBatches = dropped;
+            dropped = 0;
+        }
+        down = false;
+        backoffMillis = MIN_BACKOFF_MILLIS;
+        System.err.println("[Reporter] Reconnected to the branch report collector"
+                + (lostBatches > 0 ? ", dropped " + lostBatches + " batches meanwhile" : ""));
+    }
+}
@@ -0,0 +1,87 @@
+package src.runtime;
+
+import java.nio.ByteBuffer;
+
+/* TraceFormat: layout of the memory-mapped trace segments written by
+ * TraceWriter and read by TraceReader.
+ *
+ * A segment is a pre-sized file: a HEADER_SIZE byte header, then records,
+ * then zeros. Header:
+ *
+ *   offset  size  field
+ *        0     4  MAGIC
+ *        4     2  VERSION
+ *        6     2  header size
+ *        8     8  creation time (millis)
+ *       16     8  process id
+ *       24     4  writer (thread) sequence number
+ *       28     4  segment index of that writer
+ *       32     8  size of the referenced probe table
+ *       40     8  last modification time of the referenced probe table
+ *       48     2  length of the probe table path
+ *       50     n  probe table path (UTF-8)
+ *
+ * Record: a one byte length L (1..127), then L bytes of
+ *   varint probe id, byte (outcome << 4 | value count),
+ *   varint value types (if any values), one varint per value.
+ * Integral and reference values are zigzag varints, doubles are the varint of
+ * their bit-reversed raw bits (short for "round" numbers), booleans 0/1.
+ *
+ * The length byte is written last, so a record cut short by a crash still
+ * reads as length 0, which marks the end of the segment.
+ */
+public final class TraceFormat {
+    public static final int MAGIC = 0x42545243; // "BTRC"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 512;
+    public static final int MAX_RECORD = 127;
+
+    public static final String SUFFIX = ".seg";
+
+    private TraceFormat() {
+    }
+
+    static int putVarint(ByteBuffer buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put(position++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put(position++, (byte) value);
+        return position;
+    }
+
+    public static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /* Encoded form of a value of the given record type. */
+    public static long encodeValue(int type, long bits) {
+        switch (type) {
+            case ReportRecord.TYPE_DOUBLE:
+                return Long.reverse(bits);
+            case ReportRecord.TYPE_BOOLEAN:
+            case ReportRecord.TYPE_NULL:
+            case ReportRecord.TYPE_NONE:
+                return bits;
+            default:
+                return zigzag(bits);
+        }
+    }
+
+    public static long decodeValue(int type, long encoded) {
+        switch (type) {
+            case ReportRecord.TYPE_DOUBLE:
+                return Long.reverse(encoded);
+            case ReportRecord.TYPE_BOOLEAN:
+            case ReportRecord.TYPE_NULL:
+            case ReportRecord.TYPE_NONE:
+                return encoded;
+            default:
+                return unzigzag(encoded);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package src.runtime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* TraceWriter: appends records to memory-mapped trace segments (see
+ * TraceFormat). Every thread writes its own segments, so appending is a few
+ * stores into the mapped buffer with no locking and no copies.
+ *
+ * Mapped pages belong to the OS page cache, so whatever was written survives
+ * the JVM crashing; segments are forced to disk when they fill up and at exit.
+ * The segment of a thread that ended is forced and unmapped when the next
+ * thread starts writing, or at exit, so short-lived threads do not each keep
+ * a segment mapped.
+ */
+public final class TraceWriter {
+    static final String DIRECTORY_PROPERTY = "instrumenter.trace.dir";
+    static final String PROBES_PROPERTY = "instrumenter.trace.probes";
+    static final String SEGMENT_PROPERTY = "instrumenter.trace.segmentSize";
+
+    private static final File directory = new File(System.getProperty(DIRECTORY_PROPERTY, "trace"));
+    private static final int segmentSize = Integer.getInteger(SEGMENT_PROPERTY, 16 << 20);
+    private static final long pid = processId();
+    private static final AtomicInteger writers = new AtomicInteger();
+    private static final List<TraceWriter> all = new ArrayList<>();
+
+    private static final ThreadLocal<TraceWriter> local = new ThreadLocal<TraceWriter>() {
+        @Override
+        protected TraceWriter initialValue() {
+            TraceWriter writer = new TraceWriter(writers.getAndIncrement(), Thread.currentThread());
+            List<TraceWriter> ended;
+            synchronized (all) {
+                ended = removeEnded();
+                all.add(writer);
+            }
+            for (TraceWriter dead : ended) {
+                dead.close();
+            }
+            return writer;
+        }
+    };
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread("trace-force") {
+            @Override
+            public void run() {
+                forceAll();
+            }
+        });
+    }
+
+    private final int sequence;
+    private final WeakReference<Thread> owner;
+    private int segmentIndex = 0;
+    private MappedByteBuffer segment;
+    private int position;
+    private boolean failed = false;
+
+    private TraceWriter(int sequence, Thread owner) {
+        this.sequence = sequence;
+        this.owner = new WeakReference<>(owner);
+    }
+
+    public static TraceWriter get() {
+        return local.get();
+    }
+
+    public void append(int probe, boolean outcome, int types, int count, long v0, long v1, long v2, long v3) {
+        int start = begin();
+        if (start < 0) {
+            return;
+        }
+
+        int p = header(start, probe, outcome, types, count);
+        if (count > 0) {
+            p = TraceFormat.putVarint(segment, p, TraceFormat.encodeValue(types & 0xF, v0));
+        }
+        if (count > 1) {
+            p = TraceFormat.putVarint(segment, p, TraceFormat.encodeValue((types >>> 4) & 0xF, v1));
+        }
+        if (count > 2) {
+            p = TraceFormat.putVarint(segment, p, TraceFormat.encodeValue((types >>> 8) & 0xF, v2));
+        }
+        if (count > 3) {
+            p = TraceFormat.putVarint(segment, p, TraceFormat.encodeValue((types >>> 12) & 0xF, v3));
+        }
+        commit(start, p);
+    }
+
+    public void append(int probe, boolean outcome, Object[] values) {
+        int count = values == null ? 0 : Math.min(values.length, ReportRecord.MAX_VALUES);
+        int types = 0;
+        for (int i = 0; i < count; i++) {
+            types |= ReportRecord.typeOf(values[i]) << (4 * i);
+        }
+
+        int start = begin();
+        if (start < 0) {
+            return;
+        }
+
+        int p = header(start, probe, outcome, types, count);
+        for (int i = 0; i < count; i++) {
+            int type = (types >>> (4 * i)) & 0xF;
+            p = TraceFormat.putVarint(segment, p, TraceFormat.encodeValue(type, ReportRecord.bitsOf(values[i], type)));
+        }
+        commit(start, p);
+    }
+
+    /* Returns where the next record starts, making sure a full record fits. */
+    private int begin() {
+        if (failed) {
+            return -1;
+        }
+        if (segment == null || position + 1 + TraceFormat.MAX_RECORD >= segment.capacity()) {
+            roll();
+            if (failed) {
+                return -1;
+            }
+        }
+        return position;
+    }
+
+    private int header(int start, int probe, boolean outcome, int types, int count) {
+        int p = TraceFormat.putVarint(segment, start + 1, probe & 0xFFFFFFFFL);
+        segment.put(p++, (byte) ((outcome ? 1 : 0) << 4 | count));
+        if (count > 0) {
+            p = TraceFormat.putVarint(segment, p, types & 0xFFFFFFFFL);
+        }
+        return p;
+    }
+
+    private void commit(int start, int end) {
+        // Length last: until this store the record reads as the end of the segment.
+        segment.put(start, (byte) (end - start - 1));
+        position = end;
+    }
+
+    private void roll() {
+        if (segment != null) {
+            segment.force();
+        }
+
+        File file = new File(directory, String.format("trace-%d-%d-%d%s", pid, sequence, segmentIndex++,
+                TraceFormat.SUFFIX));
+        try {
+            directory.mkdirs();
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(segmentSize);
+                segment = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+        } catch (IOException e) {
+            failed = true;
+            System.err.println("[Reporter] Could not create trace segment " + file + ", tracing disabled: " + e);
+            return;
+        }
+
+        writeHeader();
+        position = TraceFormat.HEADER_SIZE;
+    }
+
+    private void writeHeader() {
+        String probes = System.getProperty(PROBES_PROPERTY, "");
+        File probeTable = new File(probes);
+        byte[] path = probes.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(path.length, TraceFormat.HEADER_SIZE - 50);
+
+        segment.putInt(0, TraceFormat.MAGIC);
+        segment.putShort(4, TraceFormat.VERSION);
+        segment.putShort(6, (short) TraceFormat.HEADER_SIZE);
+        segment.putLong(8, System.currentTimeMillis());
+        segment.putLong(16, pid);
+        segment.putInt(24, sequence);
+        segment.putInt(28, segmentIndex - 1);
+        segment.putLong(32, probes.isEmpty() ? 0 : probeTable.length());
+        segment.putLong(40, probes.isEmpty() ? 0 : probeTable.lastModified());
+        segment.putShort(48, (short) length);
+        for (int i = 0; i < length; i++) {
+            segment.put(50 + i, path[i]);
+        }
+    }
+
+    public static void forceAll() {
+        List<TraceWriter> snapshot;
+        List<TraceWriter> ended;
+        synchronized (all) {
+            ended = removeEnded();
+            snapshot = new ArrayList<>(all);
+        }
+        for (TraceWriter writer : ended) {
+            writer.close();
+        }
+        for (TraceWriter writer : snapshot) {
+            writer.force();
+        }
+    }
+
+    private synchronized void force() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    /* Forces and unmaps the segment once the owner has ended. Synchronized
+     * with force(), which must not touch an unmapped buffer.
+     */
+    private synchronized void close() {
+        if (segment != null) {
+            segment.force();
+            unmap(segment);
+            segment = null;
+        }
+        failed = true;
+    }
+
+    /* Takes the writers of ended threads off the list. Call with `all` held. */
+    private static List<TraceWriter> removeEnded() {
+        List<TraceWriter> rval = new ArrayList<>();
+        for (Iterator<TraceWriter> it = all.iterator(); it.hasNext();) {
+            TraceWriter writer = it.next();
+            Thread thread = writer.owner.get();
+            if (thread == null || !thread.isAlive()) {
+                it.remove();
+                rval.add(writer);
+            }
+        }
+        return rval;
+    }
+
+    /* Releases the mapping now rather than whenever the buffer is collected.
+     * There is no public API for it: Java 9 and later have
+     * Unsafe.invokeCleaner(), Java 8 the buffer's own cleaner(). If neither
+     * works the mapping goes with the buffer as before.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Before Java 9.
+        }
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object instance = cleaner.invoke(buffer);
+            if (instance != null) {
+                instance.getClass().getMethod("clean").invoke(instance);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector.
+        }
+    }
+
+    private static long processId() {
+        // "<pid>@<host>" on every JVM we care about.
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        try {
+            return Long.parseLong(name.substring(0, name.indexOf('@')));
+        } catch (RuntimeException e) {
+            return name.hashCode() & 0xFFFFFFFFL;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package src.runtime;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* ValueProfile: min, max and an approximate distinct count of the values one
+ * probe reported for one variable.
+ *
+ * Every field is only written when a value actually moves it (a new extreme,
+ * a larger HyperLogLog register), so once a probe has warmed up the common
+ * case is a few plain reads of shared cache lines and no writes at all.
+ *
+ * Snapshots carry the registers rather than the estimate, so profiles of
+ * several runners can be merged register by register (see mergeRegisters())
+ * and estimated as one.
+ */
+public final class ValueProfile {
+    // 64 HyperLogLog registers of 8 bits, packed 8 per long.
+    private static final int REGISTER_BITS = 6;
+    private static final int REGISTERS = 1 << REGISTER_BITS;
+    public static final int REGISTER_WORDS = REGISTERS / 8;
+
+    private final int type;
+    private final AtomicLong min = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLongArray registers = new AtomicLongArray(REGISTER_WORDS);
+    private volatile boolean seen = false;
+
+    ValueProfile(int type) {
+        this.type = type;
+    }
+
+    public int type() {
+        return type;
+    }
+
+    void record(long bits) {
+        if (!seen) {
+            initialize(bits);
+        }
+
+        if (less(bits, min.get())) {
+            long current;
+            while (less(bits, current = min.get()) && !min.compareAndSet(current, bits)) {
+                // Lost a race against another extreme, retry.
+            }
+        }
+        if (less(max.get(), bits)) {
+            long current;
+            while (less(current = max.get(), bits) && !max.compareAndSet(current, bits)) {
+                // Lost a race against another extreme, retry.
+            }
+        }
+
+        long hash = mix(bits);
+        int index = (int) (hash >>> (64 - REGISTER_BITS));
+        int rank = Math.min(Long.numberOfLeadingZeros((hash << REGISTER_BITS) | (1L << (REGISTER_BITS - 1))) + 1, 255);
+        updateRegister(index, rank);
+    }
+
+    private synchronized void initialize(long bits) {
+        if (!seen) {
+            min.set(bits);
+            max.set(bits);
+            seen = true;
+        }
+    }
+
+    private void updateRegister(int index, int rank) {
+        int slot = index >>> 3;
+        int shift = (index & 7) * 8;
+
+        long word;
+        while ((int) ((word = registers.get(slot)) >>> shift & 0xFF) < rank) {
+            long updated = (word & ~(0xFFL << shift)) | ((long) rank << shift);
+            if (registers.compareAndSet(slot, word, updated)) {
+                return;
+            }
+        }
+    }
+
+    private boolean less(long a, long b) {
+        if (type == ReportRecord.TYPE_DOUBLE) {
+            return Double.longBitsToDouble(a) < Double.longBitsToDouble(b);
+        }
+        return a < b;
+    }
+
+    public boolean isEmpty() {
+        return !seen;
+    }
+
+    public long min() {
+        return min.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /* HyperLogLog estimate of the number of distinct values. */
+    public long distinct() {
+        return estimate(registers());
+    }
+
+    /* The packed registers, REGISTER_WORDS longs. */
+    public long[] registers() {
+        long[] rval = new long[REGISTER_WORDS];
+        for (int i = 0; i < rval.length; i++) {
+            rval[i] = registers.get(i);
+        }
+        return rval;
+    }
+
+    /* Raises every register of `into` to the one in `from`, which makes
+     * `into` the registers of the union of both value sets.
+     */
+    public static void mergeRegisters(long[] into, long[] from) {
+        for (int i = 0; i < REGISTERS; i++) {
+            int shift = (i & 7) * 8;
+            long theirs = from[i >>> 3] >>> shift & 0xFF;
+            if ((into[i >>> 3] >>> shift & 0xFF) < theirs) {
+                into[i >>> 3] = (into[i >>> 3] & ~(0xFFL << shift)) | (theirs << shift);
+            }
+        }
+    }
+
+    /* HyperLogLog estimate of the number of distinct values of `registers`. */
+    public static long estimate(long[] registers) {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            int register = (int) (registers[i >>> 3] >>> ((i & 7) * 8) & 0xFF);
+            sum += 1.0 / (1L << register);
+            if (register == 0) {
+                zeros++;
+            }
+        }
+
+        double estimate = 0.709 * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // Small range correction (linear counting).
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+
+    /* 64-bit finalizer from SplitMix64. */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,70 @@
+package src.scheduler;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.server.RemoteObject;
+import java.rmi.server.RemoteRef;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import src.transport.Pingable;
+
+/* Liveness: the heartbeat of a runner, checked on its transport rather than
+ * by calling a Runner method, which a runner busy in runEvoSearch might only
+ * get to afterwards.
+ *
+ * Framed runners are pinged over their connection (see Pingable). For RMI
+ * runners a TCP connection is opened to the endpoint their stub points at;
+ * it is accepted as long as the runner's JVM is there to serve calls.
+ */
+final class Liveness {
+    // UnicastRef.remoteToString() is "... endpoint:[host:port](...) ...".
+    private static final Pattern ENDPOINT = Pattern.compile("endpoint:\\[([^\\]]*):(\\d+)\\]");
+
+    private Liveness() {
+    }
+
+    /* Returns if `runner` can be reached within `timeoutMillis`, throws if not.
+     * Runners reached in some other way can not be checked and count as alive.
+     */
+    static void check(Object runner, int timeoutMillis) throws IOException {
+        if (runner instanceof Pingable) {
+            ((Pingable) runner).ping(timeoutMillis);
+            return;
+        }
+
+        InetSocketAddress endpoint = endpointOf(runner);
+        if (endpoint == null) {
+            return;
+        }
+        try (Socket socket = new Socket()) {
+            socket.connect(endpoint, timeoutMillis);
+        }
+    }
+
+    /* Where an RMI stub sends its calls, or null if `stub` is not one. */
+    static InetSocketAddress endpointOf(Object stub) {
+        RemoteRef ref = null;
+        if (stub instanceof RemoteObject) {
+            ref = ((RemoteObject) stub).getRef();
+        } else if (stub != null && Proxy.isProxyClass(stub.getClass())) {
+            // Stubs of Java 5 and later are dynamic proxies.
+            InvocationHandler handler = Proxy.getInvocationHandler(stub);
+            if (handler instanceof RemoteObject) {
+                ref = ((RemoteObject) handler).getRef();
+            }
+        }
+        if (ref == null) {
+            return null;
+        }
+
+        Matcher matcher = ENDPOINT.matcher(ref.remoteToString());
+        if (!matcher.find()) {
+            return null;
+        }
+        return new InetSocketAddress(matcher.group(1), Integer.parseInt(matcher.group(2)));
+    }
+}
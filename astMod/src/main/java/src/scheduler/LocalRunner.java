@@ -0,0 +1,101 @@
+package src.scheduler;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+
+import src.Options;
+import src.interfaces.Master;
+import src.interfaces.Runner;
+import src.transport.FramedMasterClient;
+
+/* LocalRunner: a stand-in Runner for trying the WorkScheduler with several
+ * runner processes on one machine, without EvoSuite:
+ *
+ *   java -cp astMod.jar src.scheduler.LocalRunner [framed|rmi] [ms per class]
+ *
+ * `just runners 4` starts four of them against a master on this machine.
+ * runEvoSearch() sleeps the given time (default 200) for every class of its
+ * unit and logs what it did. With -Dinstrumenter.runner.dieAfter=n the
+ * process exits in the middle of its n-th unit, to watch the unit go to
+ * another runner. It exits by itself once it has had nothing to do for
+ * -Dinstrumenter.runner.idleMillis (default 30000) after its first unit.
+ */
+public class LocalRunner implements Runner {
+    private static final int dieAfter = Integer.getInteger("instrumenter.runner.dieAfter", 0);
+    private static final long idleMillis = Long.getLong("instrumenter.runner.idleMillis", 30000L);
+
+    private final String name;
+    private final long millisPerClass;
+    private volatile File branchDir;
+    private volatile boolean searching = false;
+    private volatile long lastDone = 0;
+    private int units = 0;
+
+    LocalRunner(String name, long millisPerClass) {
+        this.name = name;
+        this.millisPerClass = millisPerClass;
+    }
+
+    @Override
+    public void setBranchSourceDir(File dir) {
+        this.branchDir = dir;
+    }
+
+    @Override
+    public void setReportSourceDir(File dir) {
+    }
+
+    @Override
+    public synchronized void runEvoSearch() throws RemoteException {
+        File dir = this.branchDir;
+        int classes = dir == null ? 0 : FileUtils.listFiles(dir, new String[] { "java" }, true).size();
+        units++;
+        searching = true;
+        System.out.println(name + " searching " + dir + " (" + classes + " classes)");
+
+        for (int i = 0; i < classes; i++) {
+            if (units == dieAfter && i == classes / 2) {
+                System.out.println(name + " dies in the middle of " + dir);
+                Runtime.getRuntime().halt(3);
+            }
+            try {
+                Thread.sleep(millisPerClass);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted", e);
+            }
+        }
+
+        System.out.println(name + " finished " + dir);
+        lastDone = System.currentTimeMillis();
+        searching = false;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String transport = args.length > 0 ? args[0] : "framed";
+        long millisPerClass = args.length > 1 ? Long.parseLong(args[1]) : 200L;
+        String name = "runner@" + ManagementFactory.getRuntimeMXBean().getName();
+
+        LocalRunner runner = new LocalRunner(name, millisPerClass);
+        if (transport.equals("rmi")) {
+            Master master = (Master) LocateRegistry.getRegistry(1111).lookup("master");
+            master.connect((Runner) UnicastRemoteObject.exportObject(runner, 0));
+        } else {
+            FramedMasterClient.connect("localhost", Options.transportPort).connect(runner);
+        }
+        System.out.println(name + " connected over " + transport);
+
+        while (runner.searching || runner.lastDone == 0
+                || System.currentTimeMillis() - runner.lastDone < idleMillis) {
+            TimeUnit.SECONDS.sleep(1);
+        }
+        System.out.println(name + " idle, exiting");
+        System.exit(0);
+    }
+}
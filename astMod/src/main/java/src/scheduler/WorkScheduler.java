@@ -0,0 +1,422 @@
+package src.scheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.instrumenters.SourceFiles;
+import src.interfaces.Runner;
+
+/* WorkScheduler: splits the instrumented classes into WorkUnits and farms
+ * them out to connected Runners.
+ *
+ * Every runner is driven by its own thread. When it joins it takes its share
+ * of the unassigned units into its own deque; once that is empty it takes from
+ * the shared pool, and then steals from the back of the busiest runner. A
+ * heartbeat checks the transport of every runner periodically (see Liveness),
+ * not the runner itself, which may be busy searching; when it stops answering
+ * (or a call to it fails), its units, including the one it was working on,
+ * go back to the pool for the others.
+ *
+ * Runners without work stay around until every unit is done. A unit that has
+ * been running for a long time on a runner that still answers heartbeats is
+ * started again on an idle runner, and whichever attempt finishes first wins.
+ */
+public class WorkScheduler {
+    final static Logger logger = LoggerFactory.getLogger("WorkScheduler");
+
+    // Heartbeats that may fail in a row before a runner is given up on.
+    private static final int MISSED_HEARTBEATS = 2;
+    // A unit running longer than this many heartbeats may be attempted again.
+    private static final int STRAGGLER_HEARTBEATS = 12;
+    private static final int MAX_ATTEMPTS = 2;
+
+    private final Path sourceRoot;
+    private final File reportDir;
+    private final long heartbeatMillis;
+    private final List<WorkUnit> units = new ArrayList<>();
+    private final ConcurrentLinkedDeque<WorkUnit> pool = new ConcurrentLinkedDeque<>();
+    private final List<RunnerHandle> runners = new CopyOnWriteArrayList<>();
+    private final CountDownLatch remaining;
+    private final AtomicInteger runnerIds = new AtomicInteger();
+
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(daemon("heartbeat"));
+    private final ExecutorService pings = Executors.newCachedThreadPool(daemon("heartbeat-ping"));
+
+    private class RunnerHandle implements Runnable {
+        final int id;
+        final Runner runner;
+        final ConcurrentLinkedDeque<WorkUnit> own = new ConcurrentLinkedDeque<>();
+        volatile WorkUnit current = null;
+        volatile long startedAt = 0;
+        volatile boolean alive = true;
+        int missed = 0;
+
+        RunnerHandle(int id, Runner runner) {
+            this.id = id;
+            this.runner = runner;
+        }
+
+        @Override
+        public void run() {
+            WorkUnit unit;
+            while (alive && (unit = next(this)) != null) {
+                startedAt = System.currentTimeMillis();
+                current = unit;
+                unit.attempts.incrementAndGet();
+                logger.info("Runner " + id + " starts " + unit);
+
+                try {
+                    runner.setBranchSourceDir(unit.directory);
+                    runner.setReportSourceDir(reportDir);
+                    runner.runEvoSearch();
+                } catch (RemoteException e) {
+                    logger.error("Runner " + id + " failed on " + unit + ". " + e);
+                    dead(this);
+                    return;
+                }
+
+                current = null;
+                if (unit.complete()) {
+                    remaining.countDown();
+                    logger.info("Runner " + id + " finished " + unit + ", " + remaining.getCount() + " units left");
+                }
+            }
+            runners.remove(this);
+        }
+
+        @Override
+        public String toString() {
+            return "runner-" + id;
+        }
+    }
+
+    /* Lays the sources under `sourceRoot` out as units of at most `unitSize`
+     * classes under `unitsDir`, keeping their paths relative to the root.
+     * Units follow package directories: a unit holds whole packages, unless a
+     * package alone has more than `unitSize` classes. Sources are hard linked
+     * into the unit directories when the filesystem allows it, and copied
+     * otherwise.
+     */
+    public WorkScheduler(Path sourceRoot, Collection<File> sources, Path unitsDir, File reportDir, int unitSize,
+            long heartbeatMillis) throws IOException {
+        this.sourceRoot = sourceRoot.toAbsolutePath();
+        this.reportDir = reportDir;
+        this.heartbeatMillis = heartbeatMillis;
+
+        List<File> all = new ArrayList<>(sources);
+        Collections.sort(all);
+        int size = Math.max(1, unitSize);
+        List<File> slice = new ArrayList<>();
+        for (int from = 0; from < all.size();) {
+            // The next package, in slices of at most `size`.
+            File directory = all.get(from).getParentFile();
+            int to = from;
+            while (to < all.size() && to - from < size && all.get(to).getParentFile().equals(directory)) {
+                to++;
+            }
+
+            if (!slice.isEmpty() && slice.size() + (to - from) > size) {
+                addUnit(unitsDir, slice);
+                slice = new ArrayList<>();
+            }
+            slice.addAll(all.subList(from, to));
+            from = to;
+        }
+        if (!slice.isEmpty()) {
+            addUnit(unitsDir, slice);
+        }
+
+        this.remaining = new CountDownLatch(units.size());
+        logger.info("Split " + all.size() + " classes into " + units.size() + " work units");
+    }
+
+    private void addUnit(Path unitsDir, List<File> slice) throws IOException {
+        int id = units.size();
+        Path directory = unitsDir.resolve(String.format("unit-%04d", id));
+        Files.createDirectories(directory);
+
+        for (File source : slice) {
+            Path link = directory.resolve(relative(source));
+            Files.createDirectories(link.getParent());
+            SourceFiles.link(source.toPath(), link);
+        }
+
+        WorkUnit unit = new WorkUnit(id, directory.toFile(), slice);
+        units.add(unit);
+        pool.add(unit);
+    }
+
+    private Path relative(File source) {
+        return sourceRoot.relativize(source.getAbsoluteFile().toPath());
+    }
+
+    /* Points the units at sources that were written again since they were laid
+     * out. Instrumented files are replaced rather than rewritten in place, so
+     * the links in the units would keep the old contents. Returns how many of
+     * `sources` exist but are in no unit.
+     */
+    public int refresh(Collection<File> sources) throws IOException {
+        Set<File> pending = new HashSet<>();
+        for (File source : sources) {
+            pending.add(source.getAbsoluteFile());
+        }
+
+        for (WorkUnit unit : units) {
+            for (File source : unit.sources) {
+                if (!pending.remove(source.getAbsoluteFile())) {
+                    continue;
+                }
+
+                Path link = unit.directory.toPath().resolve(relative(source));
+                if (source.exists()) {
+                    SourceFiles.link(source.toPath(), link);
+                } else {
+                    Files.deleteIfExists(link);
+                }
+            }
+        }
+
+        int rval = 0;
+        for (File source : pending) {
+            if (source.exists()) {
+                rval++;
+            }
+        }
+        return rval;
+    }
+
+    public void start() {
+        heartbeat.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkRunners();
+            }
+        }, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /* Registers a runner and starts feeding it units. Returns immediately. */
+    public synchronized void addRunner(Runner runner) {
+        RunnerHandle handle = new RunnerHandle(runnerIds.getAndIncrement(), runner);
+
+        // Take an even share of what nobody has started yet.
+        int share = (pool.size() + runners.size()) / (runners.size() + 1);
+        for (int i = 0; i < share; i++) {
+            WorkUnit unit = pool.pollLast();
+            if (unit == null) {
+                break;
+            }
+            handle.own.addFirst(unit);
+        }
+
+        runners.add(handle);
+        Thread thread = new Thread(handle, handle.toString());
+        thread.setDaemon(true);
+        thread.start();
+
+        logger.info("Runner " + handle.id + " joined with " + handle.own.size() + " units, " + runners.size()
+                + " runners active");
+    }
+
+    /* Blocks until there is something for the runner to do, or returns null
+     * once every unit is done.
+     */
+    private WorkUnit next(RunnerHandle handle) {
+        while (handle.alive && remaining.getCount() > 0) {
+            WorkUnit unit = pollUnfinished(handle.own, true);
+            if (unit == null) {
+                unit = pollUnfinished(pool, true);
+            }
+            if (unit == null) {
+                unit = steal(handle);
+            }
+            if (unit == null) {
+                unit = straggler(handle);
+            }
+            if (unit != null) {
+                return unit;
+            }
+
+            // Everything left is in flight elsewhere; it may still come back.
+            try {
+                remaining.await(Math.max(1, heartbeatMillis / 4), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private WorkUnit straggler(RunnerHandle idle) {
+        long cutoff = System.currentTimeMillis() - STRAGGLER_HEARTBEATS * heartbeatMillis;
+        for (RunnerHandle handle : runners) {
+            WorkUnit unit = handle.current;
+            if (handle != idle && unit != null && !unit.isCompleted() && handle.startedAt < cutoff
+                    && unit.attempts.get() < MAX_ATTEMPTS) {
+                logger.info(idle + " re-runs " + unit + ", which has been running on " + handle + " for "
+                        + (System.currentTimeMillis() - handle.startedAt) + "ms");
+                return unit;
+            }
+        }
+        return null;
+    }
+
+    private WorkUnit steal(RunnerHandle thief) {
+        RunnerHandle victim = null;
+        for (RunnerHandle handle : runners) {
+            if (handle != thief && (victim == null || handle.own.size() > victim.own.size())) {
+                victim = handle;
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+
+        WorkUnit unit = pollUnfinished(victim.own, false);
+        if (unit != null) {
+            logger.debug(thief + " stole " + unit + " from " + victim);
+        }
+        return unit;
+    }
+
+    private static WorkUnit pollUnfinished(ConcurrentLinkedDeque<WorkUnit> deque, boolean first) {
+        WorkUnit unit;
+        while ((unit = first ? deque.pollFirst() : deque.pollLast()) != null) {
+            if (!unit.isCompleted()) {
+                return unit;
+            }
+        }
+        return null;
+    }
+
+    /* Pings every live runner at once and gives them all the same
+     * heartbeatMillis to answer, so one slow runner does not delay the
+     * verdict on the others.
+     */
+    private void checkRunners() {
+        List<RunnerHandle> handles = new ArrayList<>();
+        List<Future<?>> sent = new ArrayList<>();
+        for (final RunnerHandle handle : runners) {
+            if (!handle.alive) {
+                continue;
+            }
+
+            handles.add(handle);
+            sent.add(pings.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    Liveness.check(handle.runner, (int) Math.min(Integer.MAX_VALUE, heartbeatMillis));
+                    return null;
+                }
+            }));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(heartbeatMillis);
+        for (int i = 0; i < handles.size(); i++) {
+            RunnerHandle handle = handles.get(i);
+            Future<?> ping = sent.get(i);
+            try {
+                ping.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                handle.missed = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Future<?> pending : sent) {
+                    pending.cancel(true);
+                }
+                return;
+            } catch (Exception e) {
+                ping.cancel(true);
+                if (++handle.missed >= MISSED_HEARTBEATS) {
+                    logger.error(handle + " missed " + handle.missed + " heartbeats.");
+                    dead(handle);
+                }
+            }
+        }
+    }
+
+    private synchronized void dead(RunnerHandle handle) {
+        if (!handle.alive) {
+            return;
+        }
+        handle.alive = false;
+        runners.remove(handle);
+
+        int requeued = 0;
+        WorkUnit current = handle.current;
+        if (current != null && !current.isCompleted()) {
+            pool.addFirst(current);
+            requeued++;
+        }
+
+        WorkUnit unit;
+        while ((unit = handle.own.pollLast()) != null) {
+            pool.addFirst(unit);
+            requeued++;
+        }
+
+        logger.error(handle + " is gone, " + requeued + " units back in the pool, " + runners.size()
+                + " runners left");
+    }
+
+    public void awaitCompletion() throws InterruptedException {
+        remaining.await();
+    }
+
+    public boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        return remaining.await(timeout, unit);
+    }
+
+    public List<WorkUnit> getUnits() {
+        return units;
+    }
+
+    public int activeRunners() {
+        return runners.size();
+    }
+
+    public long remainingUnits() {
+        return remaining.getCount();
+    }
+
+    public void stop() {
+        heartbeat.shutdownNow();
+        pings.shutdownNow();
+        for (RunnerHandle handle : runners) {
+            handle.alive = false;
+        }
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,51 @@
+package src.scheduler;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/* WorkUnit: a slice of the instrumented classes, laid out in its own
+ * directory so it can be handed to a Runner as its branch source dir.
+ * A unit may be attempted more than once (its runner died); only the first
+ * completion counts.
+ */
+public class WorkUnit {
+    final int id;
+    final File directory;
+    final List<File> sources;
+    final AtomicInteger attempts = new AtomicInteger();
+    private final AtomicBoolean completed = new AtomicBoolean(false);
+
+    WorkUnit(int id, File directory, List<File> sources) {
+        this.id = id;
+        this.directory = directory;
+        this.sources = sources;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public List<File> getSources() {
+        return sources;
+    }
+
+    public boolean isCompleted() {
+        return completed.get();
+    }
+
+    /* Returns true for the first completion only. */
+    boolean complete() {
+        return completed.compareAndSet(false, true);
+    }
+
+    @Override
+    public String toString() {
+        return "unit-" + id + "(" + sources.size() + " classes)";
+    }
+}
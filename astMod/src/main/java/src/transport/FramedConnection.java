@@ -0,0 +1,379 @@
+package src.transport;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.Options;
+
+/* FramedConnection: one end of a framed transport connection (see Wire).
+ * Both ends are the same: each can call methods on the other, and many calls
+ * can be in flight at once, matched to their replies by id.
+ *
+ * A reader thread per connection takes frames off the socket. Replies go to
+ * their waiting caller. Incoming calls run on a pool of their own, so a long
+ * call such as runEvoSearch does not hold up the connection; one-way sends
+ * run on the reader thread itself, so they are handled in the order sent.
+ * A call fails when the connection closes, or after
+ * Options.transportCallTimeoutMillis without a reply unless its proxy says it
+ * may run for as long as it takes.
+ */
+final class FramedConnection implements Closeable {
+    final static Logger logger = LoggerFactory.getLogger("FramedTransport");
+
+    /* What incoming calls and sends are handed to. */
+    interface Receiver {
+        Object receive(FramedConnection from, String method, Object[] args) throws Exception;
+    }
+
+    private static final Object[] NONE = new Object[0];
+
+    // Interface -> signature (see Wire.signature()) -> method, for invoke().
+    private static final Map<Class<?>, Map<String, Method>> methods = new ConcurrentHashMap<>();
+
+    private final SocketChannel channel;
+    private final String name;
+    private final DataInputStream in;
+    private final Object writeLock = new Object();
+    private final AtomicInteger ids = new AtomicInteger();
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final ExecutorService calls;
+    private volatile Receiver receiver;
+    private volatile boolean closed = false;
+
+    private static final class Pending {
+        final CountDownLatch done = new CountDownLatch(1);
+        Object value;
+        String error;
+    }
+
+    FramedConnection(SocketChannel channel, String name, Receiver receiver) throws IOException {
+        channel.socket().setTcpNoDelay(true);
+        this.channel = channel;
+        this.name = name;
+        this.receiver = receiver;
+        this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 16));
+        this.calls = Executors.newCachedThreadPool(daemon(name + "-call"));
+    }
+
+    void start() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        }, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /* Calls `method` on the other end and waits for its result. */
+    Object call(String method, Object... args) throws RemoteException {
+        return call(method, Options.transportCallTimeoutMillis, args);
+    }
+
+    /* call(), waiting at most `timeoutMillis` for the result, or until the
+     * connection closes if that is 0.
+     */
+    Object call(String method, long timeoutMillis, Object... args) throws RemoteException {
+        return request(Wire.CALL, method, timeoutMillis, args);
+    }
+
+    /* See Pingable. */
+    void ping(long timeoutMillis) throws RemoteException {
+        request(Wire.PING, "", timeoutMillis, NONE);
+    }
+
+    private Object request(byte kind, String method, long timeoutMillis, Object[] args) throws RemoteException {
+        int id = ids.incrementAndGet();
+        if (id == 0) {
+            id = ids.incrementAndGet();
+        }
+
+        Pending call = new Pending();
+        pending.put(id, call);
+        boolean replied;
+        try {
+            if (closed) {
+                // close() may have failed the pending calls before this one was added.
+                throw new IOException("Connection " + name + " closed");
+            }
+            write(id, kind, method, args);
+            if (timeoutMillis > 0) {
+                replied = call.done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            } else {
+                call.done.await();
+                replied = true;
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Could not call " + method + " on " + name, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while calling " + method + " on " + name, e);
+        } finally {
+            pending.remove(id);
+        }
+
+        if (!replied) {
+            throw new RemoteException("No reply to " + method + " from " + name + " in " + timeoutMillis + "ms");
+        }
+        if (call.error != null) {
+            throw new RemoteException(call.error);
+        }
+        return call.value;
+    }
+
+    /* Calls `method` on the other end without waiting for it. */
+    void send(String method, Object... args) throws RemoteException {
+        try {
+            write(0, Wire.SEND, method, args);
+        } catch (IOException e) {
+            throw new RemoteException("Could not send " + method + " to " + name, e);
+        }
+    }
+
+    /* A proxy for `type` whose methods are called on the other end. Methods
+     * in `oneWay` are sent without waiting; they must return void. Methods in
+     * `unbounded` wait for their reply for as long as the connection lasts.
+     * The proxy is also Pingable.
+     */
+    <T> T proxy(Class<T> type, final Set<String> oneWay, final Set<String> unbounded) {
+        Class<?>[] interfaces = new Class<?>[] { type, Pingable.class };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), interfaces, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getDeclaringClass() == Pingable.class) {
+                    ping((Long) args[0]);
+                    return null;
+                }
+                if (method.getDeclaringClass() == Object.class) {
+                    switch (method.getName()) {
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        default:
+                            return "proxy(" + name + ")";
+                    }
+                }
+
+                Object[] values = args == null ? NONE : args;
+                if (oneWay.contains(method.getName())) {
+                    send(Wire.signature(method), values);
+                    return null;
+                }
+                long timeout = unbounded.contains(method.getName()) ? 0 : Options.transportCallTimeoutMillis;
+                return Wire.convert(call(Wire.signature(method), timeout, values), method.getReturnType());
+            }
+        }));
+    }
+
+    void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /* Calls the method of `type` with the signature `method` (see
+     * Wire.signature()) on `target`, with `args` converted back to its
+     * parameter types, for receivers that just pass calls on.
+     */
+    static Object invoke(Object target, Class<?> type, String method, Object[] args) throws Exception {
+        Method resolved = methodsOf(type).get(method);
+        if (resolved == null || resolved.getParameterTypes().length != args.length) {
+            throw new NoSuchMethodException(type.getSimpleName() + "." + method);
+        }
+
+        Class<?>[] parameters = resolved.getParameterTypes();
+        Object[] converted = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            converted[i] = Wire.convert(args[i], parameters[i]);
+        }
+        try {
+            return resolved.invoke(target, converted);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    private static Map<String, Method> methodsOf(Class<?> type) {
+        Map<String, Method> rval = methods.get(type);
+        if (rval == null) {
+            rval = new ConcurrentHashMap<>();
+            for (Method method : type.getMethods()) {
+                rval.put(Wire.signature(method), method);
+            }
+            methods.put(type, rval);
+        }
+        return rval;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        calls.shutdownNow();
+
+        for (Pending call : pending.values()) {
+            call.error = "Connection " + name + " closed";
+            call.done.countDown();
+        }
+    }
+
+    private void write(int id, byte kind, String method, Object[] values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(id);
+        out.writeByte(kind);
+        Wire.writeString(out, method);
+        out.writeInt(values.length);
+        for (Object value : values) {
+            Wire.writeValue(out, value);
+        }
+
+        ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+        frame.putInt(0, frame.remaining() - 4);
+        synchronized (writeLock) {
+            while (frame.hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+    }
+
+    private void read() {
+        try {
+            while (!closed) {
+                int length = in.readInt();
+                if (length < 0 || length > Wire.MAX_FRAME) {
+                    throw new IOException("Bad frame length " + length);
+                }
+
+                int id = in.readInt();
+                byte kind = in.readByte();
+                String method = Wire.readString(in);
+                Object[] values = new Object[in.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Wire.readValue(in);
+                }
+
+                dispatch(id, kind, method, values);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                logger.info("Connection " + name + " closed: " + e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void dispatch(final int id, byte kind, final String method, final Object[] values) {
+        switch (kind) {
+            case Wire.PING:
+                // Answered right here, so a peer busy with long calls still shows it is alive.
+                try {
+                    write(id, Wire.PONG, "", NONE);
+                } catch (IOException e) {
+                    logger.error("Could not answer a ping on " + name + ". " + e);
+                    close();
+                }
+                break;
+            case Wire.PONG:
+            case Wire.REPLY:
+            case Wire.ERROR: {
+                Pending call = pending.get(id);
+                if (call != null) {
+                    if (kind == Wire.ERROR) {
+                        call.error = values.length > 0 ? String.valueOf(values[0]) : method + " failed";
+                    } else {
+                        call.value = values.length > 0 ? values[0] : null;
+                    }
+                    call.done.countDown();
+                }
+                break;
+            }
+            case Wire.SEND:
+                try {
+                    receiver.receive(this, method, values);
+                } catch (Exception e) {
+                    logger.error("Could not handle " + method + " from " + name + ". " + e);
+                }
+                break;
+            default:
+                calls.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        answer(id, method, values);
+                    }
+                });
+                break;
+        }
+    }
+
+    private void answer(int id, String method, Object[] values) {
+        Object[] reply;
+        byte kind;
+        try {
+            Object value = receiver.receive(this, method, values);
+            kind = Wire.REPLY;
+            reply = value == null ? NONE : new Object[] { value };
+        } catch (Exception e) {
+            kind = Wire.ERROR;
+            reply = new Object[] { e.toString() };
+        }
+
+        try {
+            write(id, kind, method, reply);
+        } catch (IOException e) {
+            logger.error("Could not answer " + method + " on " + name + ". " + e);
+            close();
+        }
+    }
+
+    private static ThreadFactory daemon(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
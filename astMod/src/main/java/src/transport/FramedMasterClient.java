@@ -0,0 +1,70 @@
+package src.transport;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Collections;
+
+import src.interfaces.Master;
+import src.interfaces.Runner;
+
+/* FramedMasterClient: the runner's side of FramedMasterServer. Returns a
+ * Master to use in place of the one looked up in the RMI registry:
+ *
+ *   Master master = FramedMasterClient.connect("localhost", 1114);
+ *   master.connect(runner);
+ *
+ * The runner passed to connect() gets the master's calls over the same
+ * connection. report() is sent without waiting for the master, so reports
+ * are pipelined; they are still handled in the order they were made.
+ */
+public final class FramedMasterClient {
+    private FramedMasterClient() {
+    }
+
+    public static Master connect(String host, int port) throws IOException {
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        final RunnerTarget target = new RunnerTarget();
+        final FramedConnection connection = new FramedConnection(channel, "framed-master", target);
+        connection.start();
+
+        final Master remote = connection.proxy(Master.class, Collections.singleton("report"),
+                Collections.<String>emptySet());
+        return (Master) Proxy.newProxyInstance(Master.class.getClassLoader(), new Class<?>[] { Master.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("connect") && args != null && args.length == 1
+                                && args[0] instanceof Runner) {
+                            target.runner = (Runner) args[0];
+                            connection.call(FramedMasterServer.CONNECT);
+                            return null;
+                        }
+                        try {
+                            return method.invoke(remote, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /* Dispatches the master's calls to the runner given to connect(). */
+    private static final class RunnerTarget implements FramedConnection.Receiver {
+        volatile Runner runner;
+
+        @Override
+        public Object receive(FramedConnection from, String method, Object[] args) throws Exception {
+            Runner current = runner;
+            if (current == null) {
+                throw new RemoteException("No runner connected for " + method);
+            }
+            return FramedConnection.invoke(current, Runner.class, method, args);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package src.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.interfaces.Master;
+import src.interfaces.Runner;
+
+/* FramedMasterServer: serves a Master over the framed transport, next to (or
+ * instead of) the RMI registry. Runners connect with FramedMasterClient.
+ *
+ * A runner's connect() arrives as CONNECT, without arguments; the master is
+ * handed a Runner that calls back over the same connection, so nothing has
+ * to be exported on the runner's side. Every other call is passed to the
+ * master as is.
+ */
+public class FramedMasterServer implements Closeable {
+    final static Logger logger = LoggerFactory.getLogger("FramedTransport");
+
+    // What FramedMasterClient sends for Master.connect(Runner).
+    static final String CONNECT = "connect()";
+
+    // Runner calls that take as long as a work unit, see FramedConnection.proxy().
+    private static final Set<String> RUN_TO_COMPLETION = Collections.singleton("runEvoSearch");
+
+    private final Master master;
+    private final ServerSocketChannel server;
+    private final List<FramedConnection> connections = new CopyOnWriteArrayList<>();
+    private final AtomicInteger connectionIds = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public FramedMasterServer(Master master, int port) throws IOException {
+        this.master = master;
+        this.server = ServerSocketChannel.open();
+        this.server.socket().setReuseAddress(true);
+        this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public void start() {
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "framed-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        logger.info("Started framed transport at port: " + getPort());
+    }
+
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+        for (FramedConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                SocketChannel channel = server.accept();
+                String name = "framed-runner-" + connectionIds.incrementAndGet();
+                FramedConnection connection = new FramedConnection(channel, name, new FramedConnection.Receiver() {
+                    @Override
+                    public Object receive(FramedConnection from, String method, Object[] args) throws Exception {
+                        if (method.equals(CONNECT)) {
+                            master.connect(from.proxy(Runner.class, Collections.<String>emptySet(),
+                                    RUN_TO_COMPLETION));
+                            return null;
+                        }
+                        return FramedConnection.invoke(master, Master.class, method, args);
+                    }
+                });
+                connections.add(connection);
+                connection.start();
+                pruneClosed();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("Could not accept a framed connection. " + e);
+                }
+            }
+        }
+    }
+
+    private void pruneClosed() {
+        for (FramedConnection connection : connections) {
+            if (connection.isClosed()) {
+                connections.remove(connection);
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package src.transport;
+
+import java.rmi.RemoteException;
+
+/* Pingable: implemented by the proxies of a FramedConnection as well as their
+ * interface, so a caller can tell whether the other end is there without
+ * calling any of its methods.
+ */
+public interface Pingable {
+    /* Returns once the other end has answered, which its reader thread does
+     * even while every method of it is busy; throws if it does not within
+     * `timeoutMillis`, or the connection is closed.
+     */
+    void ping(long timeoutMillis) throws RemoteException;
+}
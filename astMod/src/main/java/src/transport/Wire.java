@@ -0,0 +1,183 @@
+package src.transport;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+
+/* Wire: the frame layout and value encoding of the framed transport.
+ *
+ * Every frame is
+ *   int length      bytes that follow
+ *   int id          matches a reply to its call; 0 for one-way sends
+ *   byte kind       CALL, SEND, REPLY, ERROR, PING or PONG
+ *   string method   signature of the interface method, for CALL and SEND
+ *   int count       number of values
+ *   values          each a tag byte and its payload
+ *
+ * A REPLY carries the return value (no values for void methods), an ERROR
+ * the message of what the callee threw. Methods go by signature(), their name
+ * and parameter types, rather than by a fixed code, so whatever Master and
+ * Runner declare can be carried, overloads included. A PING is answered with
+ * a PONG of the same id by the reader thread of the other end, without a
+ * method or values, to tell that the connection is alive.
+ *
+ * Values lose some of their type on the way: shorts and bytes arrive as ints,
+ * floats as doubles and arrays as Object[]. convert() turns them back into
+ * what the receiving method declares.
+ */
+final class Wire {
+    static final byte CALL = 1;
+    static final byte SEND = 2;
+    static final byte REPLY = 3;
+    static final byte ERROR = 4;
+    static final byte PING = 5;
+    static final byte PONG = 6;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INT = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte CHAR = 6;
+    private static final byte FILE = 7;
+    private static final byte ARRAY = 8;
+
+    // A frame this large is a corrupt stream rather than a real message.
+    static final int MAX_FRAME = 64 << 20;
+
+    private Wire() {
+    }
+
+    /* E.g. "report(java.lang.String,java.lang.String,java.lang.String,java.lang.Object[])". */
+    static String signature(Method method) {
+        StringBuilder rval = new StringBuilder(method.getName()).append('(');
+        Class<?>[] parameters = method.getParameterTypes();
+        for (int i = 0; i < parameters.length; i++) {
+            if (i > 0) {
+                rval.append(',');
+            }
+            rval.append(parameters[i].getTypeName());
+        }
+        return rval.append(')').toString();
+    }
+
+    /* `value` as read by readValue(), as an instance of `type` where the
+     * encoding widened it. Anything else is returned as is.
+     */
+    static Object convert(Object value, Class<?> type) {
+        if (value == null || type.isInstance(value)) {
+            return value;
+        }
+
+        if (value instanceof Integer) {
+            int i = (Integer) value;
+            if (type == short.class || type == Short.class) {
+                return (short) i;
+            }
+            if (type == byte.class || type == Byte.class) {
+                return (byte) i;
+            }
+            if (type == long.class || type == Long.class) {
+                return (long) i;
+            }
+        } else if (value instanceof Double) {
+            if (type == float.class || type == Float.class) {
+                return ((Double) value).floatValue();
+            }
+        } else if (value instanceof Object[] && type.isArray()) {
+            Object[] values = (Object[]) value;
+            Class<?> component = type.getComponentType();
+            Object rval = Array.newInstance(component, values.length);
+            for (int i = 0; i < values.length; i++) {
+                Array.set(rval, i, convert(values[i], component));
+            }
+            return rval;
+        }
+        return value;
+    }
+
+    /* Values other than the ones with a tag of their own travel as their
+     * toString(), which is what the master does with them in the end anyway.
+     */
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(INT);
+            out.writeInt(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Character) {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        } else if (value instanceof File) {
+            out.writeByte(FILE);
+            writeString(out, ((File) value).getPath());
+        } else if (value instanceof Object[]) {
+            Object[] values = (Object[]) value;
+            out.writeByte(ARRAY);
+            out.writeInt(values.length);
+            for (Object element : values) {
+                writeValue(out, element);
+            }
+        } else {
+            out.writeByte(STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    static Object readValue(DataInputStream in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case BOOLEAN:
+                return in.readBoolean();
+            case CHAR:
+                return in.readChar();
+            case FILE:
+                return new File(readString(in));
+            case STRING:
+                return readString(in);
+            case ARRAY:
+                Object[] values = new Object[in.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = readValue(in);
+                }
+                return values;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    // Not writeUTF, which stops at 64 KiB.
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
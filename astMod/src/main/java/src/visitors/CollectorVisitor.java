@@ -0,0 +1,493 @@
+package src.visitors;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
+import org.eclipse.jdt.core.dom.ASTVisitor;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.AnonymousClassDeclaration;
+import org.eclipse.jdt.core.dom.Assignment;
+import org.eclipse.jdt.core.dom.Block;
+import org.eclipse.jdt.core.dom.BooleanLiteral;
+import org.eclipse.jdt.core.dom.CatchClause;
+import org.eclipse.jdt.core.dom.ChildListPropertyDescriptor;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.ConstructorInvocation;
+import org.eclipse.jdt.core.dom.DoStatement;
+import org.eclipse.jdt.core.dom.EnumDeclaration;
+import org.eclipse.jdt.core.dom.Expression;
+import org.eclipse.jdt.core.dom.ExpressionStatement;
+import org.eclipse.jdt.core.dom.FieldAccess;
+import org.eclipse.jdt.core.dom.FieldDeclaration;
+import org.eclipse.jdt.core.dom.ForStatement;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
+import org.eclipse.jdt.core.dom.IfStatement;
+import org.eclipse.jdt.core.dom.LabeledStatement;
+import org.eclipse.jdt.core.dom.LambdaExpression;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.eclipse.jdt.core.dom.Modifier;
+import org.eclipse.jdt.core.dom.ParenthesizedExpression;
+import org.eclipse.jdt.core.dom.PostfixExpression;
+import org.eclipse.jdt.core.dom.PrefixExpression;
+import org.eclipse.jdt.core.dom.PrimitiveType;
+import org.eclipse.jdt.core.dom.ReturnStatement;
+import org.eclipse.jdt.core.dom.SimpleName;
+import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
+import org.eclipse.jdt.core.dom.Statement;
+import org.eclipse.jdt.core.dom.StructuralPropertyDescriptor;
+import org.eclipse.jdt.core.dom.SuperConstructorInvocation;
+import org.eclipse.jdt.core.dom.SwitchCase;
+import org.eclipse.jdt.core.dom.SwitchStatement;
+import org.eclipse.jdt.core.dom.SynchronizedStatement;
+import org.eclipse.jdt.core.dom.ThisExpression;
+import org.eclipse.jdt.core.dom.ThrowStatement;
+import org.eclipse.jdt.core.dom.TryStatement;
+import org.eclipse.jdt.core.dom.Type;
+import org.eclipse.jdt.core.dom.TypeDeclaration;
+import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
+import org.eclipse.jdt.core.dom.WhileStatement;
+import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
+import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.instrumenters.ProbeFilter;
+import src.instrumenters.ProbeTable;
+import src.runtime.ReportRecord;
+import src.visitors.InstrumentingVisitor.ClassAttributes;
+
+/* CollectorVisitor: the rewrite behind CollectorInstrumented. Where the
+ * InstrumentingVisitor wraps if conditions, this captures the state of the
+ * object, i.e. the fields of its class, at the points Daikon looks at:
+ *
+ *   - method entry, after the this(...) or super(...) call of a constructor;
+ *   - every normal exit: before each return, and at the end of a body that
+ *     can run off its end;
+ *   - after every statement that writes one of the fields (`x = ...`,
+ *     `this.x += ...`, `x++`).
+ *
+ * It walks a unit the InstrumentingVisitor walked already, and takes the
+ * fields of each class from its ClassAttributes, which are complete by then.
+ * Every point is a probe of its own, reported through the same Reporter calls
+ * as a branch probe with a true outcome (the point was reached). Ids carry on
+ * after the branch probes of the file, so one probe table covers both trees.
+ *
+ * Only methods declared directly in a class or enum are captured, not those of
+ * interfaces, anonymous classes or lambdas. Static methods see static fields
+ * only, and constructors no final ones, which may not be assigned yet. Enum
+ * constructors see no static fields at all, since javac rejects reading them
+ * there (JLS 8.9.2). At most ReportRecord.MAX_VALUES fields are captured, in
+ * name order.
+ */
+public class CollectorVisitor extends ASTVisitor {
+    private static final Logger logger = LoggerFactory.getLogger(CollectorVisitor.class.getName());
+
+    ASTRewrite rewriter;
+    int fileId;
+    int firstLocal;
+    ProbeFilter filter;
+    List<ClassAttributes> classes;
+    int nextClass = 0;
+    List<ProbeTable.Probe> probes = new ArrayList<>();
+    boolean outOfIds = false;
+
+    // Innermost on top, in the order the InstrumentingVisitor entered them.
+    ArrayDeque<TypeState> enclosingTypes = new ArrayDeque<>();
+
+    static class TypeState {
+        final AbstractTypeDeclaration node;
+        final ClassAttributes attributes;
+        final boolean captured;
+
+        TypeState(AbstractTypeDeclaration node, ClassAttributes attributes, boolean captured) {
+            this.node = node;
+            this.attributes = attributes;
+            this.captured = captured;
+        }
+    }
+
+    /* `classes` comes from the InstrumentingVisitor that walked the unit, and
+     * `firstLocal` is the number of probes it handed out.
+     */
+    public CollectorVisitor(ASTRewrite rewrite, int fileId, int firstLocal, ProbeFilter filter,
+            List<ClassAttributes> classes) {
+        this.rewriter = rewrite;
+        this.fileId = fileId;
+        this.firstLocal = firstLocal;
+        this.filter = filter;
+        this.classes = classes;
+    }
+
+    /* Probes inserted so far, in id order. */
+    public List<ProbeTable.Probe> getProbes() {
+        return this.probes;
+    }
+
+    public ASTRewrite getRewriter() {
+        return this.rewriter;
+    }
+
+    @Override
+    public boolean visit(TypeDeclaration node) {
+        enterType(node, !node.isInterface());
+        return true;
+    }
+
+    @Override
+    public boolean visit(EnumDeclaration node) {
+        enterType(node, true);
+        return true;
+    }
+
+    @Override
+    public void endVisit(TypeDeclaration node) {
+        this.enclosingTypes.pop();
+    }
+
+    @Override
+    public void endVisit(EnumDeclaration node) {
+        this.enclosingTypes.pop();
+    }
+
+    private void enterType(AbstractTypeDeclaration node, boolean captured) {
+        ClassAttributes attributes = this.nextClass < this.classes.size() ? this.classes.get(this.nextClass) : null;
+        this.nextClass++;
+        this.enclosingTypes.push(new TypeState(node, attributes, captured && attributes != null));
+    }
+
+    @Override
+    public boolean visit(MethodDeclaration node) {
+        TypeState type = this.enclosingTypes.peek();
+        if (type != null && type.captured && node.getParent() == type.node && node.getBody() != null) {
+            capture(node, type);
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void capture(MethodDeclaration method, TypeState type) {
+        String name = method.getName().getIdentifier();
+        if (!this.filter.includes(type.attributes.qualifiedName, name)) {
+            return;
+        }
+
+        boolean constructor = method.isConstructor();
+        Set<String> statics = new HashSet<>();
+        List<String> fields = stateOf(type, Modifier.isStatic(method.getModifiers()), constructor, statics);
+
+        Block body = method.getBody();
+        List<Statement> statements = body.statements();
+        ListRewrite list = this.rewriter.getListRewrite(body, Block.STATEMENTS_PROPERTY);
+
+        ProbeTable.Probe enter = newProbe(type, name, "<enter>", body, fields);
+        if (enter == null) {
+            return;
+        }
+        Statement first = statements.isEmpty() ? null : statements.get(0);
+        if (first instanceof ConstructorInvocation || first instanceof SuperConstructorInvocation) {
+            list.insertAfter(newState(enter, fields, type, statics), first, null);
+        } else {
+            list.insertFirst(newState(enter, fields, type, statics), null);
+        }
+
+        final Set<String> locals = new HashSet<>();
+        final List<ReturnStatement> returns = new ArrayList<>();
+        final List<ExpressionStatement> writes = new ArrayList<>();
+        body.accept(new ASTVisitor() {
+            @Override
+            public boolean visit(SingleVariableDeclaration node) {
+                locals.add(node.getName().getIdentifier());
+                return true;
+            }
+
+            @Override
+            public boolean visit(VariableDeclarationFragment node) {
+                locals.add(node.getName().getIdentifier());
+                return true;
+            }
+        });
+        for (Object parameter : method.parameters()) {
+            locals.add(((SingleVariableDeclaration) parameter).getName().getIdentifier());
+        }
+        body.accept(new ASTVisitor() {
+            // Code in these runs on its own, not as part of the method.
+            @Override
+            public boolean visit(LambdaExpression node) {
+                return false;
+            }
+
+            @Override
+            public boolean visit(AnonymousClassDeclaration node) {
+                return false;
+            }
+
+            @Override
+            public boolean visit(TypeDeclaration node) {
+                return false;
+            }
+
+            @Override
+            public boolean visit(ReturnStatement node) {
+                returns.add(node);
+                return false;
+            }
+
+            @Override
+            public boolean visit(ExpressionStatement node) {
+                writes.add(node);
+                return false;
+            }
+        });
+
+        ProbeTable.Probe exit = null;
+        boolean runsOff = (constructor || isVoid(method.getReturnType2())) && canCompleteNormally(body);
+        if (!returns.isEmpty() || runsOff) {
+            exit = newProbe(type, name, "<exit>", body, fields);
+        }
+        if (exit != null) {
+            for (ReturnStatement node : returns) {
+                insert(node, newState(exit, fields, type, statics), true);
+            }
+            if (runsOff) {
+                list.insertLast(newState(exit, fields, type, statics), null);
+            }
+        }
+
+        for (ExpressionStatement node : writes) {
+            String field = writtenField(node.getExpression(), fields, locals);
+            if (field == null) {
+                continue;
+            }
+
+            // The written field first, so it is kept however many others there are.
+            List<String> variables = new ArrayList<>(fields.size());
+            variables.add(field);
+            for (String other : fields) {
+                if (!other.equals(field)) {
+                    variables.add(other);
+                }
+            }
+            ProbeTable.Probe write = newProbe(type, name, "<write " + field + ">", node, variables);
+            if (write == null) {
+                break;
+            }
+            insert(node, newState(write, variables, type, statics), false);
+        }
+    }
+
+    /* The fields a probe in this method can read, sorted. Names of `statics`
+     * are static fields.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<String> stateOf(TypeState type, boolean staticMethod, boolean constructor,
+            Set<String> statics) {
+        boolean enumConstructor = constructor && type.node instanceof EnumDeclaration;
+        List<String> rval = new ArrayList<>();
+        for (Object declaration : type.node.bodyDeclarations()) {
+            if (!(declaration instanceof FieldDeclaration)) {
+                continue;
+            }
+
+            int modifiers = ((FieldDeclaration) declaration).getModifiers();
+            if ((staticMethod && !Modifier.isStatic(modifiers)) || (constructor && Modifier.isFinal(modifiers))
+                    || (enumConstructor && Modifier.isStatic(modifiers))) {
+                continue;
+            }
+            for (VariableDeclarationFragment fragment : (List<VariableDeclarationFragment>) ((FieldDeclaration) declaration)
+                    .fragments()) {
+                String name = fragment.getName().getIdentifier();
+                if (type.attributes.hasField(name)) {
+                    rval.add(name);
+                    if (Modifier.isStatic(modifiers)) {
+                        statics.add(name);
+                    }
+                }
+            }
+        }
+
+        Collections.sort(rval);
+        return rval.size() > ReportRecord.MAX_VALUES ? new ArrayList<>(rval.subList(0, ReportRecord.MAX_VALUES))
+                : rval;
+    }
+
+    /* The captured field an expression statement writes, or null. Without
+     * bindings, a bare name that is also declared anywhere in the method
+     * (a parameter or local) is taken to be that, not the field.
+     */
+    private static String writtenField(Expression expression, List<String> fields, Set<String> locals) {
+        Expression target;
+        if (expression instanceof Assignment) {
+            target = ((Assignment) expression).getLeftHandSide();
+        } else if (expression instanceof PostfixExpression) {
+            target = ((PostfixExpression) expression).getOperand();
+        } else if (expression instanceof PrefixExpression
+                && (((PrefixExpression) expression).getOperator() == PrefixExpression.Operator.INCREMENT
+                        || ((PrefixExpression) expression).getOperator() == PrefixExpression.Operator.DECREMENT)) {
+            target = ((PrefixExpression) expression).getOperand();
+        } else {
+            return null;
+        }
+        while (target instanceof ParenthesizedExpression) {
+            target = ((ParenthesizedExpression) target).getExpression();
+        }
+
+        String name = null;
+        if (target instanceof SimpleName) {
+            name = ((SimpleName) target).getIdentifier();
+            IBinding binding = ((SimpleName) target).resolveBinding();
+            if (binding instanceof IVariableBinding ? !((IVariableBinding) binding).isField()
+                    : locals.contains(name)) {
+                return null;
+            }
+        } else if (target instanceof FieldAccess && ((FieldAccess) target).getExpression() instanceof ThisExpression
+                && ((ThisExpression) ((FieldAccess) target).getExpression()).getQualifier() == null) {
+            name = ((FieldAccess) target).getName().getIdentifier();
+        }
+        return name != null && fields.contains(name) ? name : null;
+    }
+
+    private ProbeTable.Probe newProbe(TypeState type, String method, String point, ASTNode node,
+            List<String> variables) {
+        int local = this.firstLocal + this.probes.size();
+        if (local > ProbeTable.MAX_LOCAL) {
+            if (!this.outOfIds) {
+                logger.warn("More than " + (ProbeTable.MAX_LOCAL + 1) + " probes in one file, skipping the rest.");
+                this.outOfIds = true;
+            }
+            return null;
+        }
+
+        int line = ((CompilationUnit) node.getRoot()).getLineNumber(node.getStartPosition());
+        ProbeTable.Probe probe = new ProbeTable.Probe(ProbeTable.probeId(this.fileId, local), line,
+                type.attributes.className, method, point, variables);
+        this.probes.add(probe);
+        return probe;
+    }
+
+    /* Reporter.report(id, true, fields...) as a statement. Instance fields are
+     * read through `this` and static ones through the class, so parameters and
+     * locals of the same name do not get in the way.
+     */
+    private Statement newState(ProbeTable.Probe probe, List<String> variables, TypeState type,
+            Set<String> statics) {
+        AST ast = this.rewriter.getAST();
+
+        List<Expression> values = new ArrayList<>(variables.size());
+        List<String> types = new ArrayList<>(variables.size());
+        for (String variable : variables) {
+            if (statics.contains(variable)) {
+                values.add(ast.newQualifiedName(ast.newSimpleName(type.attributes.className),
+                        ast.newSimpleName(variable)));
+            } else {
+                FieldAccess access = ast.newFieldAccess();
+                access.setExpression(ast.newThisExpression());
+                access.setName(ast.newSimpleName(variable));
+                values.add(access);
+            }
+            types.add(type.attributes.fieldType(variable));
+        }
+
+        return ast.newExpressionStatement(
+                InstrumentingVisitor.newReport(ast, probe.id, ast.newBooleanLiteral(true), values, types));
+    }
+
+    /* Puts `state` before or after `anchor`. Statements that are not in a
+     * list (e.g. the unbraced body of an if) become a block of both.
+     */
+    @SuppressWarnings("unchecked")
+    private void insert(Statement anchor, Statement state, boolean before) {
+        StructuralPropertyDescriptor location = anchor.getLocationInParent();
+        if (location instanceof ChildListPropertyDescriptor) {
+            ListRewrite list = this.rewriter.getListRewrite(anchor.getParent(), (ChildListPropertyDescriptor) location);
+            if (before) {
+                list.insertBefore(state, anchor, null);
+            } else {
+                list.insertAfter(state, anchor, null);
+            }
+            return;
+        }
+
+        Block block = this.rewriter.getAST().newBlock();
+        Statement moved = (Statement) this.rewriter.createMoveTarget(anchor);
+        if (before) {
+            block.statements().add(state);
+            block.statements().add(moved);
+        } else {
+            block.statements().add(moved);
+            block.statements().add(state);
+        }
+        this.rewriter.replace(anchor, block, null);
+    }
+
+    private static boolean isVoid(Type type) {
+        return type instanceof PrimitiveType
+                && ((PrimitiveType) type).getPrimitiveTypeCode() == PrimitiveType.VOID;
+    }
+
+    /* Whether the code after `statement` would be reachable, erring on the
+     * side of no: a statement put after one that can not complete normally
+     * does not compile, while a missed exit only loses one capture.
+     */
+    @SuppressWarnings("unchecked")
+    static boolean canCompleteNormally(Statement statement) {
+        if (statement instanceof ReturnStatement || statement instanceof ThrowStatement) {
+            return false;
+        } else if (statement instanceof Block) {
+            List<Statement> statements = ((Block) statement).statements();
+            return statements.isEmpty() || canCompleteNormally(statements.get(statements.size() - 1));
+        } else if (statement instanceof IfStatement) {
+            IfStatement node = (IfStatement) statement;
+            return node.getElseStatement() == null || canCompleteNormally(node.getThenStatement())
+                    || canCompleteNormally(node.getElseStatement());
+        } else if (statement instanceof WhileStatement) {
+            return !isTrue(((WhileStatement) statement).getExpression());
+        } else if (statement instanceof DoStatement) {
+            DoStatement node = (DoStatement) statement;
+            return !isTrue(node.getExpression()) && canCompleteNormally(node.getBody());
+        } else if (statement instanceof ForStatement) {
+            Expression condition = ((ForStatement) statement).getExpression();
+            return condition != null && !isTrue(condition);
+        } else if (statement instanceof SynchronizedStatement) {
+            return canCompleteNormally(((SynchronizedStatement) statement).getBody());
+        } else if (statement instanceof LabeledStatement) {
+            return canCompleteNormally(((LabeledStatement) statement).getBody());
+        } else if (statement instanceof TryStatement) {
+            TryStatement node = (TryStatement) statement;
+            if (node.getFinally() != null && !canCompleteNormally(node.getFinally())) {
+                return false;
+            }
+            if (canCompleteNormally(node.getBody())) {
+                return true;
+            }
+            for (CatchClause clause : (List<CatchClause>) node.catchClauses()) {
+                if (canCompleteNormally(clause.getBody())) {
+                    return true;
+                }
+            }
+            return false;
+        } else if (statement instanceof SwitchStatement) {
+            List<Statement> statements = ((SwitchStatement) statement).statements();
+            boolean hasDefault = false;
+            for (Statement child : statements) {
+                hasDefault |= child instanceof SwitchCase && ((SwitchCase) child).isDefault();
+            }
+            return !hasDefault || statements.isEmpty()
+                    || canCompleteNormally(statements.get(statements.size() - 1));
+        }
+        return true;
+    }
+
+    private static boolean isTrue(Expression expression) {
+        while (expression instanceof ParenthesizedExpression) {
+            expression = ((ParenthesizedExpression) expression).getExpression();
+        }
+        return expression instanceof BooleanLiteral && ((BooleanLiteral) expression).booleanValue();
+    }
+}
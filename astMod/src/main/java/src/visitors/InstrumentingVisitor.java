@@ -1,184 +1,810 @@
 package src.visitors;
 
-import java.util.HashSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 
 import org.eclipse.jdt.core.dom.AST;
 import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.ASTVisitor;
-import org.eclipse.jdt.core.dom.Block;
+import org.eclipse.jdt.core.dom.AbstractTypeDeclaration;
+import org.eclipse.jdt.core.dom.AnonymousClassDeclaration;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.DoStatement;
+import org.eclipse.jdt.core.dom.EnhancedForStatement;
+import org.eclipse.jdt.core.dom.EnumDeclaration;
 import org.eclipse.jdt.core.dom.Expression;
-import org.eclipse.jdt.core.dom.ExpressionStatement;
+import org.eclipse.jdt.core.dom.FieldAccess;
+import org.eclipse.jdt.core.dom.FieldDeclaration;
+import org.eclipse.jdt.core.dom.ForStatement;
+import org.eclipse.jdt.core.dom.IBinding;
+import org.eclipse.jdt.core.dom.ITypeBinding;
+import org.eclipse.jdt.core.dom.IVariableBinding;
 import org.eclipse.jdt.core.dom.IfStatement;
+import org.eclipse.jdt.core.dom.InfixExpression;
+import org.eclipse.jdt.core.dom.Initializer;
+import org.eclipse.jdt.core.dom.LambdaExpression;
 import org.eclipse.jdt.core.dom.MethodDeclaration;
 import org.eclipse.jdt.core.dom.MethodInvocation;
+import org.eclipse.jdt.core.dom.Modifier;
+import org.eclipse.jdt.core.dom.NumberLiteral;
+import org.eclipse.jdt.core.dom.PackageDeclaration;
+import org.eclipse.jdt.core.dom.QualifiedName;
 import org.eclipse.jdt.core.dom.SimpleName;
-import org.eclipse.jdt.core.dom.StringLiteral;
+import org.eclipse.jdt.core.dom.SimpleType;
+import org.eclipse.jdt.core.dom.SingleVariableDeclaration;
+import org.eclipse.jdt.core.dom.Type;
 import org.eclipse.jdt.core.dom.TypeDeclaration;
 import org.eclipse.jdt.core.dom.VariableDeclarationFragment;
+import org.eclipse.jdt.core.dom.WhileStatement;
 import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
-import org.eclipse.jdt.core.dom.rewrite.ListRewrite;
-
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import src.Reporter;
+import src.instrumenters.FieldIndex;
+import src.instrumenters.ProbeFilter;
+import src.instrumenters.ProbeTable;
+import src.runtime.ReportRecord;
+
+/* InstrumentingVisitor: the one analysis pass over a compilation unit. A single
+ * walk builds the class -> method -> if -> variable model, the field type table
+ * of every class, and records the rewrite that wraps each if condition in a
+ * Reporter call.
+ *
+ * Names in a predicate are collected while the walk passes through it, instead
+ * of with a separate visitor per if. Every identifier is interned in the
+ * unit's SymbolTable, and the model keeps sets of names (the fields of a
+ * class, the locals of a method, the names in a condition) as BitSets over
+ * their ids; the sets of a condition are recycled once the if is done. Lists
+ * of names that leave the model are sorted, so the same unit always gives the
+ * same probes.
+ *
+ * Without bindings, the fields of a class are what the FieldIndex knows it
+ * can see (its own, inherited and enclosing classes' fields, from every
+ * file), plus those the walk finds in the unit itself.
+ *
+ * Which ifs get a probe is up to the ProbeFilter; the others are still part of
+ * the model, with a null probe. With operand capture on, the comparisons in
+ * the condition of an if with a probe are collected on the same walk, and each
+ * is rewritten to report its two sides as a term probe.
+ */
 public class InstrumentingVisitor extends ASTVisitor {
-    ASTRewrite rewriter;
+    private static final Logger logger = LoggerFactory.getLogger(InstrumentingVisitor.class.getName());
 
-    String currentMethodName = null;
-    String currentClassName = null;
+    // The values a term probe reports.
+    private static final List<String> TERM_VARIABLES = Collections.unmodifiableList(Arrays.asList("left", "right"));
 
-    ClassAttributes currentClassAttributes = null;
-    MethodAttributes currentMethodAttributes = null;
-    IfAttributes currentIfAttributes = null;
+    ASTRewrite rewriter;
+    int fileId;
+    ProbeFilter filter;
+    FieldIndex index;
+    List<ProbeTable.Probe> probes = new ArrayList<>();
+    List<ClassAttributes> classes = new ArrayList<>();
+    SymbolTable symbols = new SymbolTable();
+    boolean outOfIds = false;
+
+    // Innermost on top. Classes, methods and ifs all nest (local and anonymous
+    // classes, ifs in ifs, ifs in lambdas in conditions).
+    ArrayDeque<ClassAttributes> enclosingClasses = new ArrayDeque<>();
+    ArrayDeque<MethodAttributes> enclosingMethods = new ArrayDeque<>();
+    ArrayDeque<IfAttributes> enclosingIfs = new ArrayDeque<>();
+
+    // Ifs whose condition the walk is currently in.
+    ArrayList<IfAttributes> collecting = new ArrayList<>();
+
+    // Recycled name sets, see IfAttributes.
+    ArrayDeque<Names> freeNames = new ArrayDeque<>();
+
+    /* The names a condition reads, by symbol id, and those of them bindings
+     * resolved to fields, with the type names of those (null when unknown).
+     * Types of ids not in `fields` are stale.
+     */
+    static final class Names {
+        final BitSet names = new BitSet();
+        final BitSet fields = new BitSet();
+        String[] fieldTypes = new String[16];
+
+        void clear() {
+            this.names.clear();
+            this.fields.clear();
+        }
+    }
 
     public static class IfAttributes {
-        HashSet<String> instanceVariables;
-        Expression predicate;
-        MethodAttributes parent;
-        int id = 0;
+        public final MethodAttributes parent;
+        public final int line;
+        public Expression predicate;
+
+        // Fields read by the condition, sorted, with their declared type names
+        // (null when unknown).
+        public List<String> instanceVariables = Collections.emptyList();
+        public List<String> variableTypes = Collections.emptyList();
 
-        public IfAttributes(MethodAttributes parent) {
-            this.instanceVariables = new HashSet<>();
+        // Null when the filter left the if out, or the file ran out of probe ids.
+        public ProbeTable.Probe probe;
+        boolean selected;
+
+        // Probes of the comparisons in the condition, in source order, when
+        // operands are captured.
+        public List<ProbeTable.Probe> terms = Collections.emptyList();
+
+        // Scratch space, only set while the if is being visited.
+        List<InfixExpression> comparisons;
+        Names names;
+        boolean bindingsResolved;
+
+        public IfAttributes(MethodAttributes parent, int line) {
             this.parent = parent;
+            this.line = line;
         }
     }
 
     public static class MethodAttributes {
-        String methodName;
-        HashSet<String> localVariables;
-        HashSet<IfAttributes> ifStatements;
-        ClassAttributes parent;
-
-        public MethodAttributes(ClassAttributes parent) {
-            this.localVariables = new HashSet<>();
-            this.ifStatements = new HashSet<>();
+        public final String methodName;
+        public final ClassAttributes parent;
+        // Symbol ids of the parameters and locals declared so far, including
+        // catch, for-each and lambda parameters; they hide fields of the same
+        // name from the ifs of the method.
+        public final BitSet localVariables = new BitSet();
+        public final List<IfAttributes> ifStatements = new ArrayList<>();
+
+        // Filter state: whether the method is instrumented at all, how many
+        // loops the walk is in, and how many of its ifs got a probe so far.
+        // Static methods and initializers can only read static fields.
+        boolean isStatic = false;
+        boolean instrumented = true;
+        int loops = 0;
+        int selected = 0;
+
+        public MethodAttributes(ClassAttributes parent, String methodName) {
             this.parent = parent;
+            this.methodName = methodName;
         }
     }
 
     public static class ClassAttributes {
-        String className;
-        HashSet<String> instanceVariables;
-        HashSet<MethodAttributes> declaredMethods;
+        public final String className;
+        // Package and enclosing classes included, separated by dots.
+        public final String qualifiedName;
+        public final List<MethodAttributes> declaredMethods = new ArrayList<>();
+
+        // Symbol ids of the fields, those of them that are static, and the
+        // declared type names of those, by id (null when unknown).
+        final SymbolTable symbols;
+        final BitSet instanceVariables = new BitSet();
+        final BitSet staticVariables = new BitSet();
+        String[] instanceVariableTypes = new String[16];
+
+        public ClassAttributes(String className, String qualifiedName, SymbolTable symbols) {
+            this.className = className;
+            this.qualifiedName = qualifiedName;
+            this.symbols = symbols;
+        }
+
+        public boolean hasField(String name) {
+            int id = this.symbols.find(name);
+            return id >= 0 && this.instanceVariables.get(id);
+        }
 
-        public ClassAttributes() {
-            this.instanceVariables = new HashSet<>();
-            this.declaredMethods = new HashSet<>();
+        /* The declared type name of a field, or null when unknown. */
+        public String fieldType(String name) {
+            int id = this.symbols.find(name);
+            return id >= 0 && this.instanceVariables.get(id) ? this.instanceVariableTypes[id] : null;
         }
+
+        /* The field names, sorted. */
+        public List<String> fieldNames() {
+            return Arrays.asList(this.symbols.sortedNames(this.instanceVariables));
+        }
+
+        void addField(int id, String type, boolean isStatic) {
+            this.instanceVariables.set(id);
+            this.staticVariables.set(id, isStatic);
+            this.instanceVariableTypes = ensure(this.instanceVariableTypes, id);
+            this.instanceVariableTypes[id] = type;
+        }
+    }
+
+    public InstrumentingVisitor(ASTRewrite rewrite, int fileId) {
+        this(rewrite, fileId, ProbeFilter.ALL);
     }
 
-    public InstrumentingVisitor(ASTRewrite rewrite) {
+    public InstrumentingVisitor(ASTRewrite rewrite, int fileId, ProbeFilter filter) {
+        this(rewrite, fileId, filter, null);
+    }
+
+    /* `index` may be null, then only the fields in the unit are known. */
+    public InstrumentingVisitor(ASTRewrite rewrite, int fileId, ProbeFilter filter, FieldIndex index) {
         this.rewriter = rewrite;
+        this.fileId = fileId;
+        this.filter = filter;
+        this.index = index;
+    }
+
+    /* Probes inserted so far, in id order. */
+    public List<ProbeTable.Probe> getProbes() {
+        return this.probes;
+    }
+
+    /* Every class visited, outer classes before the classes nested in them. */
+    public List<ClassAttributes> getClasses() {
+        return this.classes;
     }
 
-    /* Check the type of node, and initialize current maps, strings, etc. */
+    /* The identifiers of the unit, see SymbolTable. */
+    public SymbolTable getSymbols() {
+        return this.symbols;
+    }
+
+    // ----------------------- Classes and methods -----------------------------
     @Override
-    public void preVisit(ASTNode node) {
-        if (node instanceof TypeDeclaration) {
-            // Set current method name
-            TypeDeclaration decl = (TypeDeclaration) node;
-            this.currentClassName = decl.getName().toString();
-            // Initialize map
-            this.currentClassAttributes = new ClassAttributes();
+    public boolean visit(TypeDeclaration node) {
+        enterClass(node);
+        return true;
+    }
+
+    @Override
+    public boolean visit(EnumDeclaration node) {
+        enterClass(node);
+        return true;
+    }
+
+    @Override
+    public void endVisit(TypeDeclaration node) {
+        this.enclosingClasses.pop();
+    }
+
+    @Override
+    public void endVisit(EnumDeclaration node) {
+        this.enclosingClasses.pop();
+    }
+
+    @Override
+    public boolean visit(MethodDeclaration node) {
+        enterMethod(node.getName().getIdentifier(), Modifier.isStatic(node.getModifiers()));
+        return true;
+    }
+
+    @Override
+    public void endVisit(MethodDeclaration node) {
+        this.enclosingMethods.pop();
+    }
+
+    @Override
+    public boolean visit(Initializer node) {
+        boolean isStatic = Modifier.isStatic(node.getModifiers());
+        enterMethod(isStatic ? "<clinit>" : "<init>", isStatic);
+        return true;
+    }
+
+    @Override
+    public void endVisit(Initializer node) {
+        this.enclosingMethods.pop();
+    }
+
+    private void enterClass(AbstractTypeDeclaration node) {
+        String name = node.getName().getIdentifier();
+        ClassAttributes outer = this.enclosingClasses.peek();
+
+        String qualifiedName;
+        if (outer != null) {
+            qualifiedName = outer.qualifiedName + "." + name;
+        } else {
+            PackageDeclaration pkg = ((CompilationUnit) node.getRoot()).getPackage();
+            qualifiedName = pkg == null ? name : pkg.getName().getFullyQualifiedName() + "." + name;
         }
 
-        if (node instanceof MethodDeclaration) {
-            MethodDeclaration decl = (MethodDeclaration) node;
-            this.currentMethodName = decl.getName().toString();
-            this.currentMethodAttributes = new MethodAttributes(this.currentClassAttributes);
-            this.currentClassAttributes.declaredMethods.add(currentMethodAttributes);
+        ClassAttributes attributes = new ClassAttributes(name, qualifiedName, this.symbols);
+        List<FieldIndex.Field> visible = this.index == null ? null : this.index.visibleFields(qualifiedName);
+        if (visible != null) {
+            for (FieldIndex.Field field : visible) {
+                attributes.addField(this.symbols.intern(field.name), field.type, field.isStatic());
+            }
         }
+        this.classes.add(attributes);
+        this.enclosingClasses.push(attributes);
+    }
 
-        if (node instanceof IfStatement) {
-            this.currentIfAttributes = new IfAttributes(this.currentMethodAttributes);
-            this.currentIfAttributes.id = this.currentMethodAttributes.ifStatements.size();
-            this.currentMethodAttributes.ifStatements.add(currentIfAttributes);
+    private void enterMethod(String name, boolean isStatic) {
+        ClassAttributes owner = this.enclosingClasses.peek();
+        MethodAttributes attributes = new MethodAttributes(owner, name);
+        attributes.isStatic = isStatic;
+        if (owner != null) {
+            owner.declaredMethods.add(attributes);
+            attributes.instrumented = this.filter.includes(owner.qualifiedName, name);
         }
+        this.enclosingMethods.push(attributes);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
-    public void endVisit(IfStatement node) {
-        AST ast = this.rewriter.getAST();
+    public boolean visit(VariableDeclarationFragment node) {
+        String name = node.getName().getIdentifier();
+
+        if (node.getParent() instanceof FieldDeclaration) {
+            ClassAttributes owner = this.enclosingClasses.peek();
+            FieldDeclaration declaration = (FieldDeclaration) node.getParent();
+            ASTNode type = declaration.getParent();
+            // Fields of an anonymous class body belong to no named class, and
+            // are not visible from the methods of the enclosing one.
+            if (owner != null && !(type instanceof AnonymousClassDeclaration)) {
+                // Without a FieldIndex, only fields declared before a method are
+                // known to its ifs.
+                boolean isStatic = Modifier.isStatic(declaration.getModifiers())
+                        || (type instanceof TypeDeclaration && ((TypeDeclaration) type).isInterface());
+                owner.addField(this.symbols.intern(name),
+                        node.getExtraDimensions() == 0 ? declaration.getType().toString() : null, isStatic);
+            }
+        } else if (!this.enclosingMethods.isEmpty()) {
+            this.enclosingMethods.peek().localVariables.set(this.symbols.intern(name));
+        }
+        return true;
+    }
 
-        MethodInvocation invocation = ast.newMethodInvocation();
+    /* Parameters of methods, catch clauses, for-each loops and typed lambdas. */
+    @Override
+    public boolean visit(SingleVariableDeclaration node) {
+        if (!this.enclosingMethods.isEmpty()) {
+            this.enclosingMethods.peek().localVariables.set(this.symbols.intern(node.getName().getIdentifier()));
+        }
+        return true;
+    }
 
-        invocation.setExpression(ast.newName("Reporter"));
-        invocation.setName(ast.newSimpleName("report"));
-        
-        // Add classname, methodname and branch ID.
-        StringLiteral lit = ast.newStringLiteral();
-        lit.setLiteralValue(currentClassName);
-        invocation.arguments().add(lit);
-        
-        StringLiteral m = ast.newStringLiteral();
-        m.setLiteralValue(currentMethodName);
-        invocation.arguments().add(m);
+    // ----------------------------- Loops -------------------------------------
+    @Override
+    public boolean visit(ForStatement node) {
+        enterLoop(1);
+        return true;
+    }
 
-        StringLiteral expression = ast.newStringLiteral();
-        expression.setLiteralValue(node.getExpression().toString());
-        invocation.arguments().add(expression);
+    @Override
+    public void endVisit(ForStatement node) {
+        enterLoop(-1);
+    }
 
-        for (String variable : currentIfAttributes.instanceVariables) {
-            StringLiteral varName = ast.newStringLiteral();
-            varName.setLiteralValue(variable);
-            invocation.arguments().add(varName);
+    @Override
+    public boolean visit(EnhancedForStatement node) {
+        enterLoop(1);
+        return true;
+    }
 
-            SimpleName arg = this.rewriter.getAST().newSimpleName(variable);
-            invocation.arguments().add(arg);
-        }
+    @Override
+    public void endVisit(EnhancedForStatement node) {
+        enterLoop(-1);
+    }
 
-        ExpressionStatement statement = this.rewriter.getAST().newExpressionStatement(invocation);
+    @Override
+    public boolean visit(WhileStatement node) {
+        enterLoop(1);
+        return true;
+    }
 
-        // Insert the print statement before the if statement
-        ListRewrite rewrite = rewriter.getListRewrite(node.getParent(), Block.STATEMENTS_PROPERTY);
-        rewrite.insertBefore(statement, node, null);
+    @Override
+    public void endVisit(WhileStatement node) {
+        enterLoop(-1);
     }
 
     @Override
-    public void endVisit(MethodDeclaration node) {
-        this.currentMethodAttributes = null;
+    public boolean visit(DoStatement node) {
+        enterLoop(1);
+        return true;
     }
 
     @Override
-    public void endVisit(TypeDeclaration node) {
-        this.currentClassAttributes = null;
+    public void endVisit(DoStatement node) {
+        enterLoop(-1);
     }
 
-    // ----------------- On Visit of each statement type ----------------------
+    private void enterLoop(int delta) {
+        MethodAttributes method = this.enclosingMethods.peek();
+        if (method != null) {
+            method.loops += delta;
+        }
+    }
+
+    // ------------------------------ Ifs --------------------------------------
     @Override
     public boolean visit(IfStatement node) {
-        // Get the variables involved in the expression.
-        Expression exp = node.getExpression();
-
-        // Collect all variables we can find in the expression.
-        NameCollector collector = new NameCollector();
-        exp.accept(collector);
-        HashSet<String> varNames = collector.identifiers;
-
-        // Check what values we can prune (local vars).
-        varNames.retainAll(this.currentClassAttributes.instanceVariables);
-        this.currentIfAttributes.instanceVariables = varNames;
-        
+        MethodAttributes method = this.enclosingMethods.peek();
+        if (method == null) {
+            // An if in a field initializer, e.g. in a lambda.
+            ASTNode field = node;
+            while (field != null && !(field instanceof FieldDeclaration)) {
+                field = field.getParent();
+            }
+            boolean isStatic = field != null && Modifier.isStatic(((FieldDeclaration) field).getModifiers());
+            enterMethod(isStatic ? "<clinit>" : "<init>", isStatic);
+            method = this.enclosingMethods.pop();
+        }
+
+        int line = ((CompilationUnit) node.getRoot()).getLineNumber(node.getStartPosition());
+        IfAttributes attributes = new IfAttributes(method, line);
+        attributes.predicate = node.getExpression();
+        attributes.names = this.freeNames.isEmpty() ? new Names() : this.freeNames.pop();
+
+        // Decided here rather than in endVisit, so a per-method cap keeps the
+        // first ifs in source order.
+        attributes.selected = method.instrumented && !(this.filter.skipLoops() && method.loops > 0)
+                && (this.filter.maxProbesPerMethod() == 0 || method.selected < this.filter.maxProbesPerMethod());
+        if (attributes.selected) {
+            method.selected++;
+        }
+
+        method.ifStatements.add(attributes);
+        this.enclosingIfs.push(attributes);
         return true;
     }
 
+    /* The walk enters an if condition; names from here on belong to it. */
     @Override
-    public boolean visit(VariableDeclarationFragment node) {
-        if (this.currentMethodAttributes == null) {
-            // BUG: All instance variables need to be declared before methods begin.
-            this.currentClassAttributes.instanceVariables.add(node.getName().toString());
-        } else {
-            this.currentMethodAttributes.localVariables.add(node.getName().toString());
+    public void preVisit(ASTNode node) {
+        if (node.getLocationInParent() == IfStatement.EXPRESSION_PROPERTY) {
+            this.collecting.add(this.enclosingIfs.peek());
         }
-        return true;
     }
-}
 
-class NameCollector extends ASTVisitor {
-    public HashSet<String> identifiers = new HashSet<>();
+    @Override
+    public void postVisit(ASTNode node) {
+        if (node.getLocationInParent() == IfStatement.EXPRESSION_PROPERTY) {
+            this.collecting.remove(this.collecting.size() - 1);
+        }
+    }
 
     @Override
     public boolean visit(SimpleName node) {
-        this.identifiers.add(node.getFullyQualifiedName());
+        // Method and type names are never variables, even where a field of the
+        // same name is in scope.
+        if (this.collecting.isEmpty() || node.getLocationInParent() == MethodInvocation.NAME_PROPERTY
+                || node.getLocationInParent() == SimpleType.NAME_PROPERTY) {
+            return true;
+        }
+
+        int id = this.symbols.intern(node.getIdentifier());
+
+        // `other.x` and `Foo.x` are not the x a bare name reads, so they are
+        // left out of the names matched against fields without bindings.
+        boolean qualified = isQualified(node);
+
+        // Only resolved when the parser was set up for bindings.
+        IBinding binding = node.resolveBinding();
+        String fieldType = null;
+        boolean field = false;
+        if (binding instanceof IVariableBinding && ((IVariableBinding) binding).isField() && !qualified) {
+            ITypeBinding type = ((IVariableBinding) binding).getType();
+            fieldType = type == null ? null : type.getName();
+            field = true;
+        }
+
+        // A condition also sees the names in the conditions nested in it.
+        for (int i = 0; i < this.collecting.size(); i++) {
+            IfAttributes target = this.collecting.get(i);
+            if (!qualified) {
+                target.names.names.set(id);
+            }
+            if (binding != null) {
+                target.bindingsResolved = true;
+                if (field) {
+                    target.names.fields.set(id);
+                    target.names.fieldTypes = ensure(target.names.fieldTypes, id);
+                    target.names.fieldTypes[id] = fieldType;
+                }
+            }
+        }
+        return true;
+    }
+
+    /* Collects comparisons for operand capture, for the innermost condition
+     * the walk is in. Comparisons in lambdas and anonymous classes there do not
+     * run as part of the condition, and are left alone.
+     */
+    @Override
+    public boolean visit(InfixExpression node) {
+        if (this.collecting.isEmpty() || !this.filter.captureOperands() || !isComparison(node)) {
+            return true;
+        }
+
+        IfAttributes target = this.collecting.get(this.collecting.size() - 1);
+        if (!target.selected) {
+            return true;
+        }
 
+        for (ASTNode parent = node; parent != target.predicate; parent = parent.getParent()) {
+            if (parent instanceof LambdaExpression || parent instanceof AnonymousClassDeclaration) {
+                return true;
+            }
+        }
+
+        if (target.comparisons == null) {
+            target.comparisons = new ArrayList<>();
+        }
+        target.comparisons.add(node);
+        return true;
+    }
+
+    /* `a < b < c` does not compile, but `a == b == c` does, and is left as it is. */
+    private static boolean isComparison(InfixExpression node) {
+        InfixExpression.Operator operator = node.getOperator();
+        return !node.hasExtendedOperands() && (operator == InfixExpression.Operator.EQUALS
+                || operator == InfixExpression.Operator.NOT_EQUALS || operator == InfixExpression.Operator.LESS
+                || operator == InfixExpression.Operator.LESS_EQUALS || operator == InfixExpression.Operator.GREATER
+                || operator == InfixExpression.Operator.GREATER_EQUALS);
+    }
+
+    /* `other.x` and `this.x`-style accesses can not be re-read through the bare name. */
+    private static boolean isQualified(SimpleName node) {
+        ASTNode parent = node.getParent();
+        if (parent instanceof QualifiedName) {
+            return ((QualifiedName) parent).getName() == node;
+        }
+        if (parent instanceof FieldAccess) {
+            return ((FieldAccess) parent).getName() == node;
+        }
+        return false;
+    }
+
+    @Override
+    public void endVisit(IfStatement node) {
+        IfAttributes attributes = this.enclosingIfs.pop();
+        resolveVariables(attributes);
+
+        List<InfixExpression> comparisons = attributes.comparisons;
+        attributes.comparisons = null;
+
+        if (!attributes.selected || !hasIdLeft()) {
+            return;
+        }
+
+        instrument(attributes, comparisons);
+    }
+
+    private boolean hasIdLeft() {
+        if (this.probes.size() > ProbeTable.MAX_LOCAL) {
+            if (!this.outOfIds) {
+                logger.warn("More than " + (ProbeTable.MAX_LOCAL + 1) + " branches in one file, skipping the rest.");
+                this.outOfIds = true;
+            }
+            return false;
+        }
         return true;
     }
+
+    /* Settles which of the collected names are fields, then hands the scratch
+     * sets back.
+     */
+    private void resolveVariables(IfAttributes attributes) {
+        Names names = attributes.names;
+        ClassAttributes owner = attributes.parent.parent;
+
+        // With bindings we know exactly which names are fields, including
+        // inherited ones and ones declared after this method. Without them, the
+        // fields are the names the class can see as fields (see FieldIndex),
+        // less those a parameter or local of the method hides, and only static
+        // ones in a static context.
+        BitSet fields = names.fields;
+        if (!attributes.bindingsResolved) {
+            fields = names.names;
+            if (owner != null) {
+                fields.and(owner.instanceVariables);
+                removeLocals(attributes.parent, fields);
+                if (inStaticContext(attributes.parent, owner)) {
+                    fields.and(owner.staticVariables);
+                }
+            } else {
+                fields.clear();
+            }
+        }
+
+        if (!fields.isEmpty()) {
+            String[] variables = this.symbols.sortedNames(fields);
+            String[] types = new String[variables.length];
+            for (int i = 0; i < variables.length; i++) {
+                int id = this.symbols.find(variables[i]);
+                types[i] = attributes.bindingsResolved ? names.fieldTypes[id] : owner.instanceVariableTypes[id];
+            }
+            attributes.instanceVariables = Arrays.asList(variables);
+            attributes.variableTypes = Arrays.asList(types);
+        }
+
+        names.clear();
+        this.freeNames.push(names);
+        attributes.names = null;
+    }
+
+    /* Removes from `fields` the names declared as parameters or locals by
+     * `method` and the methods around it, which an if in a lambda or an
+     * anonymous class sees as well.
+     */
+    private void removeLocals(MethodAttributes method, BitSet fields) {
+        fields.andNot(method.localVariables);
+        for (MethodAttributes enclosing : this.enclosingMethods) {
+            fields.andNot(enclosing.localVariables);
+        }
+    }
+
+    /* Whether code in `method` can only read static fields of `owner`: it is
+     * static, or nested in a static method of `owner` (e.g. an anonymous
+     * class there).
+     */
+    private boolean inStaticContext(MethodAttributes method, ClassAttributes owner) {
+        boolean rval = method.isStatic;
+        for (MethodAttributes enclosing : this.enclosingMethods) {
+            rval |= enclosing.parent == owner && enclosing.isStatic;
+        }
+        return rval;
+    }
+
+    /* `array`, grown if needed so `id` is an index in it. */
+    static String[] ensure(String[] array, int id) {
+        return id < array.length ? array : Arrays.copyOf(array, Math.max(array.length * 2, id + 1));
+    }
+
+    private void instrument(IfAttributes attributes, List<InfixExpression> comparisons) {
+        AST ast = this.rewriter.getAST();
+        Expression predicate = attributes.predicate;
+        List<String> variables = attributes.instanceVariables;
+
+        // The class, method and predicate go to the probe table; the probe itself
+        // only carries its id.
+        MethodAttributes method = attributes.parent;
+        int id = ProbeTable.probeId(this.fileId, this.probes.size());
+        attributes.probe = new ProbeTable.Probe(id, attributes.line,
+                method.parent == null ? "" : method.parent.className, method.methodName, predicate.toString(),
+                variables);
+        this.probes.add(attributes.probe);
+
+        // The predicate itself is evaluated as an argument, so the reporter sees
+        // the outcome and returns it back to the if. A predicate that is a
+        // captured comparison itself goes in as its term.
+        Expression term = comparisons == null ? null : captureOperands(attributes, comparisons);
+        Expression outcome = term != null ? term : (Expression) this.rewriter.createMoveTarget(predicate);
+
+        List<Expression> values = new ArrayList<>();
+        for (String variable : variables) {
+            values.add(ast.newSimpleName(variable));
+        }
+        MethodInvocation invocation = newReport(ast, id, outcome, values, attributes.variableTypes);
+
+        // Replace the condition with the wrapped one. Unlike inserting a statement
+        // before the if, this also works for `else if` and unbraced bodies.
+        this.rewriter.replace(predicate, invocation, null);
+    }
+
+    /* Gives each comparison a term probe and rewrites `a < b` in place to
+     * Reporter.term(id, Reporter.operand(a) < Reporter.operand(b)); operands are
+     * moved, so comparisons nested in them are rewritten as well. Returns the
+     * term that replaces the whole predicate, if it is a comparison, for the
+     * caller to wrap.
+     */
+    @SuppressWarnings("unchecked")
+    private Expression captureOperands(IfAttributes attributes, List<InfixExpression> comparisons) {
+        AST ast = this.rewriter.getAST();
+        CompilationUnit unit = (CompilationUnit) attributes.predicate.getRoot();
+        ProbeTable.Probe parent = attributes.probe;
+        Expression rval = null;
+
+        attributes.terms = new ArrayList<>();
+        for (InfixExpression comparison : comparisons) {
+            if (!hasIdLeft()) {
+                break;
+            }
+
+            int id = ProbeTable.probeId(this.fileId, this.probes.size());
+            ProbeTable.Probe probe = new ProbeTable.Probe(id, unit.getLineNumber(comparison.getStartPosition()),
+                    parent.className, parent.methodName, comparison.toString(), TERM_VARIABLES, parent.id,
+                    comparison.getOperator().toString());
+            this.probes.add(probe);
+            attributes.terms.add(probe);
+
+            InfixExpression captured = ast.newInfixExpression();
+            captured.setOperator(comparison.getOperator());
+            captured.setLeftOperand(operand(comparison.getLeftOperand()));
+            captured.setRightOperand(operand(comparison.getRightOperand()));
+
+            MethodInvocation term = ast.newMethodInvocation();
+            term.setExpression(ast.newName("Reporter"));
+            term.setName(ast.newSimpleName("term"));
+            term.arguments().add(idLiteral(id));
+            term.arguments().add(captured);
+
+            if (comparison == attributes.predicate) {
+                rval = term;
+            } else {
+                this.rewriter.replace(comparison, term, null);
+            }
+        }
+        return rval;
+    }
+
+    @SuppressWarnings("unchecked")
+    private MethodInvocation operand(Expression expression) {
+        AST ast = this.rewriter.getAST();
+        MethodInvocation rval = ast.newMethodInvocation();
+        rval.setExpression(ast.newName("Reporter"));
+        rval.setName(ast.newSimpleName("operand"));
+        rval.arguments().add(this.rewriter.createMoveTarget(expression));
+        return rval;
+    }
+
+    /* Reporter.report(id, outcome, ...) over `values`, whose declared type
+     * names are `types` (null when unknown). Primitive values go through the
+     * typed report(id, outcome, types, v0..v3) overloads, which neither box
+     * nor allocate a varargs array. Everything else falls back to
+     * reportObjects(id, outcome, Object...).
+     */
+    @SuppressWarnings("unchecked")
+    static MethodInvocation newReport(AST ast, int id, Expression outcome, List<Expression> values,
+            List<String> types) {
+        int packed = 0;
+        boolean typed = values.size() <= Reporter.MAX_TYPED_VALUES;
+        for (int i = 0; i < values.size() && typed; i++) {
+            int type = valueType(types.get(i));
+            typed = type != ReportRecord.TYPE_REFERENCE;
+            packed |= type << (4 * i);
+        }
+
+        MethodInvocation invocation = ast.newMethodInvocation();
+
+        invocation.setExpression(ast.newName("Reporter"));
+        invocation.setName(ast.newSimpleName(typed ? "report" : "reportObjects"));
+
+        invocation.arguments().add(idLiteral(ast, id));
+        invocation.arguments().add(outcome);
+
+        if (typed && !values.isEmpty()) {
+            invocation.arguments().add(ast.newNumberLiteral(Integer.toString(packed)));
+        }
+
+        for (int i = 0; i < values.size(); i++) {
+            int type = (packed >>> (4 * i)) & 0xF;
+
+            if (typed && (type == ReportRecord.TYPE_DOUBLE || type == ReportRecord.TYPE_BOOLEAN)) {
+                // Reporter.bits() turns doubles and booleans into the long the record stores.
+                MethodInvocation bits = ast.newMethodInvocation();
+                bits.setExpression(ast.newName("Reporter"));
+                bits.setName(ast.newSimpleName("bits"));
+                bits.arguments().add(values.get(i));
+                invocation.arguments().add(bits);
+            } else {
+                invocation.arguments().add(values.get(i));
+            }
+        }
+        return invocation;
+    }
+
+    private NumberLiteral idLiteral(int id) {
+        return idLiteral(this.rewriter.getAST(), id);
+    }
+
+    /* Ids of high file numbers are negative ints, which only a hex literal can spell. */
+    static NumberLiteral idLiteral(AST ast, int id) {
+        return ast.newNumberLiteral(id >= 0 ? Integer.toString(id) : "0x" + Integer.toHexString(id));
+    }
+
+    /* Record type for a declared type name; anything that is not a primitive
+     * (or is unknown) is a reference.
+     */
+    static int valueType(String typeName) {
+        if (typeName == null) {
+            return ReportRecord.TYPE_REFERENCE;
+        }
+
+        switch (typeName) {
+            case "int":
+            case "long":
+            case "short":
+            case "byte":
+            case "char":
+                return ReportRecord.TYPE_LONG;
+            case "double":
+            case "float":
+                return ReportRecord.TYPE_DOUBLE;
+            case "boolean":
+                return ReportRecord.TYPE_BOOLEAN;
+            default:
+                return ReportRecord.TYPE_REFERENCE;
+        }
+    }
 }
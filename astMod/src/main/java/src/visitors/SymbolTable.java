@@ -0,0 +1,104 @@
+package src.visitors;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/* SymbolTable: the identifiers of one compilation unit, interned to dense
+ * ids in the order the walk first meets them. The analysis model keeps sets
+ * of names as BitSets over these ids, and per-name data in arrays indexed
+ * by them, instead of hash sets and maps of strings.
+ *
+ * The same unit always gives the same ids. Not thread-safe; each visitor
+ * has its own.
+ */
+public final class SymbolTable {
+    private String[] names;
+    private int size = 0;
+
+    // Open addressing, power of two sized; each slot holds id + 1, 0 is empty.
+    private int[] slots;
+
+    public SymbolTable() {
+        this(64);
+    }
+
+    public SymbolTable(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) * 2;
+        this.names = new String[capacity / 2];
+        this.slots = new int[capacity];
+    }
+
+    /* The id of `name`, which gets the next one if it is new. */
+    public int intern(String name) {
+        int mask = this.slots.length - 1;
+        for (int i = name.hashCode() & mask;; i = (i + 1) & mask) {
+            int slot = this.slots[i];
+            if (slot == 0) {
+                return add(name);
+            }
+            if (this.names[slot - 1].equals(name)) {
+                return slot - 1;
+            }
+        }
+    }
+
+    /* The id of `name`, or -1 when it was never interned. */
+    public int find(String name) {
+        int mask = this.slots.length - 1;
+        for (int i = name.hashCode() & mask;; i = (i + 1) & mask) {
+            int slot = this.slots[i];
+            if (slot == 0) {
+                return -1;
+            }
+            if (this.names[slot - 1].equals(name)) {
+                return slot - 1;
+            }
+        }
+    }
+
+    public String name(int id) {
+        return this.names[id];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /* The names of the ids in `set`, sorted by name, so lists built from a
+     * set do not depend on the order names were met in.
+     */
+    public String[] sortedNames(BitSet set) {
+        String[] rval = new String[set.cardinality()];
+        int n = 0;
+        for (int id = set.nextSetBit(0); id >= 0; id = set.nextSetBit(id + 1)) {
+            rval[n++] = this.names[id];
+        }
+        Arrays.sort(rval);
+        return rval;
+    }
+
+    /* The slots are kept at most half full, so there is room for all names. */
+    private int add(String name) {
+        if (this.size == this.names.length) {
+            this.names = Arrays.copyOf(this.names, this.names.length * 2);
+            this.slots = new int[this.slots.length * 2];
+            for (int id = 0; id < this.size; id++) {
+                place(id);
+            }
+        }
+
+        int id = this.size++;
+        this.names[id] = name;
+        place(id);
+        return id;
+    }
+
+    private void place(int id) {
+        int mask = this.slots.length - 1;
+        int i = this.names[id].hashCode() & mask;
+        while (this.slots[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        this.slots[i] = id + 1;
+    }
+}
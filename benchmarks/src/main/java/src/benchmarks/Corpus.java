@@ -0,0 +1,121 @@
+package src.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.IOUtils;
+
+/* Corpus: the source files the instrumentation benchmarks run on.
+ *
+ *   AppTest          resources/AppTest.java, a small class with a handful of ifs;
+ *   nested-<n>       a generated class with n ifs, nested 16 deep per method;
+ *   chained-<n>      a generated class with n ifs as else-if chains;
+ *   anything else    a path to a Java source file on disk (real-world corpora).
+ */
+final class Corpus {
+    private static final int NESTING = 16;
+
+    private Corpus() {
+    }
+
+    static String load(String name) throws IOException {
+        if (name.equals("AppTest")) {
+            InputStream in = Corpus.class.getResourceAsStream("/AppTest.java");
+            if (in == null) {
+                throw new IOException("AppTest.java is not on the classpath");
+            }
+            try {
+                return IOUtils.toString(in, StandardCharsets.UTF_8);
+            } finally {
+                in.close();
+            }
+        }
+        if (name.startsWith("nested-")) {
+            return nested(Integer.parseInt(name.substring("nested-".length())));
+        }
+        if (name.startsWith("chained-")) {
+            return chained(Integer.parseInt(name.substring("chained-".length())));
+        }
+        return new String(Files.readAllBytes(new File(name).toPath()), StandardCharsets.UTF_8);
+    }
+
+    /* Methods of NESTING nested ifs, each reading fields and locals of mixed types. */
+    static String nested(int ifs) {
+        StringBuilder source = header("Nested");
+        int emitted = 0;
+        for (int m = 0; emitted < ifs; m++) {
+            source.append("    public int method").append(m).append("(int p, String s) {\n");
+            source.append("        int local = p * 2;\n");
+            source.append("        int rval = 0;\n");
+            int depth = 0;
+            for (; depth < NESTING && emitted < ifs; depth++, emitted++) {
+                indent(source, depth + 2);
+                source.append("if (").append(condition(emitted)).append(") {\n");
+                indent(source, depth + 3);
+                source.append("rval += ").append(depth).append(";\n");
+            }
+            for (int d = depth - 1; d >= 0; d--) {
+                indent(source, d + 2);
+                source.append("}\n");
+            }
+            source.append("        return rval;\n");
+            source.append("    }\n\n");
+        }
+        return source.append("}\n").toString();
+    }
+
+    /* Methods of NESTING-long else-if chains with unbraced bodies. */
+    static String chained(int ifs) {
+        StringBuilder source = header("Chained");
+        int emitted = 0;
+        for (int m = 0; emitted < ifs; m++) {
+            source.append("    public int method").append(m).append("(int p, String s) {\n");
+            source.append("        int local = p * 2;\n");
+            source.append("        int rval = 0;\n");
+            for (int i = 0; i < NESTING && emitted < ifs; i++, emitted++) {
+                source.append(i == 0 ? "        if (" : "        else if (");
+                source.append(condition(emitted)).append(")\n");
+                source.append("            rval = ").append(i).append(";\n");
+            }
+            source.append("        return rval;\n");
+            source.append("    }\n\n");
+        }
+        return source.append("}\n").toString();
+    }
+
+    private static StringBuilder header(String name) {
+        StringBuilder source = new StringBuilder();
+        source.append("package bench;\n\n");
+        source.append("public class ").append(name).append(" {\n");
+        source.append("    private int count;\n");
+        source.append("    private long total;\n");
+        source.append("    private double ratio;\n");
+        source.append("    private boolean enabled;\n");
+        source.append("    private String label;\n\n");
+        return source;
+    }
+
+    private static String condition(int i) {
+        switch (i % 5) {
+        case 0:
+            return "count > " + i;
+        case 1:
+            return "local + count < total";
+        case 2:
+            return "ratio * p > " + i + ".5 && enabled";
+        case 3:
+            return "label != null && label.length() == p";
+        default:
+            return "s.isEmpty() || local == " + i;
+        }
+    }
+
+    private static void indent(StringBuilder source, int level) {
+        for (int i = 0; i < level; i++) {
+            source.append("    ");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package src.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTParser;
+import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.rewrite.ASTRewrite;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.text.edits.TextEdit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.instrumenters.ProbeTable;
+import src.instrumenters.SourceFiles;
+import src.instrumenters.SourceInstrumenter;
+import src.visitors.InstrumentingVisitor;
+
+/* InstrumentationBenchmark: cost of instrumenting one file, split into the
+ * stages SourceInstrumenter goes through, so a regression can be pinned to
+ * the parser, the visitor, the rewrite or the output.
+ *
+ *   parse      ASTParser.createAST on the source;
+ *   visit      InstrumentingVisitor over an already parsed unit;
+ *   rewrite    ASTRewrite.rewriteAST and applying the edits to a Document;
+ *   write      writing the instrumented text out, as instrumentFile does;
+ *   instrument all of the above but the write, end to end.
+ *
+ * Pick a corpus with -p corpus=..., see Corpus for the names understood.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InstrumentationBenchmark {
+    @Param({ "AppTest", "nested-1000", "chained-1000", "nested-5000" })
+    public String corpus;
+
+    private String contents;
+    private File file;
+    private ProbeTable probes;
+    private CompilationUnit unit;
+    private ASTRewrite rewrite;
+    private String instrumented;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, BadLocationException {
+        contents = Corpus.load(corpus);
+
+        File directory = Files.createTempDirectory("instrumentation-benchmark").toFile();
+        file = new File(directory, "Bench.java");
+        probes = new ProbeTable(directory.toPath());
+        probes.assignFileIds(Collections.singletonList(file));
+
+        unit = parse(contents);
+
+        // The rewrite benchmark reuses one fully recorded rewrite; rewriteAST
+        // only reads it, so it can be replayed against fresh documents.
+        rewrite = ASTRewrite.create(unit.getAST());
+        unit.accept(new InstrumentingVisitor(rewrite, probes.fileId(file)));
+
+        instrumented = SourceInstrumenter.instrument(contents, file, probes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteDirectory(file.getParentFile());
+    }
+
+    @Benchmark
+    public CompilationUnit parse() {
+        return parse(contents);
+    }
+
+    @Benchmark
+    public InstrumentingVisitor visit() {
+        // Visiting records edits in the rewrite, so every call gets its own.
+        InstrumentingVisitor visitor = new InstrumentingVisitor(ASTRewrite.create(unit.getAST()), probes.fileId(file));
+        unit.accept(visitor);
+        return visitor;
+    }
+
+    @Benchmark
+    public String rewrite() throws BadLocationException {
+        Document document = new Document(contents);
+        TextEdit edits = rewrite.rewriteAST(document, null);
+        edits.apply(document);
+        return document.get();
+    }
+
+    @Benchmark
+    public long write() throws IOException {
+        SourceFiles.write(file.toPath(), instrumented, StandardCharsets.UTF_8);
+        return file.length();
+    }
+
+    @Benchmark
+    public String instrument() throws BadLocationException {
+        return SourceInstrumenter.instrument(contents, file, probes);
+    }
+
+    private static CompilationUnit parse(String contents) {
+        @SuppressWarnings("deprecation") // Same parser setup as SourceInstrumenter.
+        ASTParser parser = ASTParser.newParser(AST.JLS8);
+
+        parser.setSource(contents.toCharArray());
+        parser.setKind(ASTParser.K_COMPILATION_UNIT);
+
+        return (CompilationUnit) parser.createAST(null);
+    }
+}
@@ -0,0 +1,128 @@
+package src.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import src.Reporter;
+import src.collector.ReportCollector;
+import src.instrumenters.ProbeTable;
+import src.runtime.ReportRecord;
+
+/* ReporterBenchmark: what one probe costs the instrumented program, i.e. one
+ * Reporter call as InstrumentingVisitor emits it, per report mode.
+ *
+ * The mode is fixed when Reporter is loaded, so each mode runs in its own fork.
+ * Stream mode runs against a ReportCollector in the same JVM, which keeps the
+ * sender from dropping batches and makes the numbers include backpressure.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ReporterBenchmark {
+    private static final int STREAM_PORT = 11120;
+    private static final int TYPES = ReportRecord.TYPE_LONG | ReportRecord.TYPE_DOUBLE << 4
+            | ReportRecord.TYPE_BOOLEAN << 8;
+
+    private final int probe = ProbeTable.probeId(1, 7);
+    private long count = 0;
+    private double ratio = 0.5;
+    private boolean enabled = true;
+    private String label = "label";
+
+    private ReportCollector collector;
+    private File traceDirectory;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        String mode = System.getProperty("instrumenter.report.mode", "stream");
+        if (mode.contains("stream") || mode.contains("both")) {
+            collector = new ReportCollector(STREAM_PORT, 256);
+            collector.start();
+        }
+        String trace = System.getProperty("instrumenter.trace.dir");
+        if (trace != null) {
+            traceDirectory = new File(trace);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Reporter.flush();
+        if (collector != null) {
+            collector.stop();
+        }
+        if (traceDirectory != null) {
+            FileUtils.deleteDirectory(traceDirectory);
+        }
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dinstrumenter.report.mode=stream",
+            "-Dinstrumenter.report.port=" + STREAM_PORT })
+    public boolean stream() {
+        return typed();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dinstrumenter.report.mode=stream",
+            "-Dinstrumenter.report.port=" + STREAM_PORT })
+    public boolean streamObjects() {
+        return objects();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dinstrumenter.report.mode=store")
+    public boolean store() {
+        return typed();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dinstrumenter.report.mode=store")
+    public boolean storeObjects() {
+        return objects();
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = { "-Dinstrumenter.report.mode=trace",
+            "-Dinstrumenter.trace.dir=target/reporter-benchmark-trace" })
+    public boolean trace() {
+        return typed();
+    }
+
+    /* What the condition alone costs, for reference. */
+    @Benchmark
+    @Fork(1)
+    public boolean baseline() {
+        count++;
+        return count > 3 && ratio < 1.0 && enabled;
+    }
+
+    private boolean typed() {
+        count++;
+        return Reporter.report(probe, count > 3 && ratio < 1.0 && enabled, TYPES, count, Reporter.bits(ratio),
+                Reporter.bits(enabled));
+    }
+
+    private boolean objects() {
+        count++;
+        return Reporter.reportObjects(probe, count > 3 && label != null, count, label);
+    }
+}